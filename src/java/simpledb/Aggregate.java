@@ -1,6 +1,16 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import simpledb.Aggregator.Op;
 
@@ -8,17 +18,72 @@ import simpledb.Aggregator.Op;
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * Aggregate is a hash aggregation under a memory budget of a number of
+ * groups. Once the budget is used up, tuples of groups that are already in
+ * memory are still merged into them, but the tuples of all other groups are
+ * hash-partitioned by their group into spill files with a
+ * {@link SpillPartitioner}. Every group is therefore either entirely in memory or
+ * entirely in one partition, and each partition is aggregated on its own
+ * afterwards, partitioning it again if it still has too many groups. The
+ * results of the partitions are written to disk and returned after the
+ * groups kept in memory. By default the budget is as many groups as fit in
+ * a share of the pages of the BufferPool, see {@link #defaultMemoryGroups}.
+ * <p>
+ * Integer aggregates grouped by an integer field are computed by an
+ * {@link IntGroupAggregator}, all others by an {@link IntegerAggregator} or
+ * a {@link StringAggregator}.
+ * <p>
+ * When the child is a SeqScan of a HeapFile, possibly under Filters, the
+ * pages of the file are aggregated in parallel on a fork-join pool of
+ * {@link #setParallelism} threads: tasks build partial aggregates over disjoint ranges of
+ * {@link #PAGES_PER_TASK} pages, which are merged pairwise with
+ * {@link Aggregator#mergePartial}. Each partial keeps its groups split by
+ * their spill partition; when a partial has more groups than the budget,
+ * the partial aggregates of its largest partitions are serialized to disk
+ * and merged back one partition at a time at the end, so the child is
+ * read only once. Like the spilled tuples of a serial aggregation, the
+ * spilled groups of a partition that do not fit in the budget are split
+ * again by the partition of the next level, up to
+ * {@link SpillPartitioner#MAX_DEPTH} levels.
  */
 public class Aggregate extends Operator {
 	private OpIterator childIterator;
-	private Aggregator aggregator;
 	private int gbFieldNo;
 	private int aFieldNo;
 	private TupleDesc tDesc;
 	private Op op;
+	private final int memoryGroups;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	// the groups kept in memory, the results of the spilled groups, and where the output is.
+	private transient Aggregator aggregator;
+	private transient OpIterator results;
+	private transient SpillFile spilledResults;
+	private transient SpillFile.Reader spilledReader;
 
     private static final long serialVersionUID = 1L;
 
+    /** The number of pages a task of a parallel aggregation reads. */
+    public static final int PAGES_PER_TASK = 16;
+
+    /**
+     * An Aggregate keeps its groups in one in this many of the pages of the
+     * BufferPool by default, leaving the rest to the operators below it, such
+     * as joins, which take half of them.
+     */
+    public static final int MEMORY_SHARE = 4;
+
+    /**
+     * @return the number of groups an Aggregate with the given output schema
+     *         keeps in memory by default: as many as fit, at one output tuple
+     *         per group, in one in {@link #MEMORY_SHARE} of the pages of the
+     *         BufferPool
+     */
+    public static int defaultMemoryGroups(TupleDesc td) {
+    	int pages = Math.max(1, Database.getBufferPool().getNumPages() / MEMORY_SHARE);
+    	return pages * Math.max(1, BufferPool.getPageSize() / td.getSize());
+    }
+
     /**
      * Constructor.
      * 
@@ -38,7 +103,20 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+    	this(child, afield, gfield, aop, 0);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memoryGroups
+     *            The number of groups aggregated in memory, or 0 for the
+     *            default.
+     * @see #Aggregate(OpIterator, int, int, Aggregator.Op)
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int memoryGroups) {
     	// some code goes here
+    	this.childIterator = child;
     	this.gbFieldNo = gfield;
     	this.aFieldNo = afield;
     	this.op = aop;
@@ -51,23 +129,389 @@ public class Aggregate extends Operator {
     	} else {
     		this.tDesc = new TupleDesc(new Type[]{aType}, new String[]{tDesc.getFieldName(afield)});
     	}
-    	if (aType == Type.STRING_TYPE) {
-    		aggregator = new StringAggregator(gfield, gType, afield, aop);
-    	} else {
-    		aggregator = new IntegerAggregator(gfield, gType, afield, aop);
+    	if (aType == Type.STRING_TYPE && aop != Aggregator.Op.COUNT) {
+    		throw new IllegalArgumentException("Only COUNT");
+    	}
+    	this.memoryGroups = memoryGroups > 0 ? memoryGroups : defaultMemoryGroups(this.tDesc);
+    }
+
+    /**
+     * Set the parallelism of the aggregation: above 1 the pages of the child
+     * are aggregated on a fork-join pool of that many threads; 1 aggregates
+     * the child on the calling thread. The default is a thread per processor.
+     */
+    public void setParallelism(int parallelism) {
+    	if (parallelism < 1)
+    		throw new IllegalArgumentException("parallelism must be positive");
+    	this.parallelism = parallelism;
+    }
+
+    private Aggregator newAggregator() {
+    	TupleDesc childDesc = childIterator.getTupleDesc();
+    	Type gType = gbFieldNo == Aggregator.NO_GROUPING ? null : childDesc.getFieldType(gbFieldNo);
+    	if (childDesc.getFieldType(aFieldNo) == Type.STRING_TYPE) {
+    		return new StringAggregator(gbFieldNo, gType, aFieldNo, op);
+    	}
+    	if (gType == Type.INT_TYPE && IntGroupAggregator.supports(op)) {
+    		// int keys and values need no boxing.
+    		return new IntGroupAggregator(gbFieldNo, aFieldNo, op);
+    	}
+    	return new IntegerAggregator(gbFieldNo, gType, aFieldNo, op);
+    }
+
+    private static DbException spillError(IOException e) {
+    	return new DbException("Aggregate could not spill to disk: " + e.getMessage());
+    }
+
+    /**
+     * Merge a tuple into agg if its group is in memory or there is room for
+     * it, and spill it to its partition otherwise.
+     */
+    private void route(Aggregator agg, Tuple t, SpillFile[] partitions, int level) throws IOException {
+    	Field group = gbFieldNo == Aggregator.NO_GROUPING ? null : t.getField(gbFieldNo);
+    	if (agg.numGroups() < memoryGroups || agg.hasGroup(group)) {
+    		agg.mergeTupleIntoGroup(t);
+    		return;
     	}
+    	int p = SpillPartitioner.partition(group, level);
+    	SpillPartitioner.spill(partitions, p, t);
+    }
+
+    /**
+     * Aggregate every spilled partition, appending its results to
+     * spilledResults, and remove it.
+     */
+    private void aggregatePartitions(SpillFile[] partitions, int level) throws IOException {
+    	for (SpillFile partition : partitions) {
+    		if (partition == null)
+    			continue;
+    		Aggregator agg = newAggregator();
+    		// past the last level the groups are kept in memory, whatever their number.
+    		boolean repartition = level < SpillPartitioner.MAX_DEPTH;
+    		SpillFile[] sub = SpillPartitioner.newPartitions();
+    		SpillFile.Reader reader = partition.reader();
+    		Tuple t;
+    		while ((t = reader.next()) != null) {
+    			if (repartition)
+    				route(agg, t, sub, level);
+    			else
+    				agg.mergeTupleIntoGroup(t);
+    		}
+    		reader.close();
+    		partition.delete();
+    		writeResults(agg);
+    		aggregatePartitions(sub, level + 1);
+    	}
+    }
+
+    private void writeResults(Aggregator agg) throws IOException {
     	try {
-    		child.open();
-			while (child.hasNext()) {
-				this.aggregator.mergeTupleIntoGroup(child.next());
+    		OpIterator it = agg.iterator();
+    		it.open();
+    		while (it.hasNext())
+    			spilledResults.write(it.next());
+    		it.close();
+    	} catch (DbException e) {
+    		throw new IOException(e);
+    	} catch (TransactionAbortedException e) {
+    		throw new IOException(e);
+    	}
+    }
+
+    /**
+     * Feed all tuples of the child to the aggregator, a batch at a time while
+     * the batches fit in the memory budget, spilling the groups that do not.
+     */
+    private void mergeChild() throws DbException, TransactionAbortedException, IOException {
+    	spilledResults = null;
+    	if (parallelism > 1 && aggregateInParallel())
+    		return;
+    	aggregator = newAggregator();
+    	SpillFile[] partitions = SpillPartitioner.newPartitions();
+    	boolean spilled = false;
+    	childIterator.open();
+    	TupleBatch batch;
+		while ((batch = childIterator.nextBatch()) != null) {
+			if (aggregator.numGroups() + batch.size() <= memoryGroups) {
+				aggregator.mergeBatchIntoGroup(batch);
+				continue;
 			}
-			child.close();
-		} catch (DbException e) {
-			e.printStackTrace();
-		} catch (TransactionAbortedException e) {
-			e.printStackTrace();
+			for (int i = 0; i < batch.size(); i++) {
+				route(aggregator, batch.getTuple(i), partitions, 0);
+			}
+			spilled = true;
+		}
+		childIterator.close();
+		if (spilled) {
+			spilledResults = new SpillFile(tDesc);
+			aggregatePartitions(partitions, 1);
 		}
-    	this.childIterator = this.aggregator.iterator();
+    }
+
+    /**
+     * Aggregate the pages of the HeapFile the child scans in parallel on the
+     * common fork-join pool. The groups of the partitions that were spilled
+     * are merged one partition at a time and written to spilledResults; all
+     * other groups end up in aggregator.
+     *
+     * @return false, having done nothing, if the child is not a scan of a
+     *         HeapFile of more than one task
+     */
+    private boolean aggregateInParallel() throws DbException, TransactionAbortedException, IOException {
+    	ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    	OpIterator op = childIterator;
+    	while (op instanceof Filter) {
+    		predicates.add(((Filter) op).getPredicate());
+    		op = ((Filter) op).getChildren()[0];
+    	}
+    	if (!(op instanceof SeqScan))
+    		return false;
+    	SeqScan scan = (SeqScan) op;
+    	DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+    	if (!(file instanceof HeapFile) || ((HeapFile) file).numPages() <= PAGES_PER_TASK)
+    		return false;
+    	Partial root;
+    	ForkJoinPool pool = new ForkJoinPool(parallelism);
+    	try {
+    		root = pool.invoke(
+    				new PartialAggregate(scan, predicates, 0, ((HeapFile) file).numPages()));
+    	} catch (RuntimeException e) {
+    		// a task failed: rethrow what it threw.
+    		for (Throwable t = e; t != null; t = t.getCause()) {
+    			if (t instanceof DbException)
+    				throw (DbException) t;
+    			if (t instanceof TransactionAbortedException)
+    				throw (TransactionAbortedException) t;
+    			if (t instanceof IOException)
+    				throw (IOException) t;
+    		}
+    		throw e;
+    	} finally {
+    		pool.shutdown();
+    	}
+    	aggregator = newAggregator();
+    	settle(root, aggregator);
+    	aggregateSpilled(root);
+    	return true;
+    }
+
+    /**
+     * Merge the groups of the partitions of partial that were never spilled
+     * into agg, and spill the groups still in memory of the others, so that
+     * only agg is left in memory.
+     */
+    private void settle(Partial partial, Aggregator agg) throws IOException {
+    	for (int p = 0; p < partial.parts.length; p++) {
+    		if (partial.parts[p] == null)
+    			continue;
+    		if (partial.spilled[p].isEmpty())
+    			agg.mergePartial(partial.parts[p]);
+    		else
+    			partial.spilled[p].add(writePartial(partial.parts[p]));
+    		partial.parts[p] = null;
+    	}
+    }
+
+    /** Aggregate the spilled partitions of a settled partial, one at a time. */
+    private void aggregateSpilled(Partial partial) throws IOException {
+    	for (List<File> files : partial.spilled) {
+    		if (!files.isEmpty())
+    			aggregateSpilled(files, partial.level + 1);
+    	}
+    }
+
+    /**
+     * Merge the spilled partial aggregates of one partition, appending the
+     * results to spilledResults. The groups are split by their partition at
+     * this level, and those that do not fit in the budget are spilled again
+     * and aggregated at the next level.
+     */
+    private void aggregateSpilled(List<File> files, int level) throws IOException {
+    	if (spilledResults == null)
+    		spilledResults = new SpillFile(tDesc);
+    	Aggregator agg = newAggregator();
+    	if (level >= SpillPartitioner.MAX_DEPTH) {
+    		// past the last level the groups are kept in memory, whatever their number.
+    		for (File f : files)
+    			agg.mergePartial(readPartial(f));
+    		writeResults(agg);
+    		return;
+    	}
+    	Partial partial = new Partial(level);
+    	for (File f : files) {
+    		partial.mergeSplit(readPartial(f));
+    		partial.fit();
+    	}
+    	settle(partial, agg);
+    	writeResults(agg);
+    	aggregateSpilled(partial);
+    }
+
+    private static File writePartial(Aggregator agg) throws IOException {
+    	File f = File.createTempFile("partial", ".tmp");
+    	f.deleteOnExit();
+    	ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+    	try {
+    		out.writeObject(agg);
+    	} finally {
+    		out.close();
+    	}
+    	return f;
+    }
+
+    private static Aggregator readPartial(File f) throws IOException {
+    	ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+    	try {
+    		return (Aggregator) in.readObject();
+    	} catch (ClassNotFoundException e) {
+    		throw new IOException(e);
+    	} finally {
+    		in.close();
+    		f.delete();
+    	}
+    }
+
+    /**
+     * The partial aggregate of a range of pages: its groups, split by their
+     * spill partition, and the files of the partial aggregates of partitions
+     * that were written to disk to keep the groups in memory within the
+     * budget. Without grouping all tuples are in partition 0.
+     */
+    private class Partial {
+    	// the level of partitioning that splits the groups.
+    	final int level;
+    	final Aggregator[] parts = new Aggregator[SpillPartitioner.NUM_PARTITIONS];
+    	final List<File>[] spilled;
+
+    	@SuppressWarnings("unchecked")
+    	Partial(int level) {
+    		this.level = level;
+    		spilled = new List[SpillPartitioner.NUM_PARTITIONS];
+    		for (int p = 0; p < spilled.length; p++)
+    			spilled[p] = new ArrayList<File>();
+    	}
+
+    	void mergeBatch(TupleBatch batch, TupleDesc td) {
+    		if (gbFieldNo == Aggregator.NO_GROUPING) {
+    			part(0).mergeBatchIntoGroup(batch);
+    			return;
+    		}
+    		TupleBatch[] split = new TupleBatch[parts.length];
+    		for (int i = 0; i < batch.size(); i++) {
+    			int p = SpillPartitioner.partition(batch.getField(gbFieldNo, i), level);
+    			if (split[p] == null)
+    				split[p] = new TupleBatch(td, batch.size());
+    			split[p].append(batch, i);
+    		}
+    		for (int p = 0; p < parts.length; p++) {
+    			if (split[p] != null)
+    				part(p).mergeBatchIntoGroup(split[p]);
+    		}
+    	}
+
+    	/** Merge the groups of a partial aggregate, which must not be used afterwards, into their parts. */
+    	void mergeSplit(Aggregator partial) {
+    		Aggregator[] split = partial.splitPartial(level);
+    		for (int p = 0; p < parts.length; p++) {
+    			if (split[p] == null)
+    				continue;
+    			if (parts[p] == null)
+    				parts[p] = split[p];
+    			else
+    				parts[p].mergePartial(split[p]);
+    		}
+    	}
+
+    	/** Merge other, which must not be used afterwards, into this. */
+    	void merge(Partial other) {
+    		for (int p = 0; p < parts.length; p++) {
+    			if (parts[p] == null)
+    				parts[p] = other.parts[p];
+    			else if (other.parts[p] != null)
+    				parts[p].mergePartial(other.parts[p]);
+    			spilled[p].addAll(other.spilled[p]);
+    		}
+    	}
+
+    	/** Spill the largest partitions until the rest fit in the budget. */
+    	void fit() throws IOException {
+    		while (true) {
+    			int total = 0, largest = -1;
+    			for (int p = 0; p < parts.length; p++) {
+    				if (parts[p] == null)
+    					continue;
+    				total += parts[p].numGroups();
+    				if (largest < 0 || parts[p].numGroups() > parts[largest].numGroups())
+    					largest = p;
+    			}
+    			if (total <= memoryGroups)
+    				return;
+    			spilled[largest].add(writePartial(parts[largest]));
+    			parts[largest] = null;
+    		}
+    	}
+
+    	private Aggregator part(int p) {
+    		if (parts[p] == null)
+    			parts[p] = newAggregator();
+    		return parts[p];
+    	}
+    }
+
+    /**
+     * Aggregates a range of pages of a HeapFile, splitting it in halves
+     * aggregated in parallel while it is longer than PAGES_PER_TASK.
+     */
+    private class PartialAggregate extends RecursiveTask<Partial> {
+    	private static final long serialVersionUID = 1L;
+    	private final SeqScan scan;
+    	private final List<Predicate> predicates;
+    	private final int from, to;
+
+    	PartialAggregate(SeqScan scan, List<Predicate> predicates, int from, int to) {
+    		this.scan = scan;
+    		this.predicates = predicates;
+    		this.from = from;
+    		this.to = to;
+    	}
+
+    	@Override
+    	protected Partial compute() {
+    		try {
+    			if (to - from <= PAGES_PER_TASK)
+    				return scanPages();
+    			int mid = (from + to) >>> 1;
+    			PartialAggregate left = new PartialAggregate(scan, predicates, from, mid);
+    			left.fork();
+    			Partial right = new PartialAggregate(scan, predicates, mid, to).compute();
+    			Partial result = left.join();
+    			result.merge(right);
+    			result.fit();
+    			return result;
+    		} catch (IOException e) {
+    			throw new RuntimeException(e);
+    		}
+    	}
+
+    	private Partial scanPages() throws IOException {
+    		Partial partial = new Partial(0);
+    		HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+    		TupleDesc td = scan.getTupleDesc();
+    		try {
+    			for (int p = from; p < to; p++) {
+    				TupleBatch batch = file.readBatch(scan.getTransactionId(), p, td);
+    				for (Predicate pred : predicates)
+    					pred.filter(batch);
+    				partial.mergeBatch(batch, td);
+    				partial.fit();
+    			}
+    		} catch (DbException e) {
+    			throw new RuntimeException(e);
+    		} catch (TransactionAbortedException e) {
+    			throw new RuntimeException(e);
+    		}
+    		return partial;
+    	}
     }
 
     /**
@@ -87,7 +531,7 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
     	// some code goes here
-    	if (gbFieldNo != aggregator.NO_GROUPING) {
+    	if (gbFieldNo != Aggregator.NO_GROUPING) {
     		return tDesc.getFieldName(0);
     	}
     	return null;
@@ -125,8 +569,16 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
     	// some code goes here
+    	try {
+    		mergeChild();
+    		if (spilledResults != null)
+    			spilledReader = spilledResults.reader();
+    	} catch (IOException e) {
+    		throw spillError(e);
+    	}
+    	results = aggregator.iterator();
+    	results.open();
     	super.open();
-    	childIterator.open();
     }
 
     /**
@@ -138,15 +590,30 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 		// some code goes here
-    	if (childIterator.hasNext()) {
-    		return childIterator.next();
+    	if (results.hasNext()) {
+    		return results.next();
+    	}
+    	if (spilledReader != null) {
+    		try {
+    			return spilledReader.next();
+    		} catch (IOException e) {
+    			throw spillError(e);
+    		}
     	}
 		return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
     	// some code goes here
-    	childIterator.rewind();
+    	results.rewind();
+    	if (spilledResults != null) {
+    		try {
+    			spilledReader.close();
+    			spilledReader = spilledResults.reader();
+    		} catch (IOException e) {
+    			throw spillError(e);
+    		}
+    	}
     }
 
     /**
@@ -168,7 +635,21 @@ public class Aggregate extends Operator {
     public void close() {
     	// some code goes here
     	super.close();
-    	childIterator.close();
+    	if (results != null)
+    		results.close();
+    	if (spilledReader != null) {
+    		try {
+    			spilledReader.close();
+    		} catch (IOException e) {
+    			// the file is removed anyway
+    		}
+    	}
+    	if (spilledResults != null)
+    		spilledResults.delete();
+    	results = null;
+    	spilledReader = null;
+    	spilledResults = null;
+    	aggregator = null;
     }
 
     @Override
@@ -180,20 +661,7 @@ public class Aggregate extends Operator {
     @Override
     public void setChildren(OpIterator[] children) {
     	// some code goes here
-    	// TODO bugȰthis.aggregatorգ͵ȥˡ
-    	OpIterator child = children[0];
-    	try {
-    		child.open();
-			while (child.hasNext()) {
-				this.aggregator.mergeTupleIntoGroup(child.next());
-			}
-			child.close();
-		} catch (DbException e) {
-			e.printStackTrace();
-		} catch (TransactionAbortedException e) {
-			e.printStackTrace();
-		}
-    	this.childIterator = this.aggregator.iterator();
+    	this.childIterator = children[0];
     }
     
 }
@@ -78,6 +78,52 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every selected row of a batch into the aggregate, as
+     * {@link #mergeTupleIntoGroup} does for a single tuple.
+     *
+     * @param batch the batch containing an aggregate field and a group-by field
+     */
+    public default void mergeBatchIntoGroup(TupleBatch batch) {
+        for (int i = 0; i < batch.size(); i++)
+            mergeTupleIntoGroup(batch.getTuple(i));
+    }
+
+    /**
+     * Merge the groups of a partial aggregate, computed by an aggregator of
+     * the same class and arguments over other tuples, into this one. The
+     * result is the same as if the tuples of partial had been merged here.
+     *
+     * @param partial the partial aggregate, which must not be used afterwards
+     * @throws IllegalArgumentException if partial is of another class
+     */
+    public void mergePartial(Aggregator partial);
+
+    /**
+     * Split the groups of a partial aggregate by their spill partition at
+     * the given level (see {@link SpillPartitioner#partition}), so that a
+     * partial aggregate with more groups than fit in memory can be merged
+     * one partition at a time.
+     *
+     * @param level the level of partitioning
+     * @return for each partition, an aggregator of the same class and
+     *         arguments holding the groups of the partition, or null if it
+     *         has none; this aggregator must not be used afterwards
+     */
+    public Aggregator[] splitPartial(int level);
+
+    /**
+     * @return the number of groups merged so far
+     */
+    public int numGroups();
+
+    /**
+     * @param group a value of the group-by field, ignored if there is no
+     *            grouping
+     * @return true if tuples of the group have been merged already
+     */
+    public boolean hasGroup(Field group);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
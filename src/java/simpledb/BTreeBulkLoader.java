@@ -0,0 +1,237 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * BTreeBulkLoader builds a B+ tree bottom up from a table in any order.
+ * <p>
+ * The tuples are sorted on the key with the external merge sort of
+ * {@link OrderBy}, which also tells how many there are. That fixes the shape
+ * of the tree before the first page is written: the number of leaves for the
+ * requested fill factor, and the number of pages on each internal level. The
+ * items of a level are spread evenly over its pages, so no page is left
+ * underfull at the right edge and nothing has to be rebalanced afterwards.
+ * <p>
+ * The leaves take the first pages of the file, followed by the pages of each
+ * internal level from the bottom up, with the root last. The sorted tuples
+ * are packed into leaves left to right, and every page is written as soon as
+ * it is complete, together with the entry for it in the page being filled on
+ * the level above. Each level therefore appends to its own region of the
+ * file sequentially, and only one page per level is held in memory besides
+ * the sort's memory budget.
+ */
+public class BTreeBulkLoader {
+
+    /** Fraction of the slots of each page filled unless specified otherwise. */
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    /** Smallest number of children an internal page is built with. */
+    private static final int MIN_CHILDREN = 3;
+
+    private final BTreeFile bf;
+    private final int tableid;
+    private final int keyField;
+    private final Type[] types;
+    private final int[] counts; // the number of pages on each level, leaves first
+    private final int[] numItems; // the number of tuples or children spread over the pages of each level
+    private final int[] bases; // the number of the first page of each level
+    private final ArrayList<Tuple> leaf = new ArrayList<Tuple>();
+    private final ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
+    private final Field[] firstKeys; // the smallest key below the page being filled, per level
+    private final BTreePageId[] leftmost; // the first child of the page being filled, per level
+    private final int[] filled; // the number of pages written, per level
+    private final int[] items; // the number of items of the page being filled, per level
+
+    private BTreeBulkLoader(BTreeFile bf, int numTuples, double fillFactor) {
+        this.bf = bf;
+        this.tableid = bf.getId();
+        this.keyField = bf.keyField();
+        TupleDesc td = bf.getTupleDesc();
+        this.types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i++)
+            types[i] = td.getFieldType(i);
+
+        BTreeLeafPage leafPage;
+        BTreeInternalPage internalPage;
+        try {
+            leafPage = new BTreeLeafPage(new BTreePageId(tableid, 1, BTreePageId.LEAF),
+                    BTreeLeafPage.createEmptyPageData(), keyField);
+            internalPage = new BTreeInternalPage(new BTreePageId(tableid, 1, BTreePageId.INTERNAL),
+                    BTreeInternalPage.createEmptyPageData(), keyField);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        int perLeaf = Math.max(1, (int) (leafPage.getMaxTuples() * fillFactor));
+        int perInternal = Math.max(MIN_CHILDREN, (int) (internalPage.getMaxEntries() * fillFactor) + 1);
+        perInternal = Math.min(perInternal, internalPage.getMaxEntries() + 1);
+
+        ArrayList<Integer> levels = new ArrayList<Integer>();
+        levels.add(Math.max(1, (numTuples + perLeaf - 1) / perLeaf));
+        while (levels.get(levels.size() - 1) > 1) {
+            int children = levels.get(levels.size() - 1);
+            levels.add((children + perInternal - 1) / perInternal);
+        }
+        counts = new int[levels.size()];
+        bases = new int[levels.size()];
+        for (int l = 0, next = 1; l < counts.length; l++) {
+            counts[l] = levels.get(l);
+            bases[l] = next;
+            next += counts[l];
+        }
+        numItems = new int[counts.length];
+        numItems[0] = numTuples;
+        for (int l = 1; l < counts.length; l++)
+            numItems[l] = counts[l - 1];
+        firstKeys = new Field[counts.length];
+        leftmost = new BTreePageId[counts.length];
+        filled = new int[counts.length];
+        items = new int[counts.length];
+        for (int l = 0; l < counts.length; l++)
+            entries.add(new ArrayList<BTreeEntry>());
+    }
+
+    /**
+     * Build a B+ tree on the given field of a table with the default fill
+     * factor and memory budget.
+     *
+     * @see #build(TransactionId, DbFile, File, int, double, int)
+     */
+    public static BTreeFile build(TransactionId tid, DbFile source, File bFile, int keyField)
+            throws IOException, DbException, TransactionAbortedException {
+        return build(tid, source, bFile, keyField, DEFAULT_FILL_FACTOR, 0);
+    }
+
+    /**
+     * Build a B+ tree on the given field of a table, overwriting bFile. The
+     * new BTreeFile is added to the Catalog under a generated name, because
+     * its pages look their schema up there.
+     *
+     * @param source
+     *            the table to index, which must be in the Catalog
+     * @param fillFactor
+     *            the fraction of the slots of each page to fill, between 0.5
+     *            and 1
+     * @param memoryTuples
+     *            the number of tuples sorted in memory at a time, or 0 for
+     *            the default of OrderBy
+     */
+    public static BTreeFile build(TransactionId tid, DbFile source, File bFile, int keyField,
+            double fillFactor, int memoryTuples)
+            throws IOException, DbException, TransactionAbortedException {
+        if (fillFactor < 0.5 || fillFactor > 1)
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        new FileOutputStream(bFile).close();
+        BTreeFile bf = new BTreeFile(bFile, keyField, source.getTupleDesc());
+        Database.getCatalog().addTable(bf);
+
+        OrderBy sorted = new OrderBy(new int[] { keyField }, new boolean[] { true }, -1, memoryTuples,
+                new SeqScan(tid, source.getId()));
+        sorted.open();
+        try {
+            BTreeBulkLoader loader = new BTreeBulkLoader(bf, sorted.numTuples(), fillFactor);
+            while (sorted.hasNext())
+                loader.add(sorted.next());
+            loader.finish();
+        } finally {
+            sorted.close();
+        }
+        return bf;
+    }
+
+    /**
+     * @return the number of the page on level l that holds item i of the
+     *         level, with the items spread evenly over the pages
+     */
+    private int pageOf(int l, int i) {
+        int q = numItems[l] / counts[l];
+        int r = numItems[l] % counts[l];
+        int p = i < r * (q + 1) ? i / (q + 1) : r + (i - r * (q + 1)) / Math.max(1, q);
+        return bases[l] + p;
+    }
+
+    /** @return the number of items page p (counted from 0) of level l holds */
+    private int pageSize(int l, int p) {
+        return numItems[l] / counts[l] + (p < numItems[l] % counts[l] ? 1 : 0);
+    }
+
+    /** @return the parent of page i (counted from 0) of level l, or the root pointer for the root */
+    private BTreePageId parentOf(int l, int i) {
+        if (l == counts.length - 1)
+            return BTreeRootPtrPage.getId(tableid);
+        return new BTreePageId(tableid, pageOf(l + 1, i), BTreePageId.INTERNAL);
+    }
+
+    private void add(Tuple t) throws IOException, DbException {
+        leaf.add(t);
+        if (leaf.size() == pageSize(0, filled[0]))
+            writeLeaf();
+    }
+
+    private void writeLeaf() throws IOException, DbException {
+        int p = filled[0];
+        int pgNo = bases[0] + p;
+        byte[] data = BTreeFileEncoder.convertToLeafPage(leaf, BufferPool.getPageSize(), types.length,
+                types, keyField);
+        BTreeLeafPage page = new BTreeLeafPage(new BTreePageId(tableid, pgNo, BTreePageId.LEAF), data, keyField);
+        page.setParentId(parentOf(0, p));
+        if (p > 0)
+            page.setLeftSiblingId(new BTreePageId(tableid, pgNo - 1, BTreePageId.LEAF));
+        if (p < counts[0] - 1)
+            page.setRightSiblingId(new BTreePageId(tableid, pgNo + 1, BTreePageId.LEAF));
+        bf.writePage(page);
+        Field first = leaf.isEmpty() ? null : leaf.get(0).getField(keyField);
+        leaf.clear();
+        filled[0]++;
+        if (counts.length > 1)
+            addChild(1, pgNo, first);
+    }
+
+    /**
+     * Add a page of level l - 1, whose subtree starts with the given key, to
+     * the page being filled on level l.
+     */
+    private void addChild(int l, int child, Field firstKey) throws IOException, DbException {
+        int childCategory = l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+        BTreePageId childId = new BTreePageId(tableid, child, childCategory);
+        ArrayList<BTreeEntry> page = entries.get(l);
+        if (items[l] == 0) {
+            firstKeys[l] = firstKey;
+            leftmost[l] = childId;
+        } else {
+            BTreePageId left = page.isEmpty() ? leftmost[l] : page.get(page.size() - 1).getRightChild();
+            page.add(new BTreeEntry(firstKey, left, childId));
+        }
+        items[l]++;
+        if (items[l] == pageSize(l, filled[l]))
+            writeInternal(l, childCategory);
+    }
+
+    private void writeInternal(int l, int childCategory) throws IOException, DbException {
+        int p = filled[l];
+        int pgNo = bases[l] + p;
+        byte[] data = BTreeFileEncoder.convertToInternalPage(entries.get(l), BufferPool.getPageSize(),
+                types[keyField], childCategory);
+        BTreeInternalPage page = new BTreeInternalPage(new BTreePageId(tableid, pgNo, BTreePageId.INTERNAL),
+                data, keyField);
+        page.setParentId(parentOf(l, p));
+        bf.writePage(page);
+        Field first = firstKeys[l];
+        entries.get(l).clear();
+        items[l] = 0;
+        filled[l]++;
+        if (l < counts.length - 1)
+            addChild(l + 1, pgNo, first);
+    }
+
+    private void finish() throws IOException, DbException {
+        if (filled[0] < counts[0])
+            writeLeaf(); // the only leaf of an empty table
+        int root = bases[counts.length - 1];
+        int rootCategory = counts.length == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+        bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+                BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0)));
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -21,6 +22,7 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final DbFileChannel channel;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
@@ -35,6 +37,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.channel = new DbFileChannel(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -78,14 +81,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				int retval = read(pageBuf, 0);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -98,13 +99,12 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
+				if (id.getPageNumber() < 1) {
 					throw new IllegalArgumentException(
 							"Unable to seek to correct place in BTreeFile");
 				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				int retval = read(pageBuf, pageOffset(id.getPageNumber()));
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BufferPool.getPageSize()) {
@@ -127,14 +127,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -148,17 +140,51 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(page.getId().getPageNumber()));
 		}
 	}
+
+	/**
+	 * Read a page image at the given offset, copying it out of the file
+	 * mapping in mapped mode to save the read system call.
+	 */
+	private int read(byte[] pageBuf, long offset) throws IOException {
+		ByteBuffer mapped = channel.slice(offset, pageBuf.length);
+		if (mapped == null)
+			return channel.read(pageBuf, offset);
+		mapped.get(pageBuf);
+		return pageBuf.length;
+	}
+
+	/**
+	 * Turn the memory mapped read path on or off.
+	 *
+	 * @see DbFileChannel#setMapped
+	 */
+	public void setMemoryMapped(boolean mapped) {
+		channel.setMapped(mapped);
+	}
+
+	public boolean isMemoryMapped() {
+		return channel.isMapped();
+	}
+
+	/**
+	 * Returns the offset in the file of the (non root pointer) page with the
+	 * given page number. Page numbers start at 1, right after the root pointer page.
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+	}
+
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		channel.close();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -848,13 +874,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.write(emptyRootPtrData, 0);
+				channel.write(emptyLeafData, emptyRootPtrData.length);
 			}
 		}
 
@@ -910,11 +933,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.write(emptyData, channel.size());
 				emptyPageNo = numPages();
 			}
 		}
@@ -945,10 +965,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1082,6 +1099,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 
+	// the leaves under the parent of curp, in key order; curp is leaves.get(leafPos).
+	final ReadAhead readAhead = new ReadAhead();
+	ArrayList<BTreePageId> leaves = null;
+	int leafPos, prefetched;
+
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
@@ -1101,6 +1123,47 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.iterator();
+		readAhead.reset();
+		leaves = null;
+		readAhead(readAhead.getWindow());
+	}
+
+	/**
+	 * Prefetch the leaves that follow curp, as many as the window says. The
+	 * right sibling of a leaf is only known once the leaf is read, so the
+	 * leaves to prefetch are taken from the parent of curp; the scan stalls
+	 * once per parent, at its first leaf.
+	 */
+	private void readAhead(int window) throws DbException, TransactionAbortedException {
+		if (leaves != null && leafPos + 1 < leaves.size() && leaves.get(leafPos + 1).equals(curp.getId())) {
+			leafPos++;
+		} else {
+			BTreePageId parentId = curp.getParentId();
+			if (parentId.pgcateg() != BTreePageId.INTERNAL) {
+				leaves = null;
+				return;
+			}
+			BTreeInternalPage parent = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, parentId, Permissions.READ_ONLY);
+			leaves = new ArrayList<BTreePageId>();
+			Iterator<BTreeEntry> entries = parent.iterator();
+			while (entries.hasNext()) {
+				BTreeEntry e = entries.next();
+				if (leaves.isEmpty())
+					leaves.add(e.getLeftChild());
+				leaves.add(e.getRightChild());
+			}
+			leafPos = leaves.indexOf(curp.getId());
+			prefetched = leafPos;
+			if (leafPos < 0) {
+				leaves = null;
+				return;
+			}
+		}
+		int last = Math.min(leafPos + window, leaves.size() - 1);
+		for (int i = Math.max(leafPos, prefetched) + 1; i <= last; i++)
+			Database.getBufferPool().prefetch(leaves.get(i));
+		prefetched = Math.max(prefetched, last);
 	}
 
 	/**
@@ -1120,8 +1183,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				curp = null;
 			}
 			else {
+				int window = readAhead.window(nextp);
+				// a full scan reads each leaf once, let the buffer pool evict it early.
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, true);
+				readAhead(window);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1148,6 +1214,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		leaves = null;
 	}
 }
 
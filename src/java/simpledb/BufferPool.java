@@ -2,11 +2,18 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -16,12 +23,55 @@ import java.util.Map;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is striped into a number of partitions by a hash of the
+ * PageId. Each partition owns a fixed share of the frames, keeps its own
+ * replacement order and is guarded by its own monitor, so that requests for
+ * pages that live in different partitions never contend with each other.
+ * Which page of a full partition is evicted is decided by a pluggable
+ * {@link ReplacementPolicy}; sequential scans fetch their pages with a hint
+ * so that scan-resistant policies do not let them push out the working set.
+ * <p>
+ * A partition monitor is never held while the disk or the log works. A miss
+ * registers an in-flight read of the page under the monitor, reads the page
+ * without it and takes the monitor again to admit the page; a request for a
+ * page that is in flight waits for that read instead of issuing its own. A
+ * dirty page chosen for eviction is likewise in flight while it is written
+ * back after the monitor has been released, and a request for it meanwhile
+ * gets it back once it is on disk. Pages that are flushed explicitly, at
+ * commit or by {@link #flushAllPages}, are taken out of their partition and
+ * put in flight the same way, and are admitted again once they are clean.
+ * Hits on a partition thus never wait for its misses or its writes.
+ * <p>
+ * Sequential scans can also ask for the pages they are about to read to be
+ * read ahead (see {@link #prefetch} and {@link ReadAhead}). Prefetches are
+ * in-flight reads run by a few background threads, and are admitted to the
+ * pool as scan pages once they arrive.
+ * <p>
+ * The pool keeps a dirty page table with the recLSN of each page that has
+ * changes in the log that are not on disk: a log position at or before the
+ * first such record. Checkpoints copy it into the log (see {@link LogFile}),
+ * and then have a background writer trickle the pages that were dirty before
+ * the checkpoint out to disk, a few at a time, so that the redo of recovery
+ * starts no earlier than the checkpoint before the last. A page the writer
+ * fails to write stays in the table with its recLSN, and the failure is
+ * thrown by the next checkpoint or {@link #flushAllPages}.
  * 
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-	private int numPages;
-	private LRUCache cache;
+	private final int numPages;
+	private final PagePartition[] partitions;
+	// reads (prefetches among them) that have not been admitted to their partition yet, and writes of evicted or flushed pages.
+	private final ConcurrentHashMap<PageId, InFlight> inFlight = new ConcurrentHashMap<PageId, InFlight>();
+	private final ThreadPoolExecutor prefetcher;
+	// the dirty page table: the recLSN of each page with logged changes that are not on disk.
+	private final ConcurrentHashMap<PageId, Long> recLSNs = new ConcurrentHashMap<PageId, Long>();
+	// the background writer writes the pages with a recLSN below writeTarget; guarded by recLSNs.
+	private Thread writer;
+	private long writeTarget;
+	// why the writer stopped, until it is reported; guarded by recLSNs.
+	private IOException writerFailure;
 	
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
@@ -33,15 +83,84 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Smallest number of frames a partition gets when the partition count
+    is picked by default, so that small pools are not split into stripes too
+    small to hold a useful working set. */
+    public static final int MIN_PAGES_PER_PARTITION = 16;
+
+    /** Replacement policy used when none is passed to the constructor. 2Q
+    keeps pages that are only touched once, e.g. by a scan, out of its LRU
+    list, so a large scan cannot flush the working set. */
+    public static final ReplacementPolicy.Factory DEFAULT_POLICY = TwoQueuePolicy::new;
+
+    /** Number of background threads that read prefetched pages. */
+    public static final int PREFETCH_THREADS = 2;
+
+    /** Number of pages the background writer writes at a time, and the
+    pause between two such rounds, so that it trickles pages out instead of
+    competing with transactions for the disk. */
+    public static final int WRITER_BATCH = 8;
+    public static final long WRITER_PAUSE_MILLIS = 10;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, striped into
+     * one partition per available processor (but never fewer than
+     * {@link #MIN_PAGES_PER_PARTITION} pages per partition).
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, defaultPartitions(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, striped into
+     * numPartitions partitions. The frames are divided as evenly as possible
+     * among the partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions of the page table; must be
+     *        between 1 and numPages.
+     */
+    public BufferPool(int numPages, int numPartitions) {
+        this(numPages, numPartitions, DEFAULT_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, striped into
+     * numPartitions partitions, each of which replaces its pages with its
+     * own instance of the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions of the page table; must be
+     *        between 1 and numPages.
+     * @param policy creates the replacement policy of each partition, e.g.
+     *        {@code ClockProPolicy::new}.
+     */
+    public BufferPool(int numPages, int numPartitions, ReplacementPolicy.Factory policy) {
         // some code goes here
+    	if (numPartitions < 1 || numPartitions > numPages)
+    		throw new IllegalArgumentException("numPartitions must be in [1, " + numPages + "]");
     	this.numPages = numPages;
-    	this.cache = new LRUCache(numPages);
+    	this.partitions = new PagePartition[numPartitions];
+    	for (int i = 0; i < numPartitions; i++) {
+    		// the first numPages%numPartitions partitions take one extra frame.
+    		int capacity = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+    		partitions[i] = new PagePartition(capacity, policy.create(capacity));
+    	}
+    	// the threads are started on demand and exit when idle, so a pool that is never used to prefetch costs nothing.
+    	this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 1, TimeUnit.SECONDS,
+    			new LinkedBlockingQueue<Runnable>(), r -> {
+    				Thread t = new Thread(r, "prefetcher");
+    				t.setDaemon(true);
+    				return t;
+    			});
+    	prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    private static int defaultPartitions(int numPages) {
+    	int byCores = Runtime.getRuntime().availableProcessors();
+    	return Math.max(1, Math.min(byCores, numPages / MIN_PAGES_PER_PARTITION));
     }
     
     public static int getPageSize() {
@@ -58,6 +177,27 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /** @return the maximum number of pages in this buffer pool. */
+    public int getNumPages() {
+    	return numPages;
+    }
+
+    /** @return the number of partitions the page table is striped into. */
+    public int getNumPartitions() {
+    	return partitions.length;
+    }
+
+    /**
+     * Map a page to its partition. The hash is scrambled (Fibonacci hashing)
+     * and reduced with a multiply-shift, because PageId hash codes are not
+     * well distributed: HeapPageId hashes to the bare page number and
+     * BTreePageId keeps the page category in the low bits.
+     */
+    private PagePartition partitionOf(PageId pid) {
+    	long h = (pid.hashCode() * 0x9E3779B9L) & 0xFFFFFFFFL;
+    	return partitions[(int) ((h * partitions.length) >>> 32)];
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -74,18 +214,129 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, like
+     * {@link #getPage(TransactionId, PageId, Permissions)}.
+     *
+     * @param scan true if the page is fetched by a sequential scan that is
+     *        not expected to come back to it; the replacement policy may then
+     *        evict it before the pages of the working set.
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean scan)
         throws TransactionAbortedException, DbException {
         // some code goes here
-    	if (cache.size() > numPages)
-    		throw new DbException(null);
-    	if (cache.containsKey(pid)) { // cache hit.
-    		return cache.get(pid);
-    	} else { // cache miss.
+    	PagePartition partition = partitionOf(pid);
+    	while (true) {
+    		InFlight load;
+    		synchronized (partition) {
+    			Page page = partition.access(pid, scan);
+    			if (page != null) // cache hit.
+    				return page;
+    			// cache miss: wait for the read or write back of the page that is under way, or start a read.
+    			load = inFlight.get(pid);
+    			if (load == null) {
+    				load = readTask(pid);
+    				inFlight.put(pid, load);
+    			}
+    		}
+    		load.run();
+    		Page page = admit(partition, pid, load, scan);
+    		if (page != null)
+    			return page;
+    		// the load was discarded, and may be stale.
+    	}
+    }
+
+    private InFlight readTask(PageId pid) {
+    	return new InFlight(() -> {
     		DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    		// XXX ӿڱ̣ʹһûʵDbFile.readPage()֪Ϊ(Ҫľʵ֣ôλָPageҲͬľʵҲͬ)ôҾͿֱӱдⲿִ롣
-    		Page page = dbFile.readPage(pid);
-    		cache.put(pid, page);
-    		return page;
+    		// XXX 面向接口编程，即使我还没实现DbFile.readPage()，但我知道它的行为、它的输入输出(不需要关心具体实现，如怎么定位到指定的Page，而且不同的具体类型实现也不同)，那么我就可以直接编写出这部分代码。
+    		return dbFile.readPage(pid);
+    	}, null);
+    }
+
+    /**
+     * Wait for an in-flight load of a page and put the page into its
+     * partition, evicting another page if the partition is full. If another
+     * thread admitted the page first, that copy is returned.
+     *
+     * @return the page, or null if the load was discarded or was a write back
+     *         that failed; the caller then looks the page up again
+     * @throws DbException if the page could not be read
+     */
+    private Page admit(PagePartition partition, PageId pid, InFlight load, boolean scan) throws DbException {
+    	Page page;
+    	try {
+    		page = load.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new DbException("interrupted while waiting for page " + pid);
+    	} catch (ExecutionException e) {
+    		restore(partition, pid, load);
+    		if (load.victim != null)
+    			return null;
+    		throw new DbException("failed to read page " + pid + ": " + e.getCause().getMessage());
+    	}
+    	InFlight writeBack = null;
+    	synchronized (partition) {
+    		if (!inFlight.remove(pid, load) || partition.contains(pid))
+    			return partition.access(pid, scan);
+    		if (partition.isFull())
+    			writeBack = evictPage(partition);
+    		partition.put(pid, page, scan);
+    	}
+    	writeBack(partition, writeBack);
+    	return page;
+    }
+
+    /**
+     * Forget an in-flight load that failed. If it was the write back of an
+     * evicted page, the page is put back into its partition, over its
+     * capacity if need be, so that its changes are not lost.
+     */
+    private void restore(PagePartition partition, PageId pid, InFlight load) {
+    	synchronized (partition) {
+    		if (inFlight.remove(pid, load) && load.victim != null && !partition.contains(pid))
+    			partition.put(pid, load.victim, false);
+    	}
+    }
+
+    /**
+     * Start reading a page into the pool in the background, unless it is
+     * cached or already being read. The page is admitted like a page fetched
+     * by a sequential scan. No lock is taken: the transaction that reads the
+     * page still gets it through {@link #getPage}.
+     *
+     * @param pid the ID of the page a scan is about to read
+     */
+    public void prefetch(PageId pid) {
+    	PagePartition partition = partitionOf(pid);
+    	InFlight read;
+    	synchronized (partition) {
+    		if (partition.contains(pid) || inFlight.containsKey(pid))
+    			return;
+    		read = readTask(pid);
+    		inFlight.put(pid, read);
+    	}
+    	prefetcher.execute(() -> {
+    		read.run();
+    		try {
+    			admit(partition, pid, read, true);
+    		} catch (DbException e) {
+    			// the scan reads the page itself when it gets to it.
+    		}
+    	});
+    }
+
+    /** @return true if the page is in the pool; pages still in flight are not. */
+    public boolean isCached(PageId pid) {
+    	PagePartition partition = partitionOf(pid);
+    	synchronized (partition) {
+    		return partition.contains(pid);
     	}
     }
 
@@ -155,7 +406,7 @@ public class BufferPool {
     	ArrayList<Page> list = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
     	for (Page page: list) {
     		page.markDirty(true, tid);
-    		cache.put(page.getId(), page);
+    		cachePage(page);
     	}
     }
 
@@ -179,6 +430,39 @@ public class BufferPool {
     	ArrayList<Page> list = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
     	for (Page page: list) {
     		page.markDirty(true, tid);
+    		cachePage(page);
+    	}
+    }
+
+    /**
+     * Put a (dirtied) page into its partition, replacing any cached version
+     * of it and evicting another page if the partition is full.
+     */
+    private void cachePage(Page page) throws DbException {
+    	PageId pid = page.getId();
+    	PagePartition partition = partitionOf(pid);
+    	while (true) {
+    		InFlight load;
+    		InFlight writeBack = null;
+    		boolean cached;
+    		synchronized (partition) {
+    			load = inFlight.get(pid);
+    			// a read in flight is older than this page, and so is an evicted copy once its write back is over.
+    			cached = load == null || load.victim == null || load.isDone();
+    			if (cached) {
+    				inFlight.remove(pid);
+    				if (!partition.contains(pid) && partition.isFull())
+    					writeBack = evictPage(partition);
+    				partition.put(pid, page, false);
+    			}
+    		}
+    		if (cached) {
+    			writeBack(partition, writeBack);
+    			return;
+    		}
+    		// the write back marks the page clean when it is done, so wait for it.
+    		load.run();
+    		awaitQuietly(load);
     	}
     }
 
@@ -186,13 +470,137 @@ public class BufferPool {
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
+     *
+     * @throws IOException if the background writer failed since the last
+     *         checkpoint, before any page is written
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-    	for (Map.Entry<PageId, Page> entry: cache.entrySet()) {
-    		if (entry.getValue().isDirty() != null)
-    			flushPage(entry.getKey());
+    	checkWriter();
+    	ArrayList<InFlight> flushes = new ArrayList<InFlight>();
+    	for (PagePartition partition: partitions) {
+    		synchronized (partition) {
+    			takeDirtyPages(partition, null, flushes);
+    		}
+    	}
+    	flush(flushes);
+    	awaitWriteBacks();
+    }
+
+    /**
+     * Take the dirty pages of a partition out of it and put each in flight
+     * like an evicted page, for the caller to write with {@link #flush} once
+     * it has released the monitor. The caller must hold the monitor of the
+     * partition.
+     *
+     * @param tid take only the pages dirtied by this transaction, or every
+     *        dirty page if null
+     * @param flushes receives the in-flight writes of the pages
+     */
+    private void takeDirtyPages(PagePartition partition, TransactionId tid, List<InFlight> flushes) {
+    	ArrayList<Page> dirty = new ArrayList<Page>();
+    	for (Page page: partition.pages()) {
+    		TransactionId dirtier = page.isDirty();
+    		if (dirtier != null && (tid == null || tid.equals(dirtier)))
+    			dirty.add(page);
+    	}
+    	for (Page page: dirty)
+    		flushes.add(takePage(partition, page));
+    }
+
+    /**
+     * Take a dirty page out of its partition and put it in flight. The
+     * caller must hold the monitor of the partition.
+     */
+    private InFlight takePage(PagePartition partition, Page page) {
+    	// the policy forgets the page, and admits it anew once it is clean.
+    	partition.remove(page.getId());
+    	InFlight flush = writeTask(page);
+    	inFlight.put(page.getId(), flush);
+    	return flush;
+    }
+
+    private InFlight writeTask(Page page) {
+    	return new InFlight(() -> {
+    		flushPage(page);
+    		return page;
+    	}, page);
+    }
+
+    /**
+     * Write the pages taken by {@link #takePage}, without holding any
+     * partition monitor, and admit each page again once it is clean, unless
+     * a newer version of it was cached meanwhile.
+     *
+     * @throws IOException if a page could not be written, once all are
+     *         over; the pages that failed are back in the pool, still dirty
+     */
+    private void flush(List<InFlight> flushes) throws IOException {
+    	IOException failure = null;
+    	for (InFlight flush: flushes) {
+    		PageId pid = flush.victim.getId();
+    		PagePartition partition = partitionOf(pid);
+    		flush.run();
+    		try {
+    			flush.get();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new InterruptedIOException("interrupted while flushing page " + pid);
+    		} catch (ExecutionException e) {
+    			restore(partition, pid, flush);
+    			if (failure == null)
+    				failure = new IOException("failed to flush page " + pid, e.getCause());
+    			continue;
+    		}
+    		try {
+    			admit(partition, pid, flush, false);
+    		} catch (DbException e) {
+    			// the page is on disk; the page it had to evict failed to be written back.
+    			if (failure == null)
+    				failure = new IOException(e.getMessage(), e);
+    		}
+    	}
+    	if (failure != null)
+    		throw failure;
+    }
+
+    /**
+     * Wait for the write backs of evicted pages that are in flight.
+     *
+     * @throws IOException if one of them failed, once all are over; the
+     *         pages that failed are back in the pool
+     */
+    private void awaitWriteBacks() throws IOException {
+    	IOException failure = null;
+    	for (Map.Entry<PageId, InFlight> e : inFlight.entrySet()) {
+    		InFlight load = e.getValue();
+    		if (load.victim == null)
+    			continue;
+    		load.run();
+    		try {
+    			load.get();
+    		} catch (InterruptedException ex) {
+    			Thread.currentThread().interrupt();
+    			throw new InterruptedIOException("interrupted while writing back page " + e.getKey());
+    		} catch (ExecutionException ex) {
+    			restore(partitionOf(e.getKey()), e.getKey(), load);
+    			if (failure == null)
+    				failure = new IOException("failed to write back page " + e.getKey(), ex.getCause());
+    		}
+    	}
+    	if (failure != null)
+    		throw failure;
+    }
+
+    /** Wait for an in-flight load, whether or not it succeeds. */
+    private static void awaitQuietly(InFlight load) {
+    	try {
+    		load.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} catch (ExecutionException e) {
+    		// the waiter goes on with what is in the pool.
     	}
     }
 
@@ -204,63 +612,394 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-    	cache.remove(pid);
+    	PagePartition partition = partitionOf(pid);
+    	InFlight load;
+    	synchronized (partition) {
+    		partition.remove(pid);
+    		load = inFlight.remove(pid);
+    		// whoever discards a page with logged changes has them on disk
+    		recLSNs.remove(pid);
+    	}
+    	// so that the write back of an evicted copy does not land after whatever the caller writes.
+    	if (load != null && load.victim != null) {
+    		load.run();
+    		awaitQuietly(load);
+    	}
+    }
+
+    /** Return the pages the specified transaction dirtied to their
+        state at their last log record, dropping the changes that were
+        not logged.  Needed by the recovery manager to roll the
+        transaction back; the logged changes are undone on disk.
+
+        The restored pages stay dirty, since their last log record may
+        be of a committed change that is not on disk yet.
+    */
+    public void restorePages(TransactionId tid) {
+    	try {
+    		// the write back of an evicted page logs its changes; let it finish first.
+    		awaitWriteBacks();
+    	} catch (IOException e) {
+    		// the pages that failed are back in the pool and are restored below.
+    	}
+    	for (PagePartition partition: partitions) {
+    		synchronized (partition) {
+    			ArrayList<Page> dirtied = new ArrayList<Page>();
+    			for (Page page: partition.pages()) {
+    				if (tid.equals(page.isDirty()))
+    					dirtied.add(page);
+    			}
+    			for (Page page: dirtied) {
+    				Page restored = page.getBeforeImage();
+    				restored.setLSN(page.getLSN());
+    				restored.markDirty(true, tid);
+    				partition.put(page.getId(), restored, false);
+    			}
+    		}
+    	}
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(cache.get(pid));
+    	PagePartition partition = partitionOf(pid);
+    	InFlight flush;
+    	synchronized (partition) {
+    		Page page = partition.get(pid);
+    		if (page == null || page.isDirty() == null)
+    			return;
+    		flush = takePage(partition, page);
+    	}
+    	flush(Collections.singletonList(flush));
+    }
+
+    /** Write a page to disk and mark it clean. The page must be in flight,
+        taken out of its partition by {@link #takePage} or
+        {@link #evictPage}, so that no monitor is held while the log and the
+        disk work. */
+    private void flushPage(Page page) throws IOException {
+    	TransactionId dirtier = page.isDirty();
+    	if (dirtier != null)
+    		logPage(dirtier, page);
+    	// write ahead: the changes are in the log on disk before the page is.
+    	Database.getLogFile().flushTo(page.getLSN());
+    	Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+    	page.markDirty(false, null);
+    	recLSNs.remove(page.getId());
+    }
+
+    /** Log the changes made to a page since its last log record, if any,
+        and start its next record from here.  The caller must hold the
+        monitor of the page's partition, or have the page in flight. */
+    private void logPage(TransactionId tid, Page page) throws IOException {
+    	Page before = page.getBeforeImage();
+    	if (Arrays.equals(before.getPageData(), page.getPageData()))
+    		return;
+    	LogFile log = Database.getLogFile();
+    	// enter the page before its record exists, so that a checkpoint that
+    	// sees the record sees the entry; the end of the log now is at or
+    	// before the record.
+    	recLSNs.putIfAbsent(page.getId(), log.getCurrentLSN());
+    	page.setLSN(log.logWrite(tid, before, page));
+    	page.setBeforeImage();
+    }
+
+    /** Log the changes the specified transaction made to its pages,
+        without writing the pages: at commit, the log on disk is
+        enough to make them durable.  The pages stay dirty until they
+        are flushed or evicted.
+
+        A page of the transaction that is in flight, evicted or taken
+        by a flush, is logged by its write; that write is waited for,
+        so that the commit record comes after the page's changes.
+    */
+    public void logPages(TransactionId tid) throws IOException {
+    	for (PagePartition partition: partitions) {
+    		synchronized (partition) {
+    			for (Page page: partition.pages()) {
+    				if (tid.equals(page.isDirty()))
+    					logPage(tid, page);
+    			}
+    		}
+    	}
+    	for (Map.Entry<PageId, InFlight> e : inFlight.entrySet()) {
+    		InFlight load = e.getValue();
+    		// a page that is clean again was logged before its write.
+    		if (load.victim == null || !tid.equals(load.victim.isDirty()))
+    			continue;
+    		load.run();
+    		try {
+    			load.get();
+    		} catch (InterruptedException ex) {
+    			Thread.currentThread().interrupt();
+    			throw new InterruptedIOException("interrupted while writing back page " + e.getKey());
+    		} catch (ExecutionException ex) {
+    			// the page is back in its partition, still dirty; log it there.
+    			PagePartition partition = partitionOf(e.getKey());
+    			restore(partition, e.getKey(), load);
+    			synchronized (partition) {
+    				Page page = partition.get(e.getKey());
+    				if (page != null && tid.equals(page.isDirty()))
+    					logPage(tid, page);
+    			}
+    		}
+    	}
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	for (Map.Entry<PageId, Page> entry: cache.entrySet()) {
-    		if (entry.getValue().isDirty().equals(tid)) {
-    			flushPage(entry.getKey());
+    	ArrayList<InFlight> flushes = new ArrayList<InFlight>();
+    	for (PagePartition partition: partitions) {
+    		synchronized (partition) {
+    			takeDirtyPages(partition, tid, flushes);
+    		}
+    	}
+    	flush(flushes);
+    	awaitWriteBacks();
+    }
+
+    /**
+     * @return a copy of the dirty page table: the recLSN of each page that
+     *         has changes in the log that are not on disk yet
+     */
+    public Map<PageId, Long> dirtyPageTable() {
+    	return new HashMap<PageId, Long>(recLSNs);
+    }
+
+    /**
+     * Have the background writer write out the pages whose recLSN is below
+     * the given LSN, oldest first, a few at a time. Returns at once; the
+     * writer thread is started on demand and exits when it is done. A
+     * writer that failed is not started again until its failure has been
+     * thrown by {@link #checkWriter}.
+     */
+    public void writeDirtyPages(long lsn) {
+    	synchronized (recLSNs) {
+    		writeTarget = Math.max(writeTarget, lsn);
+    		if (writer == null && writerFailure == null) {
+    			writer = new Thread(this::runWriter, "page writer");
+    			writer.setDaemon(true);
+    			writer.start();
+    		}
+    	}
+    }
+
+    private void runWriter() {
+    	try {
+    		// a pool that was replaced, as on a simulated crash, writes no more
+    		while (Database.getBufferPool() == this) {
+    			List<PageId> batch;
+    			synchronized (recLSNs) {
+    				// decided under the lock, so a new target cannot be missed
+    				batch = oldestDirtyPages();
+    				if (batch.isEmpty()) {
+    					writer = null;
+    					return;
+    				}
+    			}
+    			for (PageId pid : batch)
+    				writeDirtyPage(pid);
+    			Thread.sleep(WRITER_PAUSE_MILLIS);
+    		}
+    	} catch (IOException e) {
+    		// the page stays in the dirty page table with its recLSN.
+    		synchronized (recLSNs) {
+    			if (writer == Thread.currentThread())
+    				writerFailure = e;
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} finally {
+    		synchronized (recLSNs) {
+    			if (writer == Thread.currentThread())
+    				writer = null;
     		}
     	}
     }
 
+    /**
+     * Throw the failure that stopped the background writer, if it has not
+     * been thrown yet; the next checkpoint starts the writer again.
+     */
+    void checkWriter() throws IOException {
+    	IOException failure;
+    	synchronized (recLSNs) {
+    		failure = writerFailure;
+    		writerFailure = null;
+    	}
+    	if (failure != null)
+    		throw new IOException("the background page writer failed: " + failure.getMessage(), failure);
+    }
+
+    /**
+     * @return up to {@link #WRITER_BATCH} pages of the dirty page table
+     *         with a recLSN below the writer's target, oldest first. The
+     *         caller must hold the monitor of recLSNs.
+     */
+    private List<PageId> oldestDirtyPages() {
+    	ArrayList<Map.Entry<PageId, Long>> due = new ArrayList<Map.Entry<PageId, Long>>();
+    	for (Map.Entry<PageId, Long> e : recLSNs.entrySet()) {
+    		if (e.getValue() < writeTarget)
+    			due.add(e);
+    	}
+    	due.sort(Map.Entry.comparingByValue());
+    	ArrayList<PageId> batch = new ArrayList<PageId>();
+    	for (int i = 0; i < due.size() && i < WRITER_BATCH; i++)
+    		batch.add(due.get(i).getKey());
+    	return batch;
+    }
+
+    /** Write a page of the dirty page table to disk, if it still is dirty.
+        The page is taken out of its partition and written like a flushed
+        page, so that hits on the partition do not wait for the write. */
+    private void writeDirtyPage(PageId pid) throws IOException {
+    	PagePartition partition = partitionOf(pid);
+    	InFlight flush;
+    	synchronized (partition) {
+    		Page page = partition.get(pid);
+    		if (page == null && !inFlight.containsKey(pid))
+    			recLSNs.remove(pid);
+    		if (page == null || page.isDirty() == null)
+    			return;
+    		flush = takePage(partition, page);
+    	}
+    	flush(Collections.singletonList(flush));
+    }
+
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * A dirty page is not written here: it is put in flight instead, for
+     * the caller to write back with {@link #writeBack} once it has released
+     * the monitor. Only the given partition is searched for a victim; the
+     * caller must hold its monitor.
+     *
+     * @return the write back of the victim, or null if it was clean
      */
-    private synchronized  void evictPage() throws DbException {
+    private InFlight evictPage(PagePartition partition) throws DbException {
         // some code goes here
         // not necessary for lab1
+    	Page victim = partition.victim();
+    	if (victim == null)
+    		throw new DbException("no page to evict in buffer pool partition");
+    	partition.evict(victim.getId());
+    	if (victim.isDirty() == null)
+    		return null;
+    	InFlight writeBack = writeTask(victim);
+    	inFlight.put(victim.getId(), writeBack);
+    	return writeBack;
     }
 
+    /**
+     * Write back a page evicted by {@link #evictPage}, without holding the
+     * monitor of its partition. Once it is on disk, requests for it read it
+     * again; if the write fails, the page is put back into the partition.
+     */
+    private void writeBack(PagePartition partition, InFlight writeBack) throws DbException {
+    	if (writeBack == null)
+    		return;
+    	PageId pid = writeBack.victim.getId();
+    	writeBack.run();
+    	try {
+    		writeBack.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new DbException("interrupted while writing back page " + pid);
+    	} catch (ExecutionException e) {
+    		restore(partition, pid, writeBack);
+    		throw new DbException("failed to flush evicted page " + pid + ": " + e.getCause().getMessage());
+    	}
+    	synchronized (partition) {
+    		inFlight.remove(pid, writeBack);
+    	}
+    }
+
+    /**
+     * A read of a page into the pool, or the write of a page evicted or
+     * taken from it; either yields the page to admit.
+     */
+    private static class InFlight extends FutureTask<Page> {
+    	// the evicted or taken page being written, or null for a read
+    	final Page victim;
+
+    	InFlight(Callable<Page> load, Page victim) {
+    		super(load);
+    		this.victim = victim;
+    	}
+    }
 }
 
-class LRUCache extends LinkedHashMap<PageId, Page>{
-    private int capacity;
+/**
+ * One stripe of the BufferPool page table: a bounded map of pages together
+ * with the replacement policy that orders them. Not thread safe by itself;
+ * BufferPool guards every partition with the partition's monitor.
+ */
+class PagePartition {
+    private final int capacity;
+    private final HashMap<PageId, Page> pages;
+    private final ReplacementPolicy policy;
     
-    public LRUCache(int capacity) {
-        super(capacity, 0.75F, true); // accessOrder the ordering mode - true foraccess-order, false for insertion-order
+    public PagePartition(int capacity, ReplacementPolicy policy) {
         this.capacity = capacity;
+        this.pages = new HashMap<PageId, Page>(capacity * 2);
+        this.policy = policy;
+    }
+
+    /** Look a page up without telling the replacement policy about it. */
+    public Page get(PageId pid) {
+        return pages.get(pid);
+    }
+
+    /** Look a page up on behalf of a client, counting it as an access. */
+    public Page access(PageId pid, boolean scan) {
+        Page page = pages.get(pid);
+        if (page != null)
+            policy.touch(pid, scan);
+        return page;
+    }
+
+    public boolean contains(PageId pid) {
+        return pages.containsKey(pid);
+    }
+
+    public void put(PageId pid, Page page, boolean scan) {
+        if (pages.put(pid, page) == null)
+            policy.admit(pid, scan);
+        else
+            policy.touch(pid, scan);
+    }
+
+    public void remove(PageId pid) {
+        if (pages.remove(pid) != null)
+            policy.remove(pid);
+    }
+
+    /** Drop a page that was chosen by {@link #victim}. */
+    public void evict(PageId pid) {
+        if (pages.remove(pid) != null)
+            policy.evict(pid);
     }
 
-    public Page get(PageId key) {
-        return super.getOrDefault(key, null);
+    public boolean isFull() {
+        return pages.size() >= capacity;
     }
 
-    public Page put(PageId key, Page value) {
-        return super.put(key, value);
+    public Iterable<Page> pages() {
+        return pages.values();
     }
 
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<PageId, Page> eldest) {
-        return size() > capacity; 
+    /** @return the page the replacement policy wants to evict next, or null if the partition is empty */
+    public Page victim() {
+        PageId pid = policy.victim();
+        return pid == null ? null : pages.get(pid);
     }
 }
@@ -22,7 +22,7 @@ public class Catalog {
 	
 	private class Table {
 		public String tableName;
-		public DbFile dbFile; // һTableһDbFile
+		public DbFile dbFile; // 一个Table与一个DbFile关联。
 		public String pkeyField;
 		
 		public Table(DbFile dbFile, String tableName, String pkeyField) {
@@ -137,14 +137,28 @@ public class Catalog {
         return table.tableName;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their DbFiles */
     public void clear() {
         // some code goes here
+    	for (Table table: tables.values()) {
+    		try {
+    			table.dbFile.close();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    	}
     	tables.clear();
+    	name2ID.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as
+     * <pre>
+     *     name (field type [pk], field type [pk], ...) [mmap]
+     * </pre>
+     * where the optional <code>mmap</code> option makes the table's HeapFile
+     * use the memory mapped read path.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -186,6 +200,17 @@ public class Catalog {
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                for (String option : options.split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    if (option.toLowerCase().equals("mmap"))
+                        tabHf.setMemoryMapped(true);
+                    else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
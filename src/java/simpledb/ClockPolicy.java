@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement. Frames form a ring with one reference
+ * bit each; a hit only sets the bit, and the hand clears bits until it finds
+ * a page whose bit is already clear. Pages fetched by sequential scans are
+ * admitted with the bit clear and scan hits do not set it, so they are
+ * replaced on the first sweep of the hand.
+ * <p>
+ * The ring starts with one frame per page of capacity, and grows if a page
+ * is admitted while every frame is taken, as when the BufferPool puts back
+ * an evicted page whose write back failed.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+	private PageId[] frames;
+	private boolean[] referenced;
+	private final HashMap<PageId, Integer> slots;
+	private final ArrayDeque<Integer> freeSlots;
+	private int hand;
+
+	public ClockPolicy(int capacity) {
+		this.frames = new PageId[capacity];
+		this.referenced = new boolean[capacity];
+		this.slots = new HashMap<PageId, Integer>();
+		this.freeSlots = new ArrayDeque<Integer>();
+		for (int i = 0; i < capacity; i++)
+			freeSlots.add(i);
+		this.hand = 0;
+	}
+
+	@Override
+	public void admit(PageId pid, boolean scan) {
+		if (freeSlots.isEmpty())
+			grow();
+		int slot = freeSlots.poll();
+		frames[slot] = pid;
+		referenced[slot] = !scan;
+		slots.put(pid, slot);
+	}
+
+	/** Double the number of frames; the new ones follow the old ones in the ring. */
+	private void grow() {
+		int size = frames.length;
+		frames = Arrays.copyOf(frames, Math.max(1, 2 * size));
+		referenced = Arrays.copyOf(referenced, frames.length);
+		for (int i = size; i < frames.length; i++)
+			freeSlots.add(i);
+	}
+
+	@Override
+	public void touch(PageId pid, boolean scan) {
+		Integer slot = slots.get(pid);
+		if (slot != null && !scan)
+			referenced[slot] = true;
+	}
+
+	@Override
+	public PageId victim() {
+		if (slots.isEmpty())
+			return null;
+		// two sweeps are enough: the first one clears every reference bit.
+		for (int i = 0; i <= 2 * frames.length; i++) {
+			if (frames[hand] != null) {
+				if (!referenced[hand])
+					return frames[hand];
+				referenced[hand] = false;
+			}
+			hand = (hand + 1) % frames.length;
+		}
+		return null;
+	}
+
+	@Override
+	public void evict(PageId pid) {
+		remove(pid);
+	}
+
+	@Override
+	public void remove(PageId pid) {
+		Integer slot = slots.remove(pid);
+		if (slot == null)
+			return;
+		frames[slot] = null;
+		referenced[slot] = false;
+		freeSlots.add(slot);
+	}
+}
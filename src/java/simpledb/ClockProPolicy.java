@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.util.HashMap;
+
+/**
+ * CLOCK-Pro replacement (Jiang, Chen and Zhang, USENIX 2005). Pages are
+ * classified as hot or cold by their reuse distance, and all of them sit on
+ * a single clock together with non-resident cold pages whose "test period"
+ * is still running. Three hands sweep the clock:
+ * <ul>
+ * <li>HAND_cold replaces resident cold pages. A cold page referenced during
+ * its test period becomes hot; otherwise it gets a new test period.</li>
+ * <li>HAND_hot turns hot pages that were not referenced since its last pass
+ * into cold ones, and ends the test period of the cold pages it passes.</li>
+ * <li>HAND_test ends test periods to bound the number of non-resident
+ * pages.</li>
+ * </ul>
+ * The number of frames given to cold pages adapts: it grows when a cold page
+ * is reused during its test period and shrinks when a test period ends
+ * without reuse.
+ * <p>
+ * Pages fetched by sequential scans are admitted cold and without a test
+ * period, and scan hits do not set their reference bit, so they are replaced
+ * on the first pass of HAND_cold and never become hot.
+ */
+public class ClockProPolicy implements ReplacementPolicy {
+
+	private static class Node {
+		final PageId pid;
+		boolean hot;
+		boolean resident;
+		boolean referenced;
+		boolean test;
+		Node prev, next;
+
+		Node(PageId pid) {
+			this.pid = pid;
+		}
+	}
+
+	private final int capacity;
+	private final HashMap<PageId, Node> nodes;
+	// the clock is a circular list, new pages are linked in right behind handHot.
+	private Node handHot, handCold, handTest;
+	private int coldTarget;
+	private int numHot, numCold, numNonResident;
+
+	public ClockProPolicy(int capacity) {
+		this.capacity = capacity;
+		this.nodes = new HashMap<PageId, Node>();
+		this.coldTarget = Math.max(1, capacity / 2);
+	}
+
+	@Override
+	public void admit(PageId pid, boolean scan) {
+		Node n = nodes.get(pid);
+		if (n != null && n.resident) {
+			touch(pid, scan);
+			return;
+		}
+		if (n != null) {
+			// a non-resident cold page in its test period, its reuse distance is short.
+			unlink(n);
+			numNonResident--;
+			if (!scan) {
+				coldTarget = Math.min(coldTarget + 1, capacity);
+				n.hot = true;
+				n.resident = true;
+				n.referenced = false;
+				n.test = false;
+				link(n);
+				numHot++;
+				balanceHot();
+				return;
+			}
+		}
+		n = new Node(pid);
+		n.resident = true;
+		n.test = !scan;
+		link(n);
+		numCold++;
+	}
+
+	@Override
+	public void touch(PageId pid, boolean scan) {
+		Node n = nodes.get(pid);
+		if (n != null && !scan)
+			n.referenced = true;
+	}
+
+	@Override
+	public PageId victim() {
+		if (numHot + numCold == 0)
+			return null;
+		for (int i = 0, limit = 4 * nodes.size() + 4; i < limit; i++) {
+			if (numCold == 0)
+				runHandHot();
+			Node n = handCold;
+			if (!n.resident || n.hot) {
+				handCold = n.next;
+				continue;
+			}
+			if (!n.referenced)
+				return n.pid;
+			n.referenced = false;
+			handCold = n.next;
+			unlink(n);
+			if (n.test) {
+				// reused in its test period: promote it.
+				coldTarget = Math.min(coldTarget + 1, capacity);
+				n.hot = true;
+				n.test = false;
+				numCold--;
+				numHot++;
+				link(n);
+				balanceHot();
+			} else {
+				n.test = true;
+				link(n);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void evict(PageId pid) {
+		Node n = nodes.get(pid);
+		if (n == null)
+			return;
+		if (n.hot) {
+			remove(pid);
+			return;
+		}
+		numCold--;
+		if (n.test) {
+			// keep it around as a non-resident page until its test period ends.
+			n.resident = false;
+			n.referenced = false;
+			numNonResident++;
+			if (handCold == n)
+				handCold = n.next;
+			while (numNonResident > capacity)
+				runHandTest();
+		} else {
+			unlink(n);
+		}
+	}
+
+	@Override
+	public void remove(PageId pid) {
+		Node n = nodes.get(pid);
+		if (n == null)
+			return;
+		if (!n.resident)
+			numNonResident--;
+		else if (n.hot)
+			numHot--;
+		else
+			numCold--;
+		unlink(n);
+	}
+
+	/** Demote hot pages while there are more of them than the hot target allows. */
+	private void balanceHot() {
+		while (numHot > 0 && numHot > capacity - coldTarget)
+			runHandHot();
+	}
+
+	/** Move HAND_hot until one hot page has been turned cold. */
+	private void runHandHot() {
+		for (int i = 0, limit = 2 * nodes.size() + 2; i < limit && numHot > 0; i++) {
+			Node n = handHot;
+			handHot = n.next;
+			if (n.hot) {
+				if (n.referenced) {
+					n.referenced = false;
+				} else {
+					n.hot = false;
+					n.test = false;
+					numHot--;
+					numCold++;
+					return;
+				}
+			} else if (n.test) {
+				endTest(n);
+			}
+		}
+	}
+
+	/** Move HAND_test until one non-resident page has been dropped. */
+	private void runHandTest() {
+		for (int i = 0, limit = 2 * nodes.size() + 2; i < limit && numNonResident > 0; i++) {
+			Node n = handTest;
+			handTest = n.next;
+			if (!n.hot && n.test) {
+				boolean resident = n.resident;
+				endTest(n);
+				if (!resident)
+					return;
+			}
+		}
+	}
+
+	/** A cold page passed its test period without being reused. */
+	private void endTest(Node n) {
+		n.test = false;
+		coldTarget = Math.max(coldTarget - 1, 1);
+		if (!n.resident) {
+			numNonResident--;
+			unlink(n);
+		}
+	}
+
+	/** Link a node in at the head of the clock, right behind HAND_hot. */
+	private void link(Node n) {
+		nodes.put(n.pid, n);
+		if (handHot == null) {
+			n.prev = n.next = n;
+			handHot = handCold = handTest = n;
+			return;
+		}
+		n.next = handHot;
+		n.prev = handHot.prev;
+		handHot.prev.next = n;
+		handHot.prev = n;
+	}
+
+	/** Take a node off the clock, moving any hand that points at it. */
+	private void unlink(Node n) {
+		nodes.remove(n.pid);
+		if (n.next == n) {
+			handHot = handCold = handTest = null;
+		} else {
+			if (handHot == n)
+				handHot = n.next;
+			if (handCold == n)
+				handCold = n.next;
+			if (handTest == n)
+				handTest = n.next;
+			n.prev.next = n.next;
+			n.next.prev = n.prev;
+		}
+		n.prev = n.next = null;
+	}
+}
@@ -75,6 +75,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        _instance.get()._catalog.clear();
         _instance.set(new Database());
     }
 
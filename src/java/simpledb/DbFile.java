@@ -88,4 +88,15 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Releases the operating system resources (e.g. the open file channel)
+     * held by this DbFile. Called by {@link Catalog#clear} when the table is
+     * dropped from the catalog. A closed DbFile may still be used afterwards,
+     * in which case it reacquires what it needs.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public default void close() throws IOException {
+    }
 }
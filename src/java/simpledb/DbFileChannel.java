@@ -0,0 +1,248 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * DbFileChannel is the long-lived handle a DbFile uses to read and write its
+ * backing file. All I/O is positional ({@link FileChannel#read(ByteBuffer, long)}
+ * and {@link FileChannel#write(ByteBuffer, long)}), so concurrent readers
+ * never have to agree on a file pointer.
+ * <p>
+ * The channel is opened on first use and stays open until {@link #close()};
+ * a closed DbFileChannel transparently reopens on the next access. Reads
+ * open the file read-only, so that read-only files can be read; the first
+ * write reopens it for writing. Only a write creates the file; reading or
+ * sizing a file that does not exist fails with a
+ * {@link java.nio.file.NoSuchFileException}. Because an
+ * interrupt of any thread in the middle of an operation closes a FileChannel
+ * for everybody, operations that fail on a channel that was closed under them
+ * are retried on a fresh one.
+ * <p>
+ * In mapped mode (see {@link #setMapped}) the file is additionally mapped
+ * into memory in segments of {@link #MAP_SEGMENT_SIZE} bytes, and
+ * {@link #slice} hands out views of the mapping so that pages can be read
+ * without a system call. Pages still copy the bytes out of a view: the
+ * mapping follows every later write to the file, so a page that kept a view
+ * would change under its readers when the page is written back. A segment
+ * that was mapped while the file was shorter is remapped when a read goes
+ * beyond its end. Writes always go through the channel; they share the OS
+ * page cache with the mapping and are therefore visible through it.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** Size in bytes of the segments the file is mapped in. */
+	public static final int MAP_SEGMENT_SIZE = 1 << 26;
+
+	private final File file;
+	private volatile FileChannel channel;
+	private volatile boolean writable;
+	private volatile boolean mapped;
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	public DbFileChannel(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @param write true to get a channel open for writing, which creates the
+	 *        file if it does not exist; otherwise the channel may be
+	 *        read-only and a missing file is an error
+	 */
+	private FileChannel channel(boolean write) throws IOException {
+		FileChannel ch = channel;
+		if (ch == null || !ch.isOpen() || (write && !writable)) {
+			synchronized (this) {
+				ch = channel;
+				if (ch == null || !ch.isOpen() || (write && !writable)) {
+					// a read on the read-only channel that is closed here
+					// retries on the new one.
+					if (ch != null)
+						ch.close();
+					ch = write
+							? FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+									StandardOpenOption.READ, StandardOpenOption.WRITE)
+							: FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					writable = write;
+					channel = ch;
+				}
+			}
+		}
+		return ch;
+	}
+
+	/**
+	 * Read bytes starting at the given file position until dst is full or the
+	 * end of the file is reached.
+	 *
+	 * @return the number of bytes read, smaller than dst.remaining() only at
+	 *         the end of the file
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		int start = dst.position();
+		for (int attempt = 1; ; attempt++) {
+			try {
+				FileChannel ch = channel(false);
+				while (dst.hasRemaining()) {
+					int n = ch.read(dst, position + dst.position() - start);
+					if (n < 0)
+						break;
+				}
+				return dst.position() - start;
+			} catch (ClosedByInterruptException e) {
+				throw interrupted(e);
+			} catch (ClosedChannelException e) {
+				if (attempt == MAX_ATTEMPTS)
+					throw e;
+			}
+		}
+	}
+
+	/** Read into the whole of dst; see {@link #read(ByteBuffer, long)}. */
+	public int read(byte[] dst, long position) throws IOException {
+		return read(ByteBuffer.wrap(dst), position);
+	}
+
+	/**
+	 * Write all of src at the given file position, extending the file if
+	 * necessary.
+	 */
+	public void write(byte[] src, long position) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			ByteBuffer buf = ByteBuffer.wrap(src);
+			try {
+				FileChannel ch = channel(true);
+				while (buf.hasRemaining())
+					ch.write(buf, position + buf.position());
+				return;
+			} catch (ClosedByInterruptException e) {
+				throw interrupted(e);
+			} catch (ClosedChannelException e) {
+				if (attempt == MAX_ATTEMPTS)
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Turn the memory mapped read path on or off.
+	 */
+	public synchronized void setMapped(boolean mapped) {
+		this.mapped = mapped;
+		if (!mapped)
+			segments = new MappedByteBuffer[0];
+	}
+
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Return a read-only view of the length bytes at the given position,
+	 * taken straight from the mapping of the file.
+	 *
+	 * @return the view, or null if the channel is not in mapped mode, the
+	 *         range crosses a segment boundary or lies past the end of the
+	 *         file; the caller should then fall back to {@link #read}
+	 */
+	public ByteBuffer slice(long position, int length) throws IOException {
+		if (!mapped || position < 0)
+			return null;
+		int index = (int) (position / MAP_SEGMENT_SIZE);
+		int offset = (int) (position % MAP_SEGMENT_SIZE);
+		if (offset + length > MAP_SEGMENT_SIZE)
+			return null;
+		MappedByteBuffer segment;
+		try {
+			segment = segment(index, offset + length);
+		} catch (ClosedByInterruptException e) {
+			throw interrupted(e);
+		} catch (ClosedChannelException e) {
+			return null;
+		}
+		if (segment == null)
+			return null;
+		ByteBuffer view = segment.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice();
+	}
+
+	/**
+	 * Get segment index, mapped over at least its first needed bytes. The
+	 * segment is (re)mapped if it was not mapped yet or the file has grown
+	 * since.
+	 *
+	 * @return the segment, or null if the file is too short
+	 */
+	private MappedByteBuffer segment(int index, int needed) throws IOException {
+		MappedByteBuffer[] segs = segments;
+		if (index < segs.length && segs[index] != null && segs[index].capacity() >= needed)
+			return segs[index];
+		synchronized (this) {
+			segs = segments;
+			if (index < segs.length && segs[index] != null && segs[index].capacity() >= needed)
+				return segs[index];
+			long start = (long) index * MAP_SEGMENT_SIZE;
+			long length = Math.min(MAP_SEGMENT_SIZE, channel(false).size() - start);
+			if (length < needed)
+				return null;
+			MappedByteBuffer segment = channel(false).map(FileChannel.MapMode.READ_ONLY, start, length);
+			segs = Arrays.copyOf(segs, Math.max(segs.length, index + 1));
+			segs[index] = segment;
+			segments = segs;
+			return segment;
+		}
+	}
+
+	/** @return the current size of the file in bytes */
+	public long size() throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return channel(false).size();
+			} catch (ClosedByInterruptException e) {
+				throw interrupted(e);
+			} catch (ClosedChannelException e) {
+				if (attempt == MAX_ATTEMPTS)
+					throw e;
+			}
+		}
+	}
+
+	/** Force written data to the storage device. */
+	public void force() throws IOException {
+		FileChannel ch = channel;
+		if (ch != null && ch.isOpen())
+			ch.force(false);
+	}
+
+	/** Close the channel; it is reopened on the next access. */
+	public synchronized void close() throws IOException {
+		FileChannel ch = channel;
+		channel = null;
+		segments = new MappedByteBuffer[0];
+		if (ch != null)
+			ch.close();
+	}
+
+	private static InterruptedIOException interrupted(ClosedByInterruptException e) {
+		InterruptedIOException ie = new InterruptedIOException("interrupted during I/O");
+		ie.initCause(e);
+		return ie;
+	}
+}
@@ -0,0 +1,488 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange moves tuples between threads, so that parts of a plan can run in
+ * parallel without the operators in them being aware of threads. An
+ * exchange runs each of its producers, the plans below it, on a thread of
+ * its own, and hands their output to one or more consumers, which the plan
+ * above reads like any other child:
+ * <ul>
+ * <li>{@link #gather} merges the output of several producers into one
+ * consumer;</li>
+ * <li>{@link #repartition} splits the output of a producer among n
+ * consumers on the hash of a field, so that all the tuples with the same
+ * value of the field go to the same consumer;</li>
+ * <li>{@link #broadcast} sends all the output of a producer to each of n
+ * consumers.</li>
+ * </ul>
+ * Each consumer reads from a bounded queue of {@link #QUEUE_BATCHES}
+ * batches per producer, so a producer that runs ahead of a consumer waits
+ * for it. A partition-parallel hash join, for instance, repartitions both
+ * of its inputs on the join fields into n consumers, joins consumer i of
+ * one side with consumer i of the other, and gathers the n joins.
+ * <p>
+ * The producers start when the first consumer of an exchange is opened, and
+ * stop once every consumer has been closed; a consumer that is closed early
+ * has the rest of its share dropped, so that it does not hold up its
+ * siblings. Closing the last consumer waits for each producer to return
+ * from the call it is in. Producers are never interrupted, since an
+ * interrupt during a read would close the channel of the file being read.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of batches of each producer a consumer may have queued. */
+    public static final int QUEUE_BATCHES = 4;
+    /** How long a producer waits on a full queue before checking that its consumer is still open. */
+    private static final long OFFER_WAIT_MS = 10;
+    /** Queued by a producer that is done. */
+    private static final TupleBatch END = new TupleBatch(Utility.getTupleDesc(1), 1);
+
+    private enum Kind {
+        GATHER, HASH, BROADCAST
+    }
+
+    /**
+     * @return a name for the exchange in query plans
+     */
+    public abstract String getName();
+
+    /**
+     * Merge the output of several producers, which must have the same
+     * TupleDesc, in no particular order.
+     *
+     * @return the consumer of all the producers
+     */
+    public static Exchange gather(OpIterator... producers) {
+        if (producers.length == 0)
+            throw new IllegalArgumentException("nothing to gather");
+        return new Gather(new Channel(Kind.GATHER, producers, -1, 1));
+    }
+
+    /**
+     * Split the output of a producer among n consumers on the hash of a
+     * field. The consumers cannot be rewound.
+     *
+     * @param field
+     *            the index of the field tuples are routed on
+     * @return the n consumers
+     */
+    public static Exchange[] repartition(OpIterator producer, int field, int n) {
+        Channel channel = new Channel(Kind.HASH, new OpIterator[] { producer }, field, n);
+        Exchange[] consumers = new Exchange[n];
+        for (int i = 0; i < n; i++)
+            consumers[i] = new Partition(channel, i);
+        return consumers;
+    }
+
+    /**
+     * Send the output of a producer to each of n consumers. Every consumer
+     * reads all of its input into memory when it is opened, which is what
+     * lets it be rewound, so the producer should be small.
+     *
+     * @return the n consumers
+     */
+    public static Exchange[] broadcast(OpIterator producer, int n) {
+        Channel channel = new Channel(Kind.BROADCAST, new OpIterator[] { producer }, -1, n);
+        Exchange[] consumers = new Exchange[n];
+        for (int i = 0; i < n; i++)
+            consumers[i] = new Broadcast(channel, i);
+        return consumers;
+    }
+
+    /**
+     * @return the consumer of a repartitioning exchange with n consumers
+     *         that gets the tuples whose routing field is in row i of batch
+     */
+    static int partition(TupleBatch batch, int field, int i, int n) {
+        int h = batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE ? batch.getInt(field, i)
+                : batch.getField(field, i).hashCode();
+        h *= 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % n;
+    }
+
+    /** The producers of an exchange, shared by its consumers. */
+    private static final class Channel {
+        final Kind kind;
+        OpIterator[] producers;
+        final int field;
+        final int numConsumers;
+        final TupleDesc td;
+        // the run the consumers are reading, from the first open() to the last close().
+        private Run current = null;
+
+        Channel(Kind kind, OpIterator[] producers, int field, int numConsumers) {
+            if (numConsumers < 1)
+                throw new IllegalArgumentException("an exchange needs a consumer");
+            this.kind = kind;
+            this.producers = producers.clone();
+            this.field = field;
+            this.numConsumers = numConsumers;
+            this.td = producers[0].getTupleDesc();
+        }
+
+        /**
+         * Join the current run as consumer i, starting a new one if there
+         * is none.
+         */
+        synchronized Run attach(int i) {
+            if (current == null) {
+                current = new Run(this);
+                current.start();
+            } else if (current.closed[i]) {
+                throw new IllegalStateException("consumer " + i + " of the exchange was reopened before its siblings were closed");
+            }
+            return current;
+        }
+
+        /**
+         * Leave the current run as consumer i, stopping it if i was the
+         * last consumer still open.
+         */
+        void detach(int i) {
+            Run done = null;
+            synchronized (this) {
+                if (current == null || current.closed[i])
+                    return;
+                current.closed[i] = true;
+                current.queues.get(i).clear();
+                if (++current.numClosed == numConsumers) {
+                    done = current;
+                    current = null;
+                }
+            }
+            if (done != null)
+                done.stop();
+        }
+    }
+
+    /** The state of one run of the producers of a Channel. */
+    private static final class Run {
+        final Channel channel;
+        final ArrayList<BlockingQueue<TupleBatch>> queues = new ArrayList<BlockingQueue<TupleBatch>>();
+        final boolean[] closed;
+        int numClosed = 0;
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final Thread[] threads;
+
+        Run(Channel channel) {
+            this.channel = channel;
+            for (int i = 0; i < channel.numConsumers; i++)
+                queues.add(new ArrayBlockingQueue<TupleBatch>(QUEUE_BATCHES * channel.producers.length));
+            this.closed = new boolean[channel.numConsumers];
+            this.threads = new Thread[channel.producers.length];
+        }
+
+        void start() {
+            for (int p = 0; p < threads.length; p++) {
+                final OpIterator producer = channel.producers[p];
+                threads[p] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        produce(producer);
+                    }
+                }, "exchange-producer-" + p);
+                threads[p].setDaemon(true);
+                threads[p].start();
+            }
+        }
+
+        private void produce(OpIterator producer) {
+            try {
+                try {
+                    producer.open();
+                    TupleBatch batch;
+                    if (channel.kind == Kind.HASH) {
+                        route(producer);
+                    } else {
+                        while (!stopped.get() && (batch = producer.nextBatch()) != null) {
+                            for (int i = 0; i < queues.size(); i++)
+                                offer(i, batch);
+                        }
+                    }
+                } finally {
+                    producer.close();
+                }
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                for (int i = 0; i < queues.size(); i++)
+                    offer(i, END);
+            }
+        }
+
+        /** Copy the rows of the producer into a batch per consumer. */
+        private void route(OpIterator producer) throws DbException, TransactionAbortedException {
+            TupleBatch[] pending = new TupleBatch[queues.size()];
+            TupleBatch batch;
+            while (!stopped.get() && (batch = producer.nextBatch()) != null) {
+                for (int r = 0; r < batch.size(); r++) {
+                    int i = partition(batch, channel.field, r, pending.length);
+                    if (pending[i] == null)
+                        pending[i] = new TupleBatch(channel.td);
+                    pending[i].append(batch, r);
+                    if (pending[i].isFull()) {
+                        offer(i, pending[i]);
+                        pending[i] = null;
+                    }
+                }
+            }
+            for (int i = 0; i < pending.length; i++) {
+                if (pending[i] != null)
+                    offer(i, pending[i]);
+            }
+        }
+
+        /**
+         * Queue a batch for consumer i, waiting while its queue is full.
+         * The batch is dropped if the consumer is closed in the meantime.
+         */
+        private void offer(int i, TupleBatch batch) {
+            try {
+                while (!stopped.get() && !isClosed(i)) {
+                    if (queues.get(i).offer(batch, OFFER_WAIT_MS, TimeUnit.MILLISECONDS))
+                        return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private boolean isClosed(int i) {
+            synchronized (channel) {
+                return closed[i];
+            }
+        }
+
+        /** Stop the producers and wait for their threads to end. */
+        void stop() {
+            stopped.set(true);
+            for (BlockingQueue<TupleBatch> queue : queues)
+                queue.clear();
+            for (Thread t : threads) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        void rethrow() throws DbException, TransactionAbortedException {
+            Exception e = failure.get();
+            if (e instanceof DbException)
+                throw (DbException) e;
+            if (e instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e;
+            if (e != null)
+                throw new DbException("exchange producer failed: " + e);
+        }
+    }
+
+    /** The part of an exchange that one thread reads from. */
+    private static abstract class Consumer extends Exchange {
+
+        private static final long serialVersionUID = 1L;
+
+        final Channel channel;
+        final int index;
+        private transient Run run;
+        private transient int ends;
+        private transient TupleBatch current;
+        private transient int pos;
+
+        Consumer(Channel channel, int index) {
+            this.channel = channel;
+            this.index = index;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            run = channel.attach(index);
+            ends = 0;
+            current = null;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            channel.detach(index);
+            run = null;
+            current = null;
+        }
+
+        /** Drop the batch next() is in. */
+        void restart() {
+            current = null;
+        }
+
+        /**
+         * @return the next batch queued for this consumer, or null once
+         *         every producer is done
+         */
+        TupleBatch take() throws DbException, TransactionAbortedException {
+            if (run == null)
+                throw new IllegalStateException("the exchange is not open");
+            while (ends < channel.producers.length) {
+                TupleBatch batch;
+                try {
+                    batch = run.queues.get(index).take();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while waiting for the exchange");
+                }
+                if (batch != END)
+                    return batch;
+                ends++;
+                run.rethrow();
+            }
+            return null;
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (current == null || pos >= current.size()) {
+                current = take();
+                pos = 0;
+                if (current == null)
+                    return null;
+            }
+            return current.getTuple(pos++);
+        }
+
+        @Override
+        public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+            // finish the batch next() is in first.
+            if (current != null && pos < current.size())
+                return super.nextBatch();
+            current = null;
+            return take();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return channel.td;
+        }
+
+        public OpIterator[] getChildren() {
+            return channel.producers.clone();
+        }
+
+        /**
+         * Replace the producers of the exchange, for every one of its
+         * consumers.
+         */
+        public void setChildren(OpIterator[] children) {
+            if (children.length != channel.producers.length)
+                throw new IllegalArgumentException("expected " + channel.producers.length + " producers");
+            channel.producers = children.clone();
+        }
+    }
+
+    /** The consumer of a gathering exchange. */
+    private static final class Gather extends Consumer {
+
+        private static final long serialVersionUID = 1L;
+
+        Gather(Channel channel) {
+            super(channel, 0);
+        }
+
+        public String getName() {
+            return "Gather(" + channel.producers.length + ")";
+        }
+
+        /** Start the producers over. */
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+    }
+
+    /** A consumer of a repartitioning exchange. */
+    private static final class Partition extends Consumer {
+
+        private static final long serialVersionUID = 1L;
+
+        Partition(Channel channel, int index) {
+            super(channel, index);
+        }
+
+        public String getName() {
+            return "Repartition(" + channel.td.getFieldName(channel.field) + ")[" + index + "]";
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            throw new DbException("a partition of an Exchange cannot be rewound");
+        }
+    }
+
+    /**
+     * A consumer of a broadcasting exchange, which keeps what it reads so
+     * that it can be rewound. The batches are shared with the other
+     * consumers, so nextBatch() hands out copies.
+     */
+    private static final class Broadcast extends Consumer {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient ArrayList<TupleBatch> batches;
+        private transient int nextBatch;
+
+        Broadcast(Channel channel, int index) {
+            super(channel, index);
+        }
+
+        public String getName() {
+            return "Broadcast[" + index + "]";
+        }
+
+        /**
+         * Read all of the input, so that the producer never waits on this
+         * consumer while its parent reads another child.
+         */
+        public void open() throws DbException, TransactionAbortedException {
+            super.open();
+            batches = new ArrayList<TupleBatch>();
+            TupleBatch batch;
+            while ((batch = super.take()) != null)
+                batches.add(batch);
+            nextBatch = 0;
+        }
+
+        public void close() {
+            super.close();
+            batches = null;
+        }
+
+        @Override
+        TupleBatch take() {
+            if (batches == null)
+                throw new IllegalStateException("the exchange is not open");
+            return nextBatch < batches.size() ? batches.get(nextBatch++) : null;
+        }
+
+        @Override
+        public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+            TupleBatch shared = super.nextBatch();
+            if (shared == null)
+                return null;
+            TupleBatch batch = new TupleBatch(shared.getTupleDesc(), shared.size());
+            for (int i = 0; i < shared.size(); i++)
+                batch.append(shared, i);
+            return batch;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            nextBatch = 0;
+            restart();
+        }
+    }
+}
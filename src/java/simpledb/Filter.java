@@ -39,8 +39,8 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
-    	// ˣFilterҲһOperatorҲһOpIterator
-    	// ҪȷָõǸopen()open()߻޵ݹ顣
+    	// 别忘了，Filter也是一个Operator，也是一个OpIterator。
+    	// 这里要明确指出调用的是父类的open()，而不是子类的open()，后者会无限递归。
     	super.open();
     	childIterator.open();
     }
@@ -69,7 +69,7 @@ public class Filter extends Operator {
             TransactionAbortedException, DbException {
         // some code goes here
     	Tuple tuple;
-    	// ǽӿڵǿ֮ԼĽӿڣԼΪҪ֪ͣSeqScanǱģνɵԵõTuple͹ˡ
+    	// 这就是接口的强大之处，约定的接口，约定的行为、输入输出，不需要知道具体类型，是SeqScan还是别的，无所谓，反正迭代这个可迭代对象可以得到Tuple就够了。
     	while (childIterator.hasNext()) {
     		tuple = childIterator.next();
     		if (predicate.filter(tuple)) {
@@ -79,6 +79,24 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Filters whole batches of the child by narrowing their selection, see
+     * {@link Predicate#filter(TupleBatch)}.
+     *
+     * @return The next batch with at least one tuple that passes the filter,
+     *         or null if there are no more tuples
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+    	TupleBatch batch;
+    	while ((batch = childIterator.nextBatch()) != null) {
+    		predicate.filter(batch);
+    		if (!batch.isEmpty())
+    			return batch;
+    	}
+    	return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,284 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.IntPredicate;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile have at least one free
+ * slot, so that an insert can go straight to such a page instead of reading
+ * the file from the start until it finds one.
+ * <p>
+ * The map is a bitmap with one bit per page, plus a summary with one bit per
+ * 64 pages that is set while any of those pages has room, so that finding a
+ * page with room looks at one bit per 64 pages at most. It is kept in two
+ * versions. The in-memory one follows the pages as they are changed in the
+ * BufferPool (see {@link #set}). The persistent one follows the pages as they
+ * are written to disk (see {@link #written}) and is stored next to the heap
+ * file, in a file with the extension ".fsm". Its header identifies the heap
+ * file it belongs to, by its file key (such as its inode number) and its
+ * length in bytes, and holds the number of pages the map covers; the bitmap
+ * follows. Only the byte of a page whose bit changes is rewritten, which
+ * happens when the page fills up or gets its first free slot back, not on
+ * every write.
+ * <p>
+ * A heap file that grows in chunks (see {@link HeapFile#setGrowthBytes}) is
+ * longer than the pages in use. The pages the map file covers are the high
+ * water mark of the pages ever written, and the pages between it and the
+ * end of the heap file have only ever been written with zeros. When the map
+ * file cannot be used, the heap file finds the mark by scanning back over
+ * those pages, and a rebuilt map covers the pages up to it.
+ * <p>
+ * The map is a hint: callers check the page they are sent to, and report it
+ * full if it turns out to be (for instance because the transaction that
+ * freed a slot aborted). A map file whose header does not match the heap
+ * file, because it is missing, or the heap file was replaced or written
+ * without the map, is rebuilt from all the pages of the heap file when the
+ * map is opened. Whatever creates or truncates a heap file deletes its map
+ * file as well.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+    private static final int MAGIC = 0x46534d31;
+    // magic, identity of the heap file, length of the heap file, pages covered.
+    private static final int HEADER_SIZE = 20;
+
+    private final File heapFile;
+    private final int identity;
+    private final DbFileChannel channel;
+    private long[] free = new long[0];
+    private long[] summary = new long[0];
+    private byte[] onDisk = new byte[0];
+    private int numPages;
+    private int fileCovered; // the number of pages the map file covers
+
+    private FreeSpaceMap(File heapFile) throws IOException {
+        this.heapFile = heapFile;
+        this.identity = identity(heapFile);
+        this.channel = new DbFileChannel(fileFor(heapFile));
+    }
+
+    /** @return the file the map of the given heap file is stored in */
+    public static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Open the map of a heap file, rebuilding it if its file does not
+     * match the heap file.
+     *
+     * @param filePages
+     *            the number of pages of the heap file, including the ones
+     *            allocated ahead of use
+     * @param inUse
+     *            the number of pages in use, which a rebuilt map covers
+     * @param hasFreeSlot
+     *            reads a page of the heap file from disk and tells whether it
+     *            has a free slot; used to rebuild the map
+     */
+    public static FreeSpaceMap open(File heapFile, int filePages, int inUse, IntPredicate hasFreeSlot)
+            throws IOException {
+        FreeSpaceMap map = new FreeSpaceMap(heapFile);
+        if (!map.load(filePages)) {
+            map.rebuild(inUse, hasFreeSlot);
+        }
+        return map;
+    }
+
+    /**
+     * Read the high water mark of a heap file from its map file, without
+     * opening the map.
+     *
+     * @return the number of pages in use, or -1 if the map file is missing
+     *         or does not match the heap file
+     */
+    public static int readHighWater(File heapFile, int filePages) throws IOException {
+        File f = fileFor(heapFile);
+        if (!f.exists())
+            return -1;
+        byte[] header = new byte[HEADER_SIZE];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            in.readFully(header);
+        } catch (EOFException e) {
+            return -1;
+        }
+        return checkHeader(ByteBuffer.wrap(header), heapFile, identity(heapFile), filePages);
+    }
+
+    /**
+     * @return the identity of a heap file, which changes when the file is
+     *         deleted and created again, or 0 if the file system has none
+     */
+    private static int identity(File heapFile) throws IOException {
+        try {
+            Object key = Files.readAttributes(heapFile.toPath(), BasicFileAttributes.class).fileKey();
+            return key == null ? 0 : key.hashCode();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the number of pages covered by the map file with the given
+     *         header, or -1 if the header is not that of the map of the heap
+     *         file as it is now
+     */
+    private static int checkHeader(ByteBuffer header, File heapFile, int identity, int filePages) {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != identity
+                || header.getLong(8) != heapFile.length())
+            return -1;
+        int numPages = header.getInt(16);
+        return numPages >= 0 && numPages <= filePages ? numPages : -1;
+    }
+
+    private boolean load(int filePages) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            if (channel.read(header, 0) < HEADER_SIZE)
+                return false;
+        } catch (NoSuchFileException e) {
+            // the map file is only created when the map is first written.
+            return false;
+        }
+        int numPages = checkHeader(header, heapFile, identity, filePages);
+        if (numPages < 0)
+            return false;
+        int bytes = (numPages + 7) / 8;
+        ByteBuffer buf = ByteBuffer.allocate(bytes);
+        if (channel.read(buf, HEADER_SIZE) < bytes)
+            return false;
+        onDisk = buf.array();
+        this.numPages = numPages;
+        this.fileCovered = numPages;
+        for (int pgNo = 0; pgNo < numPages; pgNo++)
+            setBit(pgNo, (onDisk[pgNo >> 3] & (1 << (pgNo & 7))) != 0);
+        return true;
+    }
+
+    private void rebuild(int numPages, IntPredicate hasFreeSlot) throws IOException {
+        this.numPages = numPages;
+        this.fileCovered = numPages;
+        onDisk = new byte[(numPages + 7) / 8];
+        for (int pgNo = 0; pgNo < numPages; pgNo++) {
+            boolean hasFree = hasFreeSlot.test(pgNo);
+            setBit(pgNo, hasFree);
+            if (hasFree)
+                onDisk[pgNo >> 3] |= 1 << (pgNo & 7);
+        }
+        writeHeader();
+        channel.write(onDisk, HEADER_SIZE);
+    }
+
+    /**
+     * Write the header, with the length the heap file has now. Every change
+     * to the length of the heap file is followed by a call to this, so that
+     * the header matches once the change is done.
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC).putInt(4, identity).putLong(8, heapFile.length()).putInt(16, fileCovered);
+        channel.write(header.array(), 0);
+    }
+
+    /** @return the number of pages the map covers */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of pages covered by the map file; the pages of the
+     *         heap file from this one on have never been written
+     */
+    public synchronized int numWrittenPages() {
+        return fileCovered;
+    }
+
+    /** Record that the heap file was extended by pages allocated ahead of use. */
+    public synchronized void allocated() throws IOException {
+        writeHeader();
+    }
+
+    /**
+     * @return the lowest numbered page that has a free slot, or -1 if no page
+     *         covered by the map has one
+     */
+    public synchronized int firstFree() {
+        for (int s = 0; s < summary.length; s++) {
+            if (summary[s] != 0) {
+                int w = (s << 6) + Long.numberOfTrailingZeros(summary[s]);
+                return (w << 6) + Long.numberOfTrailingZeros(free[w]);
+            }
+        }
+        return -1;
+    }
+
+    /** @return whether page pgNo has a free slot according to the map */
+    public synchronized boolean hasFree(int pgNo) {
+        return pgNo < numPages && (free[pgNo >> 6] & (1L << pgNo)) != 0;
+    }
+
+    /**
+     * Record whether page pgNo, as it is now in the BufferPool, has a free
+     * slot. The map grows to cover the page if needed.
+     */
+    public synchronized void set(int pgNo, boolean hasFree) {
+        numPages = Math.max(numPages, pgNo + 1);
+        setBit(pgNo, hasFree);
+    }
+
+    /**
+     * Record that page pgNo was written to disk, with or without a free
+     * slot, and bring the map file up to date.
+     */
+    public synchronized void written(int pgNo, boolean hasFree) throws IOException {
+        set(pgNo, hasFree);
+        if (pgNo >= onDisk.length * 8) {
+            byte[] bigger = new byte[Math.max(onDisk.length * 2, (pgNo >> 3) + 1)];
+            System.arraycopy(onDisk, 0, bigger, 0, onDisk.length);
+            onDisk = bigger;
+        }
+        byte b = onDisk[pgNo >> 3];
+        byte updated = (byte) (hasFree ? b | (1 << (pgNo & 7)) : b & ~(1 << (pgNo & 7)));
+        boolean grown = pgNo >= fileCovered;
+        if (updated != b || grown) {
+            onDisk[pgNo >> 3] = updated;
+            channel.write(new byte[] { updated }, HEADER_SIZE + (pgNo >> 3));
+        }
+        if (grown) {
+            fileCovered = pgNo + 1;
+            writeHeader();
+        }
+    }
+
+    private void setBit(int pgNo, boolean hasFree) {
+        int w = pgNo >> 6;
+        if (w >= free.length) {
+            long[] bigger = new long[Math.max(free.length * 2, w + 1)];
+            System.arraycopy(free, 0, bigger, 0, free.length);
+            free = bigger;
+            long[] biggerSummary = new long[(bigger.length + 63) >> 6];
+            System.arraycopy(summary, 0, biggerSummary, 0, summary.length);
+            summary = biggerSummary;
+        }
+        if (hasFree)
+            free[w] |= 1L << pgNo;
+        else
+            free[w] &= ~(1L << pgNo);
+        if (free[w] != 0)
+            summary[w >> 6] |= 1L << w;
+        else
+            summary[w >> 6] &= ~(1L << w);
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
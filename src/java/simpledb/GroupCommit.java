@@ -0,0 +1,224 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * GroupCommit makes the commit records of a LogFile durable in batches.
+ * <p>
+ * A committing transaction appends its commit record to the log and waits
+ * here until a flusher thread has forced the log past it. The flusher forces
+ * the log without holding the LogFile's lock, so the transactions that commit
+ * while the disk works append their records meanwhile and are made durable
+ * together by the next force: under a concurrent load one force serves a
+ * whole batch of commits, and with a single transaction nobody waits longer
+ * than for one force.
+ * <p>
+ * A commit delay trades latency for larger batches: once the first commit of
+ * a batch is waiting, the flusher waits up to the delay for more commits,
+ * and forces as soon as {@link #getMaxBatch()} of them are waiting. The delay
+ * is 0 unless set.
+ * <p>
+ * The flusher is a daemon thread that is started on demand and exits when no
+ * commit has come for a while, so LogFiles that are dropped without shutting
+ * them down leave no threads behind. It also exits once the log is shut
+ * down. After a force fails, the commits it should have covered fail, and
+ * the flusher tries again only for a commit that comes after them.
+ */
+public class GroupCommit {
+
+    /** Milliseconds the flusher waits for work before it exits. */
+    private static final long IDLE_MILLIS = 1000;
+
+    private static final int DEFAULT_MAX_BATCH = 64;
+
+    private final LogFile log;
+    private Thread flusher; // null while no flusher runs
+
+    private long requested; // the highest LSN a transaction waits for
+    private long durable; // the LSN up to which the log is known to be on disk
+    private long failedThrough; // commits up to this LSN saw a failed force
+    private IOException failure;
+    private int waiting; // the number of transactions waiting
+
+    private long delayMicros;
+    private int maxBatch = DEFAULT_MAX_BATCH;
+
+    // statistics since the last resetStats()
+    private long commits;
+    private long flushes;
+    private long flushedCommits;
+    private int largestBatch;
+    private long latencyNanos;
+    private long maxLatencyNanos;
+
+    GroupCommit(LogFile log) {
+        this.log = log;
+    }
+
+    /**
+     * Set how long the flusher waits for more commits to join a batch, and
+     * how many waiting commits make it force without waiting any longer.
+     *
+     * @param delayMicros
+     *            the commit delay in microseconds, 0 to force at once
+     */
+    public synchronized void setCommitDelay(long delayMicros, int maxBatch) {
+        if (delayMicros < 0 || maxBatch < 1)
+            throw new IllegalArgumentException("bad group commit settings");
+        this.delayMicros = delayMicros;
+        this.maxBatch = maxBatch;
+        notifyAll();
+    }
+
+    public synchronized long getCommitDelay() {
+        return delayMicros;
+    }
+
+    public synchronized int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /**
+     * Wait until the log is on disk up to LSN n.
+     *
+     * @param startNanos
+     *            the System.nanoTime() at which the commit started, for the
+     *            latency statistics
+     * @throws IOException
+     *             if the force that should have covered the record failed
+     */
+    synchronized void awaitDurable(long n, long startNanos) throws IOException {
+        if (durable < n) {
+            if (n > requested)
+                requested = n;
+            waiting++;
+            if (flusher == null) {
+                flusher = new Thread(this::flushLoop, "log flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            notifyAll();
+            try {
+                while (durable < n && failedThrough < n)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the log", e);
+            } finally {
+                waiting--;
+            }
+            if (durable < n)
+                throw new IOException("log force failed", failure);
+        }
+        long latency = System.nanoTime() - startNanos;
+        commits++;
+        latencyNanos += latency;
+        maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+    }
+
+    /** @return the LSN up to which the log is known to be on disk */
+    synchronized long durable() {
+        return durable;
+    }
+
+    /** Record that the log was forced by someone else up to LSN n. */
+    synchronized void forced(long n) {
+        if (n > durable) {
+            durable = n;
+            notifyAll();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            int batch; // the number of commits the force serves
+            synchronized (this) {
+                try {
+                    long idleSince = System.currentTimeMillis();
+                    // after a failed force, only a commit past the failure is worth another try.
+                    while (requested <= Math.max(durable, failedThrough)) {
+                        long idle = System.currentTimeMillis() - idleSince;
+                        if (idle >= IDLE_MILLIS) {
+                            flusher = null;
+                            return;
+                        }
+                        wait(IDLE_MILLIS - idle);
+                    }
+                    long deadline = System.nanoTime() + delayMicros * 1000;
+                    while (waiting < maxBatch && requested > durable) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0)
+                            break;
+                        wait(left / 1000000, (int) (left % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    // nobody interrupts the flusher; just force now.
+                }
+                batch = waiting;
+            }
+            try {
+                long n = log.forceCommits();
+                synchronized (this) {
+                    flushes++;
+                    flushedCommits += batch;
+                    largestBatch = Math.max(largestBatch, batch);
+                    forced(n);
+                }
+            } catch (IOException e) {
+                // asked before taking the monitor: the LogFile calls forced() holding its lock.
+                boolean closed = log.isClosed();
+                synchronized (this) {
+                    failure = e;
+                    failedThrough = requested;
+                    notifyAll();
+                    if (closed) {
+                        flusher = null;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return the number of commits that waited here since the last reset */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /** @return the number of forces of the flusher since the last reset */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** @return the mean number of commits a force of the flusher made durable */
+    public synchronized double getMeanBatch() {
+        return flushes == 0 ? 0 : (double) flushedCommits / flushes;
+    }
+
+    public synchronized int getLargestBatch() {
+        return largestBatch;
+    }
+
+    /** @return the mean time from the start of a commit until it was durable */
+    public synchronized double getMeanLatencyMicros() {
+        return commits == 0 ? 0 : latencyNanos / 1000.0 / commits;
+    }
+
+    public synchronized double getMaxLatencyMicros() {
+        return maxLatencyNanos / 1000.0;
+    }
+
+    public synchronized void resetStats() {
+        commits = 0;
+        flushes = 0;
+        flushedCommits = 0;
+        largestBatch = 0;
+        latencyNanos = 0;
+        maxLatencyNanos = 0;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d commits, %d forces, batch mean %.1f max %d, latency mean %.0fus max %.0fus",
+                commits, flushes, getMeanBatch(), largestBatch, getMeanLatencyMicros(), getMaxLatencyMicros());
+    }
+}
@@ -1,9 +1,23 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. The tuples of child1 are loaded into
+ * a hash table; as long as they fit in the memory budget, child2 is simply
+ * streamed past it. Once the budget is exceeded, both inputs are split by
+ * the hash of the join key with a {@link SpillPartitioner} and written to
+ * {@link SpillFile}s, except for partition 0, which stays in memory and is
+ * joined while child2 is read. The spilled partitions are then joined one
+ * pair at a time; a build partition that still does not fit is
+ * repartitioned with a different hash function, up to
+ * {@link SpillPartitioner#MAX_DEPTH} times, after which (for heavily skewed
+ * keys) it is joined a memory budget at a time. Every input tuple is therefore
+ * read a bounded number of times, rather than child2 being rescanned once
+ * per memory budget of child1.
  */
 public class HashEquiJoin extends Operator {
 
@@ -11,6 +25,7 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
+    private final int memoryBudget;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
@@ -26,9 +41,24 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     * 
+     * @param memoryBudget
+     *            the maximum number of tuples of child1 held in memory
+     *            before partitions are spilled to disk
+     * @see #HashEquiJoin(JoinPredicate, OpIterator, OpIterator)
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryBudget) {
+        if (memoryBudget < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryBudget = memoryBudget;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -51,31 +81,273 @@ public class HashEquiJoin extends Operator {
     }
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    /** Default memory budget, in tuples of child1. */
     public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+    /** A pair of spilled partitions that is still to be joined. */
+    private static class Partition {
+        final SpillFile build, probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+    }
+
+    // true while child2 is being probed against the tuples of child1 read in open().
+    transient private boolean probingChild2 = false;
+    // set once child1 exceeded the memory budget; partition 0 stays in memory while resident is set.
+    transient private boolean spilled = false;
+    transient private boolean resident = false;
+    transient private SpillFile[] buildFiles, probeFiles;
+    transient private ArrayDeque<Partition> pending = new ArrayDeque<Partition>();
+    transient private Partition current = null;
+    transient private SpillFile.Reader buildReader = null, probeReader = null;
+
+    private static DbException spillError(IOException e) {
+        return new DbException("HashEquiJoin could not spill to disk: " + e.getMessage());
+    }
+
+    private void addToMap(Tuple t) {
+        Field key = t.getField(pred.getField1());
+        ArrayList<Tuple> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(key, list);
+        }
+        list.add(t);
+    }
+
+    /**
+     * Read all of child1, spilling partitions once the memory budget is
+     * exceeded, and get ready to probe with child2.
+     */
+    private void startJoin() throws DbException, TransactionAbortedException {
+        cleanup();
+        int inMemory = 0;
+        try {
+            while (child1.hasNext()) {
+                t1 = child1.next();
+                if (spilled) {
+                    int p = SpillPartitioner.partition(t1.getField(pred.getField1()), 0);
+                    if (p != 0 || !resident) {
+                        SpillPartitioner.spill(buildFiles, p, t1);
+                        continue;
+                    }
+                }
+                addToMap(t1);
+                if (++inMemory > memoryBudget)
+                    inMemory = spill();
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+        } catch (IOException e) {
+            throw spillError(e);
+        }
+        probingChild2 = true;
+    }
+
+    /**
+     * Move the tuples in the hash table that are not in the resident
+     * partition to their spill files; give up the resident partition too if
+     * it alone exceeds the memory budget.
+     * 
+     * @return the number of tuples left in memory
+     */
+    private int spill() throws IOException {
+        if (!spilled) {
+            spilled = true;
+            resident = true;
+            buildFiles = SpillPartitioner.newPartitions();
+            probeFiles = SpillPartitioner.newPartitions();
+        }
+        int left = 0;
+        Iterator<Map.Entry<Object, ArrayList<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, ArrayList<Tuple>> e = it.next();
+            int p = SpillPartitioner.partition(e.getKey(), 0);
+            if (p == 0 && resident) {
+                left += e.getValue().size();
+                continue;
+            }
+            for (Tuple t : e.getValue())
+                SpillPartitioner.spill(buildFiles, p, t);
+            it.remove();
+        }
+        if (left > memoryBudget) {
+            resident = false;
+            return spill();
+        }
+        return left;
+    }
+
+    /**
+     * @return the next tuple to look up in the hash table, or null if the
+     *         probe input of the current phase is used up.
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        try {
+            if (!probingChild2)
+                return probeReader == null ? null : probeReader.next();
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                if (!spilled)
+                    return t;
+                int p = SpillPartitioner.partition(t.getField(pred.getField2()), 0);
+                if (p == 0 && resident)
+                    return t;
+                // without build tuples the partition cannot produce any result.
+                if (buildFiles[p] != null)
+                    SpillPartitioner.spill(probeFiles, p, t);
+            }
+            return null;
+        } catch (IOException e) {
+            throw spillError(e);
+        }
+    }
+
+    /**
+     * Move on once the probe input of the current phase is used up: to the
+     * next memory budget of an oversized partition, or to the next pair of
+     * spilled partitions.
+     * 
+     * @return false if there is nothing left to join
+     */
+    private boolean nextPhase() throws DbException {
+        try {
+            if (probingChild2) {
+                probingChild2 = false;
+                map.clear();
+                if (spilled)
+                    enqueue(buildFiles, probeFiles, 0);
+            } else if (current != null) {
+                probeReader.close();
+                probeReader = null;
+                if (loadChunk()) {
+                    probeReader = current.probe.reader();
+                    return true;
+                }
+                buildReader.close();
+                buildReader = null;
+                current.build.delete();
+                current.probe.delete();
+                current = null;
+            }
+            while (!pending.isEmpty()) {
+                Partition p = pending.poll();
+                if (p.build.size() > memoryBudget && p.level < SpillPartitioner.MAX_DEPTH) {
+                    repartition(p);
+                    continue;
+                }
+                current = p;
+                buildReader = p.build.reader();
+                loadChunk();
+                probeReader = p.probe.reader();
                 return true;
+            }
+            return false;
+        } catch (IOException e) {
+            throw spillError(e);
         }
-        return cnt > 0;
+    }
 
+    /**
+     * Replace the hash table by the next memory budget of tuples of the
+     * current build partition.
+     * 
+     * @return false if the build partition is used up
+     */
+    private boolean loadChunk() throws IOException {
+        map.clear();
+        int n = 0;
+        Tuple t;
+        while (n < memoryBudget && (t = buildReader.next()) != null) {
+            addToMap(t);
+            n++;
+        }
+        return n > 0;
+    }
+
+    /** Queue the pairs of partitions that can produce results, drop the others. */
+    private void enqueue(SpillFile[] builds, SpillFile[] probes, int level) {
+        for (int p = 0; p < SpillPartitioner.NUM_PARTITIONS; p++) {
+            if (builds[p] != null && probes[p] != null) {
+                pending.add(new Partition(builds[p], probes[p], level));
+            } else {
+                if (builds[p] != null)
+                    builds[p].delete();
+                if (probes[p] != null)
+                    probes[p].delete();
+            }
+        }
+    }
+
+    /** Split a pair of partitions with the hash function of the next level. */
+    private void repartition(Partition part) throws IOException {
+        int level = part.level + 1;
+        SpillFile[] builds = SpillPartitioner.newPartitions();
+        SpillFile[] probes = SpillPartitioner.newPartitions();
+        SpillFile.Reader reader = part.build.reader();
+        Tuple t;
+        while ((t = reader.next()) != null)
+            SpillPartitioner.spill(builds, SpillPartitioner.partition(t.getField(pred.getField1()), level), t);
+        reader.close();
+        reader = part.probe.reader();
+        while ((t = reader.next()) != null) {
+            int p = SpillPartitioner.partition(t.getField(pred.getField2()), level);
+            if (builds[p] != null)
+                SpillPartitioner.spill(probes, p, t);
+        }
+        reader.close();
+        part.build.delete();
+        part.probe.delete();
+        enqueue(builds, probes, level);
+    }
+
+    /** Remove all spill files and reset the state of the join. */
+    private void cleanup() {
+        if (pending == null)
+            pending = new ArrayDeque<Partition>();
+        for (SpillFile[] files : new SpillFile[][] { buildFiles, probeFiles }) {
+            if (files == null)
+                continue;
+            for (SpillFile f : files) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        for (Partition p : pending) {
+            p.build.delete();
+            p.probe.delete();
+        }
+        try {
+            if (buildReader != null)
+                buildReader.close();
+            if (probeReader != null)
+                probeReader.close();
+        } catch (IOException e) {
+            // the files are deleted anyway
+        }
+        if (current != null) {
+            current.build.delete();
+            current.probe.delete();
+        }
+        buildFiles = probeFiles = null;
+        pending.clear();
+        current = null;
+        buildReader = probeReader = null;
+        spilled = resident = probingChild2 = false;
+        listIt = null;
+        probeBatch = null;
+        batchMatches = null;
+        map.clear();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        startJoin();
         super.open();
     }
 
@@ -85,17 +357,22 @@ public class HashEquiJoin extends Operator {
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        cleanup();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        startJoin();
     }
 
     transient Iterator<Tuple> listIt = null;
 
+    // state of nextBatch(): the batch of child2 being probed and the matches of its current row.
+    transient private TupleBatch probeBatch = null;
+    transient private int probeRow = 0;
+    transient private Iterator<Tuple> batchMatches = null;
+
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -131,32 +408,55 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            t2 = nextProbe();
+            if (t2 != null) {
+                ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+                listIt = l == null ? null : l.iterator();
                 continue;
-            listIt = l.iterator();
-
-            return processList();
+            }
 
+            // the probe input is done: advance to the next partition
+            listIt = null;
+            if (!nextPhase())
+                return null;
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Probes the hash table with whole batches of child2 and writes the
+     * joined rows straight into the output batch, without creating a
+     * combined Tuple per row. Once child1 has been spilled, the join runs
+     * a tuple at a time.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (spilled)
+            return super.nextBatch();
+        TupleBatch out = new TupleBatch(comboTD);
+        while (!out.isFull()) {
+            if (batchMatches != null && batchMatches.hasNext()) {
+                out.appendJoined(batchMatches.next(), probeBatch, probeRow - 1);
+            } else if (probeBatch != null && probeRow < probeBatch.size()) {
+                ArrayList<Tuple> l = map.get(probeBatch.getField(pred.getField2(), probeRow++));
+                batchMatches = l == null ? null : l.iterator();
+            } else if (map.isEmpty()) {
+                break;
+            } else {
+                probeBatch = child2.nextBatch();
+                probeRow = 0;
+                batchMatches = null;
+                if (probeBatch == null)
+                    break;
+            }
         }
-
-        return null;
+        return out.isEmpty() ? null : out;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -14,10 +15,20 @@ import java.util.*;
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
-	private File file; // ļ洢ݵĵط
-	// private int numPages; // XXX 棬ΪĻfileʱͱͬnumPagesͲһˣͻͬ²ʱ߼㣬Ҫ档
+	/** Number of bytes the file grows by when it runs out of pages, unless set otherwise. */
+	public static final int DEFAULT_GROWTH_BYTES = 1 << 20;
+
+	private File file; // 磁盘文件，真正存储数据的地方。
+	private DbFileChannel channel;
+	// private int numPages; // XXX 不缓存，因为如果缓存的话，当file增大时，就必须同步更新numPages，否则就不一致了，程序就会出错。当这种同步更新不容易做到时，就在线计算，不要缓存。
 	private TupleDesc tDesc;
 	private int tableID;
+	private volatile FreeSpaceMap freeSpace; // opened on the first change to the file
+	private volatile int growthBytes = DEFAULT_GROWTH_BYTES;
+	// 已启用的Page数（高水位），文件按块预分配后会比文件的Page数少；-1表示文件的所有Page都已启用，
+	// UNKNOWN表示还没从FreeSpaceMap读出来。
+	private static final int UNKNOWN = -2;
+	private volatile int highWater = UNKNOWN;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -29,6 +40,7 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
     	this.file = f;
+    	this.channel = new DbFileChannel(f);
     	this.tDesc = td;
     	this.tableID = file.getAbsoluteFile().hashCode();
     }
@@ -67,15 +79,56 @@ public class HeapFile implements DbFile {
         return tDesc;
     }
 
+    /**
+     * Turn the memory mapped read path on or off. In mapped mode the file is
+     * mapped in large segments and readPage copies pages straight out of
+     * the mapping instead of issuing a read system call per page, which
+     * pays off for read-mostly tables.
+     *
+     * @see DbFileChannel#setMapped
+     */
+    public void setMemoryMapped(boolean mapped) {
+    	channel.setMapped(mapped);
+    }
+
+    public boolean isMemoryMapped() {
+    	return channel.isMapped();
+    }
+
+    /**
+     * Set the number of bytes the file grows by when an insert finds no page
+     * with room. The new pages are written with zeros in one go, and then
+     * taken into use one at a time: a new page is created in the BufferPool
+     * and reaches the disk when it is flushed. The pages in use end at a high
+     * water mark, which {@link #numPages()} returns and which is kept in the
+     * {@link FreeSpaceMap} across restarts.
+     *
+     * @param bytes the size of a chunk; a chunk is at least one page
+     */
+    public void setGrowthBytes(int bytes) {
+    	growthBytes = bytes;
+    }
+
+    public int getGrowthBytes() {
+    	return growthBytes;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-    	// TODOPageô죿DbFileеע˵Ҫ׳
-    	byte[] buf = new byte[BufferPool.getPageSize()];
+    	long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
     	try {
-	    	RandomAccessFile raf = new RandomAccessFile(file, "r");
-	    	raf.seek(pid.getPageNumber()*BufferPool.getPageSize());
-	    	raf.read(buf);
+    		// 高水位以下、从未写过的Page在磁盘上全是0，不必去读。
+    		FreeSpaceMap fsm = freeSpace;
+    		if (fsm != null && pid.getPageNumber() >= fsm.numWrittenPages() && pid.getPageNumber() < numPages())
+    			return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+	    	ByteBuffer mapped = channel.slice(offset, BufferPool.getPageSize());
+	    	if (mapped != null)
+	    		return new HeapPage((HeapPageId) pid, mapped);
+	    	byte[] buf = new byte[BufferPool.getPageSize()];
+	    	int n = channel.read(buf, offset);
+	    	if (pid.getPageNumber() < 0 || n < buf.length)
+	    		throw new IllegalArgumentException("Page " + pid.getPageNumber() + " does not exist in " + file);
 	    	return new HeapPage((HeapPageId) pid, buf);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -88,44 +141,160 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     	int pgNo = page.getId().getPageNumber();
     	if (pgNo>=0 && pgNo<=numPages()) {
-    		RandomAccessFile raf = new RandomAccessFile(file, "rw");
-    		raf.seek(BufferPool.getPageSize()*numPages());
-    		raf.write(page.getPageData(), 0, BufferPool.getPageSize());
-    		raf.close();
+    		channel.write(page.getPageData(), (long) pgNo * BufferPool.getPageSize());
+    		synchronized (this) {
+    			if (highWater >= 0 && pgNo >= highWater)
+    				highWater = pgNo + 1;
+    		}
+    		freeSpace().written(pgNo, ((HeapPage) page).getNumEmptySlots() != 0);
     	} else {
         	throw new IllegalArgumentException("PageNo out of range");	
     	}
     }
 
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+    	channel.close();
+    	synchronized (this) {
+    		if (freeSpace != null)
+    			freeSpace.close();
+    	}
+    }
+
+    /**
+     * The map of the pages with a free slot, opened (and rebuilt from the
+     * pages on disk if necessary) on first use. Opening it also recovers the
+     * high water mark of a file that was grown in chunks.
+     */
+    synchronized FreeSpaceMap freeSpace() throws IOException {
+    	if (freeSpace == null) {
+    		int filePages = filePages();
+    		FreeSpaceMap fsm = FreeSpaceMap.open(file, filePages, numPages(),
+    				pgNo -> ((HeapPage) readPage(new HeapPageId(tableID, pgNo))).getNumEmptySlots() != 0);
+    		highWater = fsm.numPages() < filePages ? fsm.numPages() : -1;
+    		freeSpace = fsm;
+    	}
+    	return freeSpace;
+    }
+
+    /**
+     * Take the page at the high water mark into use, first growing the file
+     * by a chunk if all its pages are in use.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int newPage() throws IOException {
+    	int pgNo = numPages();
+    	int filePages = filePages();
+    	if (pgNo >= filePages) {
+    		int pageSize = BufferPool.getPageSize();
+    		int chunk = Math.max(1, growthBytes / pageSize);
+    		channel.write(new byte[chunk * pageSize], (long) filePages * pageSize);
+    		freeSpace().allocated();
+    	}
+    	highWater = pgNo + 1;
+    	return pgNo;
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
         // some code goes here
+    	int hw = highWater;
+    	if (hw == UNKNOWN)
+    		hw = recoverHighWater();
+    	return hw >= 0 ? hw : filePages();
+    }
+
+    private synchronized int recoverHighWater() {
+    	if (highWater == UNKNOWN) {
+    		int filePages = filePages();
+    		try {
+    			int hw = FreeSpaceMap.readHighWater(file, filePages);
+    			if (hw < 0)
+    				hw = scanHighWater(filePages);
+    			highWater = hw < filePages ? hw : -1;
+    		} catch (IOException e) {
+    			throw new RuntimeException(e);
+    		}
+    	}
+    	return highWater;
+    }
+
+    /**
+     * Find the high water mark of a file whose map file is missing or cannot
+     * be trusted. The pages allocated ahead of use at the end of the file
+     * have only ever been written with zeros, so the mark is one past the
+     * last page with a byte that is not.
+     */
+    private int scanHighWater(int filePages) throws IOException {
+    	byte[] buf = new byte[BufferPool.getPageSize()];
+    	for (int pgNo = filePages - 1; pgNo >= 0; pgNo--) {
+    		int n = channel.read(buf, (long) pgNo * buf.length);
+    		for (int i = 0; i < n; i++) {
+    			if (buf[i] != 0)
+    				return pgNo + 1;
+    		}
+    	}
+    	return 0;
+    }
+
+    /** @return the number of pages the file on disk holds, in use or not */
+    int filePages() {
     	return (int) Math.floor(1L*file.length()/BufferPool.getPageSize());
     }
 
+    /**
+     * Decode the tuples of a page, fetched through the BufferPool for a
+     * sequential scan, straight into a new batch.
+     *
+     * @param td the TupleDesc of the batch, which may differ from the
+     *           TupleDesc of the file in its field names only
+     */
+    TupleBatch readBatch(TransactionId tid, int pgNo, TupleDesc td)
+            throws DbException, TransactionAbortedException {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(tableID, pgNo), Permissions.READ_ONLY, true);
+        TupleBatch batch = new TupleBatch(td, page.numSlots);
+        page.readBatch(0, batch);
+        return batch;
+    }
+
+    /**
+     * Prefetch the pages a sequential scan that is about to read page pgNo
+     * will read next, as far as its ReadAhead says.
+     */
+    void readAhead(ReadAhead ra, int pgNo, int numPages) {
+        ra.advance(pgNo, numPages, p -> new HeapPageId(tableID, p));
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
     	BufferPool bufferPool = Database.getBufferPool();
     	ArrayList<Page> arrayList = new ArrayList<Page>();
-    	for (int i = 0; i < numPages(); i++) {
-			HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(tableID, i), null);
+    	FreeSpaceMap fsm = freeSpace();
+    	// 空闲空间表只是提示，拿到Page后还要再检查一次，不符的话就更正它。
+    	int i;
+    	while ((i = fsm.firstFree()) >= 0 && i < numPages()) {
+			HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(tableID, i), Permissions.READ_WRITE);
 			if (page.getNumEmptySlots() != 0) {
 				page.insertTuple(t);
+				fsm.set(i, page.getNumEmptySlots() != 0);
 				arrayList.add(page);
 				return arrayList;
 			}
+			fsm.set(i, false);
 		}
-    	// ½һPageдfileС
-    	// ƺܴBufferPoolȡΪҲǵDbFilereadPage()ӦPageDbFileFileвPageĻܾԽˡ
-    	// HeapPage page = (HeapPage) bufferPool.getPage(tableID, new HeapPageId(tid, numPages()), null);
-    	HeapPage page = new HeapPage(new HeapPageId(tableID, numPages()), HeapPage.createEmptyPageData());
+    	// 没有空闲的Page了，就启用一个新Page。文件是按块预分配的，所以新Page已经在文件中了，
+    	// 可以直接从BufferPool获取（readPage()不会真的去读它），等刷盘时才写入。
+    	int pgNo = newPage();
+    	HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(tableID, pgNo), Permissions.READ_WRITE);
     	page.insertTuple(t);
+    	fsm.set(pgNo, page.getNumEmptySlots() != 0);
 		arrayList.add(page);
-		writePage(page);
 		return arrayList;
     }
 
@@ -136,30 +305,38 @@ public class HeapFile implements DbFile {
     	BufferPool bufferPool = Database.getBufferPool();
     	HeapPage page = (HeapPage)bufferPool.getPage(tid, t.getRecordId().getPageId(), null);
     	page.deleteTuple(t);
+    	try {
+    		freeSpace().set(page.getId().getPageNumber(), true);
+    	} catch (IOException e) {
+    		throw new DbException("could not open the free space map of " + file + ": " + e.getMessage());
+    	}
     	ArrayList<Page> arrayList = new ArrayList<Page>();
     	arrayList.add(page);
         return arrayList;
     }
 
     // see DbFile.java for javadocs
-	// ʹÿͻԵõһ/DbFileĵеTuple
+	// 这使得客户可以得到一个表/DbFile的迭代器，迭代表中的Tuple。
     public DbFileIterator iterator(TransactionId tid) {
         return new DbFileIterator() {
         	private final BufferPool pool = Database.getBufferPool();
-        	// private boolean opened = false; // `pgNo>=0`pgNoĸֵΪopen()close()ı־
+        	// private boolean opened = false; // 利用`pgNo>=0`这个不变量，可以用pgNo的负值作为open()和close()的标志。
         	private int pgNo = -1;
         	private Iterator<Tuple> child = null;
         	private int numPages = numPages();
+        	private final ReadAhead readAhead = new ReadAhead();
 			
 			@Override
 			public void rewind() throws DbException, TransactionAbortedException {
 				pgNo = 0;
 				child = null;
+				readAhead.reset();
 			}
 			
 			@Override
 			public void open() throws DbException, TransactionAbortedException {
 				pgNo = 0;
+				readAhead.reset();
 			}
 			
 			@Override
@@ -173,13 +350,14 @@ public class HeapFile implements DbFile {
 			public boolean hasNext() throws DbException, TransactionAbortedException {
 				if (pgNo<0 || pgNo>numPages)
 					return false;
-				// Ҫע߽磬ͻһֱhasNext()ֱFalseFalseã޷֤ͻΪ
-				// XXX Ҫע⣬`child==null`ֻڵʼʱһΣrewind()Ļ֮`!child.hasNext()`
-				// Ҳ˵PageЧģheaderbitmapTupleѾˣʱDbFilePageĻҪһPage
+				// 这里要注意检查边界，客户会一直调用hasNext()直到返回False，甚至返回False后继续调用，我们无法保证客户的行为。
+				// XXX 还要注意，`child==null`只会在迭代器最开始时成立一次（如果不rewind()的话），之后如果`!child.hasNext()`成立，
+				// 也就是说这个Page的有效的（查header的bitmap）Tuple已经遍历完了，而且这时该DbFile还有Page的话，就要读入下一个Page，继续遍历。
 				if ((child==null || !child.hasNext()) && pgNo<numPages()) {
-					child = ((HeapPage) pool.getPage(tid, new HeapPageId(tableID, pgNo++), Permissions.READ_ONLY)).iterator();
+					readAhead(readAhead, pgNo, numPages());
+					child = ((HeapPage) pool.getPage(tid, new HeapPageId(tableID, pgNo++), Permissions.READ_ONLY, true)).iterator();
 				}
-				return child!=null && child.hasNext(); // ·ȷָ쳣
+				return child!=null && child.hasNext(); // 短路操作，确保不会空指针异常。
 			}
 			
 			@Override
@@ -0,0 +1,334 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * HeapFileLoader bulk loads a delimited text file into a heap file, in the
+ * format HeapFileEncoder describes, using all processors.
+ * <p>
+ * The input is split into ranges of {@link #RANGE_BYTES} bytes. A range owns
+ * the lines that start in it, so a line that crosses the end of a range is
+ * parsed by the range it starts in. The ranges are parsed in parallel, each
+ * straight into page-sized buffers, and the finished pages are appended to
+ * the output in the order of the ranges with gather writes through a
+ * FileChannel. Only a few ranges per thread are in flight at any time, so
+ * the memory used does not depend on the size of the input. The last page of
+ * each range may be partly empty.
+ * <p>
+ * Lines are read as in HeapFileEncoder: empty lines and carriage returns are
+ * ignored, fields are trimmed, and strings longer than {@link Type#STRING_LEN}
+ * are truncated. Unlike HeapFileEncoder, a line with the wrong number of
+ * fields or an integer that does not parse stops the load with an
+ * IOException.
+ */
+public class HeapFileLoader {
+
+    /** Number of input bytes a task parses. */
+    public static final int RANGE_BYTES = 4 << 20;
+
+    /** Number of ranges per thread parsed ahead of the writer. */
+    private static final int RANGES_PER_THREAD = 2;
+
+    /**
+     * Load a text file into a new heap file with pages of
+     * {@link BufferPool#getPageSize()} bytes, and add it to the Catalog.
+     *
+     * @param td
+     *            the schema of the table; the input has one field per
+     *            field of td
+     * @return the new table
+     */
+    public static HeapFile load(File inFile, File outFile, TupleDesc td, char fieldSeparator,
+            String tableName) throws IOException {
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i++)
+            types[i] = td.getFieldType(i);
+        write(inFile, outFile, BufferPool.getPageSize(), types, fieldSeparator,
+                Runtime.getRuntime().availableProcessors());
+        HeapFile table = new HeapFile(outFile, td);
+        Database.getCatalog().addTable(table, tableName);
+        return table;
+    }
+
+    /**
+     * Convert a text file into a heap file, overwriting outFile.
+     *
+     * @param npagebytes
+     *            the number of bytes per page in the output file
+     * @param typeAr
+     *            the type of each field of a line
+     * @param threads
+     *            the number of threads that parse the input
+     * @return the number of pages written; an empty input gives one empty
+     *         page
+     */
+    public static int write(File inFile, File outFile, int npagebytes, Type[] typeAr,
+            char fieldSeparator, int threads) throws IOException {
+        // the free space map of any table that was stored in outFile before.
+        FreeSpaceMap.fileFor(outFile).delete();
+        try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            int numRanges = (int) Math.max(1, (size + RANGE_BYTES - 1) / RANGE_BYTES);
+            int pages = 0;
+            if (numRanges == 1 || threads <= 1) {
+                for (int r = 0; r < numRanges; r++)
+                    pages += append(out, new Range(in, r, size, npagebytes, typeAr, fieldSeparator).parse());
+            } else {
+                pages = writeParallel(in, out, size, numRanges, npagebytes, typeAr, fieldSeparator, threads);
+            }
+            if (pages == 0) {
+                ArrayList<ByteBuffer> empty = new ArrayList<ByteBuffer>();
+                empty.add(ByteBuffer.allocate(npagebytes));
+                pages = append(out, empty);
+            }
+            return pages;
+        }
+    }
+
+    private static int writeParallel(FileChannel in, FileChannel out, long size, int numRanges,
+            int npagebytes, Type[] typeAr, char fieldSeparator, int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "heap file loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayDeque<Future<ArrayList<ByteBuffer>>> inFlight = new ArrayDeque<Future<ArrayList<ByteBuffer>>>();
+            int next = 0;
+            int pages = 0;
+            while (next < numRanges || !inFlight.isEmpty()) {
+                while (next < numRanges && inFlight.size() < threads * RANGES_PER_THREAD) {
+                    Range range = new Range(in, next++, size, npagebytes, typeAr, fieldSeparator);
+                    inFlight.add(pool.submit(range::parse));
+                }
+                pages += append(out, inFlight.remove().get());
+            }
+            return pages;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Append pages to the end of the output with one gather write. */
+    private static int append(FileChannel out, ArrayList<ByteBuffer> pages) throws IOException {
+        ByteBuffer[] srcs = pages.toArray(new ByteBuffer[pages.size()]);
+        long remaining = 0;
+        for (ByteBuffer page : srcs)
+            remaining += page.remaining();
+        while (remaining > 0)
+            remaining -= out.write(srcs);
+        return srcs.length;
+    }
+
+    /**
+     * Packs tuples into page buffers in the HeapPage format: a header with
+     * one bit per slot, least significant bit first, followed by the slots.
+     */
+    private static class PageWriter {
+        private final int npagebytes;
+        private final Type[] types;
+        private final int recordBytes;
+        private final int slotsPerPage;
+        private final int headerBytes;
+        private final ArrayList<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+        private ByteBuffer page;
+        private int slot;
+
+        PageWriter(int npagebytes, Type[] types) {
+            this.npagebytes = npagebytes;
+            this.types = types;
+            int bytes = 0;
+            for (Type t : types)
+                bytes += t.getLen();
+            this.recordBytes = bytes;
+            this.slotsPerPage = (npagebytes * 8) / (recordBytes * 8 + 1);
+            this.headerBytes = (slotsPerPage + 7) / 8;
+        }
+
+        /** @return the offset of a new tuple's first field in the current page */
+        int newTuple() {
+            if (page == null || slot == slotsPerPage) {
+                if (page != null)
+                    pages.add(page);
+                page = ByteBuffer.allocate(npagebytes);
+                slot = 0;
+            }
+            page.put(slot >> 3, (byte) (page.get(slot >> 3) | (1 << (slot & 7))));
+            return headerBytes + recordBytes * slot++;
+        }
+
+        ByteBuffer page() {
+            return page;
+        }
+
+        Type type(int field) {
+            return types[field];
+        }
+
+        /** @return the finished pages, including a partly filled last one */
+        ArrayList<ByteBuffer> finish() {
+            if (page != null)
+                pages.add(page);
+            page = null;
+            return pages;
+        }
+    }
+
+    /** The lines starting in one range of the input, and their parser. */
+    private static class Range {
+        private static final int READ_MORE = 64 << 10;
+
+        private final FileChannel in;
+        private final long start;
+        private final long end;
+        private final long size;
+        private final int npagebytes;
+        private final Type[] types;
+        private final byte separator;
+
+        private byte[] data;
+        private int length;
+        private long from; // the file position of data[0]
+
+        Range(FileChannel in, int index, long size, int npagebytes, Type[] types, char separator) {
+            this.in = in;
+            this.start = (long) index * RANGE_BYTES;
+            this.end = Math.min(size, start + RANGE_BYTES);
+            this.size = size;
+            this.npagebytes = npagebytes;
+            this.types = types;
+            this.separator = (byte) separator;
+        }
+
+        /** Read up to n more bytes of the input into data. */
+        private void read(int n) throws IOException {
+            n = (int) Math.min(n, size - (from + length));
+            if (length + n > data.length) {
+                byte[] bigger = new byte[Math.max(length + n, data.length * 2)];
+                System.arraycopy(data, 0, bigger, 0, length);
+                data = bigger;
+            }
+            ByteBuffer dst = ByteBuffer.wrap(data, length, n);
+            while (dst.hasRemaining()) {
+                if (in.read(dst, from + dst.position()) < 0)
+                    throw new EOFException("input shrank while loading");
+            }
+            length += n;
+        }
+
+        ArrayList<ByteBuffer> parse() throws IOException {
+            // read from the byte before the range, to tell whether a line starts at start.
+            from = Math.max(0, start - 1);
+            data = new byte[(int) (end - from)];
+            length = 0;
+            read(data.length);
+            int pos = 0;
+            if (start > 0) {
+                while (pos < length && data[pos] != '\n')
+                    pos++;
+                pos++;
+            }
+            PageWriter pages = new PageWriter(npagebytes, types);
+            while (from + pos < end) {
+                int eol = pos;
+                while (true) {
+                    while (eol < length && data[eol] != '\n')
+                        eol++;
+                    if (eol < length || from + length == size)
+                        break;
+                    read(READ_MORE);
+                }
+                parseLine(pages, pos, eol);
+                pos = eol + 1;
+            }
+            return pages.finish();
+        }
+
+        private void parseLine(PageWriter pages, int pos, int eol) throws IOException {
+            if (eol > pos && data[eol - 1] == '\r')
+                eol--;
+            if (eol == pos)
+                return;
+            int offset = pages.newTuple();
+            ByteBuffer page = pages.page();
+            for (int f = 0; f < types.length; f++) {
+                int fieldEnd = pos;
+                while (fieldEnd < eol && data[fieldEnd] != separator)
+                    fieldEnd++;
+                if (fieldEnd == eol && f < types.length - 1)
+                    throw malformed(pos, eol, "too few fields");
+                if (pages.type(f) == Type.INT_TYPE)
+                    page.putInt(offset, parseInt(pos, fieldEnd, eol));
+                else
+                    putString(page, offset, pos, fieldEnd);
+                offset += pages.type(f).getLen();
+                pos = fieldEnd + 1;
+            }
+            if (pos <= eol)
+                throw malformed(pos, eol, "too many fields");
+        }
+
+        private int parseInt(int pos, int fieldEnd, int eol) throws IOException {
+            while (pos < fieldEnd && data[pos] <= ' ')
+                pos++;
+            while (fieldEnd > pos && data[fieldEnd - 1] <= ' ')
+                fieldEnd--;
+            boolean negative = pos < fieldEnd && data[pos] == '-';
+            int i = negative || (pos < fieldEnd && data[pos] == '+') ? pos + 1 : pos;
+            if (i == fieldEnd)
+                throw malformed(pos, eol, "missing integer");
+            long value = 0;
+            for (; i < fieldEnd; i++) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9)
+                    throw malformed(pos, eol, "bad integer");
+                value = value * 10 + digit;
+                if (value > Integer.MAX_VALUE + 1L)
+                    throw malformed(pos, eol, "integer out of range");
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE)
+                throw malformed(pos, eol, "integer out of range");
+            return (int) value;
+        }
+
+        private void putString(ByteBuffer page, int offset, int pos, int fieldEnd) {
+            while (pos < fieldEnd && data[pos] <= ' ')
+                pos++;
+            while (fieldEnd > pos && data[fieldEnd - 1] <= ' ')
+                fieldEnd--;
+            int len = Math.min(fieldEnd - pos, Type.STRING_LEN);
+            page.putInt(offset, len);
+            for (int i = 0; i < len; i++)
+                page.put(offset + 4 + i, data[pos + i]);
+        }
+
+        private IOException malformed(int pos, int eol, String reason) {
+            int lineStart = pos;
+            while (lineStart > 0 && data[lineStart - 1] != '\n')
+                lineStart--;
+            return new IOException(reason + " in line at byte " + (from + lineStart) + ": "
+                    + new String(data, lineStart, eol - lineStart));
+        }
+    }
+}
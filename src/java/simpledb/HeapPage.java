@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -16,12 +17,20 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    final Tuple tuples[]; // decoded lazily, null until the slot is first read
     final int numSlots;
     boolean dirty;
     TransactionId lastDirtiedThePage;
+    long lsn;
+
+    // the serialized page. header[] is authoritative, the header bytes in here may be stale.
+    private byte[] data;
+    private ByteBuffer dataView;
+    // set while data is also referenced by handed out tuples or the before image; it is copied before the next write.
+    private boolean shared;
 
     byte[] oldData;
+    byte[] oldHeader;
     private final Byte oldDataLock=new Byte((byte)0);
 
     /**
@@ -36,34 +45,53 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a reference to data and decodes tuples from it only when
+     * they are read; data itself is never modified, the page copies it on its
+     * first write.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, null, data);
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the bytes of the page, starting
+     * at the buffer's position, e.g. a slice of a memory mapped HeapFile.
+     * The bytes are copied during construction and the buffer is not retained.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, null, copyPage(data));
+    }
+
+    /**
+     * Create a HeapPage over data, taking the header from the given array if
+     * it is not null and from the start of data otherwise.
+     */
+    private HeapPage(HeapPageId id, byte[] header, byte[] data) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i); // tuples[i]ָnullslotIdΪiTupleڸPageвڵĻ
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.header = header != null ? header : Arrays.copyOf(data, getHeaderSize());
+        this.tuples = new Tuple[numSlots];
+        this.data = data;
+        this.dataView = ByteBuffer.wrap(data);
+        this.shared = true;
 
         setBeforeImage();
     }
 
+    private static byte[] copyPage(ByteBuffer data) {
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.get(bytes, 0, Math.min(bytes.length, src.remaining()));
+        return bytes;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -78,31 +106,28 @@ public class HeapPage implements Page {
      */
     private int getHeaderSize() {        
         // some code goes here
-        return (int) Math.ceil(numSlots/8.0); // XXX עҪдôǸպͻ±Խ硣
+        return (int) Math.ceil(numSlots/8.0); // XXX 注意这里要做浮点数除法，而不是整数除法，如果写成了整数除法，那么除非刚好整除，否则就会数组下标访问越界。
     }
 
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
-        try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+        synchronized(oldDataLock)
+        {
+            return new HeapPage(pid, oldHeader.clone(), oldData);
         }
-        return null;
     }
     
+    /**
+     * Take the current contents of the page as its before image. Only the
+     * header is copied; the tuple bytes are shared until the next write.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldHeader = header.clone();
+        oldData = data;
+        shared = true;
         }
     }
 
@@ -115,37 +140,60 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset in the serialized page of the tuple in the given slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte(); // ƽļдָ롣
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Get the tuple in the given slot, backed by the bytes of this page.
+     * Its fields are decoded only when they are read.
+     */
+    private Tuple readTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, dataView, slotOffset(slotId));
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
+            shared = true;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) { // ֶζȡ
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Append the tuples in the used slots from slot onwards to batch until it
+     * is full, decoding them straight from the bytes of this page.
+     *
+     * @return the slot to continue from, numSlots once the page is done
+     */
+    int readBatch(int slot, TupleBatch batch) {
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (isSlotUsed(slot))
+                batch.append(dataView, slotOffset(slot), pid, slot);
         }
+        return slot;
+    }
 
-        return t;
+    /**
+     * Serialize t into the given slot.
+     */
+    private void writeTuple(Tuple t, int slotId) throws DbException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        if (shared) {
+            data = Arrays.copyOf(data, BufferPool.getPageSize());
+            dataView = ByteBuffer.wrap(data);
+            shared = false;
+        }
+        System.arraycopy(baos.toByteArray(), 0, data, slotOffset(slotId), td.getSize());
     }
 
     /**
@@ -160,64 +208,21 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] bytes = Arrays.copyOf(data, BufferPool.getPageSize());
 
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, bytes, 0, header.length);
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0); // 0
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos); // XXX
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        // empty slots may still hold deleted tuples
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i))
+                Arrays.fill(bytes, slotOffset(i), slotOffset(i + 1), (byte) 0); // 填充0。
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen]; // ĬϳʼΪֵ
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        Arrays.fill(bytes, slotOffset(numSlots), bytes.length, (byte) 0);
 
-        try {
-            dos.flush(); // ȫдbaosС
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return bytes;
     }
 
     /**
@@ -248,7 +253,8 @@ public class HeapPage implements Page {
     	if (t.getRecordId().getPageId()!=pid || tupleNo >= numSlots || !isSlotUsed(tupleNo)) {
     		throw new DbException("Tuple is not on this page, or tuple slot is already empty.");
     	}
-    	markSlotUsed(tupleNo, false); // ֻҪһbitmapɣҪѶӦslot㡣
+    	markSlotUsed(tupleNo, false); // 只需要标记一下bitmap即可，不需要把对应的slot清零。
+    	tuples[tupleNo] = null;
     }
 
     /**
@@ -261,9 +267,12 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-    	for (int i = 0; i < numSlots; i++) { // Ҫ`i<header.length*8`ΪheaderĩβλûʹõȴΪ0
+    	if (!td.equals(t.getTupleDesc()))
+    		throw new DbException("TupleDesc of the tuple does not match the page.");
+    	for (int i = 0; i < numSlots; i++) { // 不要用`i<header.length*8`，因为header的末尾几个位可能没被使用但却为0。
 			if (!isSlotUsed(i)) {
-				tuples[i] = t;
+				writeTuple(t, i);
+				tuples[i] = null;
 				t.setRecordId(new RecordId(pid, i));
 				markSlotUsed(i, true);
 				return;
@@ -279,7 +288,7 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
     	// not necessary for lab1
-    	// dirty = dirty; // XXX Աβʹthisͱ߶õβΡ
+    	// dirty = dirty; // XXX 成员变量与形参重名，必须使用this，否则就变成了两边都是引用的是形参。
     	this.dirty = dirty;
     	if (dirty) {
     		lastDirtiedThePage = tid;
@@ -297,12 +306,20 @@ public class HeapPage implements Page {
         return lastDirtiedThePage;      
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
-    	// bitmapɡ
+    	// 检查bitmap即可。
     	int n = 0, i;
     	for (i = 0; i < numSlots; i++) {
 			if ((header[i/8]&(1<<(i%8))) == 0) {
@@ -344,14 +361,16 @@ public class HeapPage implements Page {
         	
 			@Override
 			public Tuple next() {
-				Tuple tuple = tuples[i];
+				if (!hasNext())
+					throw new NoSuchElementException();
+				Tuple tuple = readTuple(i);
 				i++;
 				return tuple;
 			}
 			
 			@Override
 			public boolean hasNext() {
-				while (i<numSlots && !isSlotUsed(i)) // עҪжһiԽ硣
+				while (i<numSlots && !isSlotUsed(i)) // 注意要判断一下i，避免越界。
 					i++;
 				return i<numSlots;
 			}
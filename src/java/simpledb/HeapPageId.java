@@ -2,7 +2,7 @@ package simpledb;
 
 /** Unique identifier for HeapPage objects. */
 public class HeapPageId implements PageId {
-	int tableID; // ŸPageTable/DbFile
+	int tableID; // 存放该Page所属的Table/DbFile。
 	int pgNo;
 
     /**
@@ -42,7 +42,7 @@ public class HeapPageId implements PageId {
     public int hashCode() {
         // some code goes here
         // throw new UnsupportedOperationException("implement this");
-    	return pgNo; // pgNoΨһģֱΪϣֵɡ
+    	return pgNo; // pgNo是唯一的，直接作为哈希值即可。
     }
 
     /**
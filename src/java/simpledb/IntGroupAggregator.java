@@ -0,0 +1,263 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Knows how to compute an aggregate over IntFields grouped by an IntField,
+ * without boxing. Groups are kept in an open addressing hash table with
+ * linear probing: the group keys, and the count and running value (sum,
+ * minimum or maximum) of every group, live in parallel primitive arrays, so
+ * merging a tuple allocates nothing.
+ * <p>
+ * The results are the same as those of an {@link IntegerAggregator} with the
+ * same arguments.
+ */
+public class IntGroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int gbField;
+    private final int aField;
+    private final Op op;
+    private final TupleDesc td;
+
+    // slot i holds a group if used[i]; its key, number of tuples and running value.
+    private int[] keys;
+    private boolean[] used;
+    private long[] counts;
+    private long[] values;
+    private int size;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, which
+     *            must be an IntField
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            the aggregation operator
+     * @throws IllegalArgumentException
+     *             if what is not supported, see {@link #supports}
+     */
+    public IntGroupAggregator(int gbfield, int afield, Op what) {
+        if (!supports(what))
+            throw new IllegalArgumentException("IntGroupAggregator does not support " + what);
+        this.gbField = gbfield;
+        this.aField = afield;
+        this.op = what;
+        this.td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "groupValue", "aggregateValue" });
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return true if an IntGroupAggregator can compute op
+     */
+    public static boolean supports(Op op) {
+        return op == Op.MIN || op == Op.MAX || op == Op.SUM || op == Op.AVG || op == Op.COUNT;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        used = new boolean[capacity];
+        counts = new long[capacity];
+        values = new long[capacity];
+        size = 0;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot of key, or the empty slot where it belongs
+     */
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (used[i] && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /** Double the capacity of the table, keeping its groups. */
+    private void grow() {
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        long[] oldCounts = counts;
+        long[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (!oldUsed[i])
+                continue;
+            int s = slot(oldKeys[i]);
+            used[s] = true;
+            keys[s] = oldKeys[i];
+            counts[s] = oldCounts[i];
+            values[s] = oldValues[i];
+            size++;
+        }
+    }
+
+    /**
+     * Merge count tuples of a group whose running value is value.
+     */
+    private void merge(int key, long count, long value) {
+        int s = slot(key);
+        if (!used[s]) {
+            // keep the load factor at or below one half.
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                s = slot(key);
+            }
+            used[s] = true;
+            keys[s] = key;
+            counts[s] = count;
+            values[s] = value;
+            size++;
+            return;
+        }
+        counts[s] += count;
+        switch (op) {
+        case MIN:
+            values[s] = Math.min(values[s], value);
+            break;
+        case MAX:
+            values[s] = Math.max(values[s], value);
+            break;
+        default:
+            values[s] += value;
+            break;
+        }
+    }
+
+    public void mergeTupleIntoGroup(Tuple tup) {
+        merge(((IntField) tup.getField(gbField)).getValue(), 1,
+                ((IntField) tup.getField(aField)).getValue());
+    }
+
+    /**
+     * Merge the rows of a batch straight from its int columns.
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        for (int i = 0; i < batch.size(); i++)
+            merge(batch.getInt(gbField, i), 1, batch.getInt(aField, i));
+    }
+
+    /**
+     * Merge the groups of another IntGroupAggregator. AVG is kept as a sum
+     * and a count until the results are read, so partial averages compose.
+     */
+    @Override
+    public void mergePartial(Aggregator partial) {
+        if (!(partial instanceof IntGroupAggregator))
+            throw new IllegalArgumentException("cannot merge " + partial.getClass().getSimpleName());
+        IntGroupAggregator other = (IntGroupAggregator) partial;
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.used[i])
+                merge(other.keys[i], other.counts[i], other.values[i]);
+        }
+    }
+
+    @Override
+    public Aggregator[] splitPartial(int level) {
+        IntGroupAggregator[] split = new IntGroupAggregator[SpillPartitioner.NUM_PARTITIONS];
+        for (int i = 0; i < keys.length; i++) {
+            if (!used[i])
+                continue;
+            // partitioned like the IntFields of the tuples, see Aggregate.
+            int p = SpillPartitioner.partition(new IntField(keys[i]), level);
+            if (split[p] == null)
+                split[p] = new IntGroupAggregator(gbField, aField, op);
+            split[p].merge(keys[i], counts[i], values[i]);
+        }
+        return split;
+    }
+
+    @Override
+    public int numGroups() {
+        return size;
+    }
+
+    @Override
+    public boolean hasGroup(Field group) {
+        return used[slot(((IntField) group).getValue())];
+    }
+
+    private int result(int s) {
+        switch (op) {
+        case COUNT:
+            return (int) counts[s];
+        case AVG:
+            return (int) (values[s] / counts[s]);
+        default:
+            return (int) values[s];
+        }
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
+     */
+    public OpIterator iterator() {
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private boolean opened = false;
+            private int next;
+
+            /** Move next to the first used slot at or after it. */
+            private void skip() {
+                while (next < used.length && !used[next])
+                    next++;
+            }
+
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                opened = true;
+                rewind();
+            }
+
+            @Override
+            public void rewind() throws DbException, TransactionAbortedException {
+                next = 0;
+                skip();
+            }
+
+            @Override
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                if (!opened)
+                    throw new DbException("Must open() first OR have close().");
+                return next < used.length;
+            }
+
+            @Override
+            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = new Tuple(td);
+                t.setField(0, new IntField(keys[next]));
+                t.setField(1, new IntField(result(next)));
+                next++;
+                skip();
+                return t;
+            }
+
+            @Override
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            @Override
+            public void close() {
+                opened = false;
+            }
+        };
+    }
+}
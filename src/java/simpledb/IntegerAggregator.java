@@ -59,6 +59,22 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
     	Field gbFieldVal = gbFieldNo==NO_GROUPING? _DUMMY_FIELD: tup.getField(gbFieldNo);
     	int aFieldVal = ((IntField)tup.getField(aFieldNo)).getValue();
+    	merge(gbFieldVal, aFieldVal);
+    }
+
+    /**
+     * Merge the rows of a batch, reading the aggregate values straight from
+     * their column.
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+    	for (int i = 0; i < batch.size(); i++) {
+    		Field gbFieldVal = gbFieldNo==NO_GROUPING? _DUMMY_FIELD: batch.getField(gbFieldNo, i);
+    		merge(gbFieldVal, batch.getInt(aFieldNo, i));
+    	}
+    }
+
+    private void merge(Field gbFieldVal, int aFieldVal) {
     	if (!numTuplePerGroup.containsKey(gbFieldVal)) {
     		numTuplePerGroup.put(gbFieldVal, 1);
     	} else {
@@ -75,7 +91,7 @@ public class IntegerAggregator implements Aggregator {
 			} else if (aFieldVal<oldA) {
 				resultOfGroups.replace(gbFieldVal, aFieldVal);
 			}
-			// һѴڵkeyСֵ0?
+			// 错误！如果一个已存在的key的最小值就是0呢?
 //			if (oldA==0 || aFieldVal<oldA) {
 //				resultOfGroups.replace(gbFieldVal, aFieldVal);
 //			}
@@ -107,6 +123,64 @@ public class IntegerAggregator implements Aggregator {
 		}
     }
 
+    /**
+     * Merge the groups of another IntegerAggregator. AVG is kept as a sum
+     * and a count until the results are read, so partial averages compose.
+     */
+    @Override
+    public void mergePartial(Aggregator partial) {
+    	if (!(partial instanceof IntegerAggregator))
+    		throw new IllegalArgumentException("cannot merge " + partial.getClass().getSimpleName());
+    	IntegerAggregator other = (IntegerAggregator) partial;
+    	for (Entry<Field, Integer> e : other.numTuplePerGroup.entrySet()) {
+    		Field group = e.getKey();
+    		numTuplePerGroup.merge(group, e.getValue(), Integer::sum);
+    		Integer value = other.resultOfGroups.get(group);
+    		switch (op) {
+			case MIN:
+				resultOfGroups.merge(group, value, Math::min);
+				break;
+			case MAX:
+				resultOfGroups.merge(group, value, Math::max);
+				break;
+			case SUM:
+			case AVG:
+			case COUNT:
+				resultOfGroups.merge(group, value, Integer::sum);
+				break;
+			default:
+				break;
+			}
+    	}
+    }
+
+    @Override
+    public Aggregator[] splitPartial(int level) {
+    	IntegerAggregator[] split = new IntegerAggregator[SpillPartitioner.NUM_PARTITIONS];
+    	Type gbFieldType = gbFieldNo == NO_GROUPING ? null : tDesc.getFieldType(0);
+    	for (Entry<Field, Integer> e : numTuplePerGroup.entrySet()) {
+    		Field group = e.getKey();
+    		int p = SpillPartitioner.partition(group, level);
+    		if (split[p] == null)
+    			split[p] = new IntegerAggregator(gbFieldNo, gbFieldType, aFieldNo, op);
+    		split[p].numTuplePerGroup.put(group, e.getValue());
+    		Integer value = resultOfGroups.get(group);
+    		if (value != null)
+    			split[p].resultOfGroups.put(group, value);
+    	}
+    	return split;
+    }
+
+    @Override
+    public int numGroups() {
+    	return numTuplePerGroup.size();
+    }
+
+    @Override
+    public boolean hasGroup(Field group) {
+    	return numTuplePerGroup.containsKey(gbFieldNo==NO_GROUPING? _DUMMY_FIELD: group);
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * 
@@ -139,7 +213,7 @@ public class IntegerAggregator implements Aggregator {
 					throw new DbException("Must open() first OR have close().");
 				}
 				Tuple tuple = new Tuple(tDesc);
-				Entry<Field, Integer> nextEntry = it.next(); // it.next()ܻ׳NoSuchElementException쳣
+				Entry<Field, Integer> nextEntry = it.next(); // it.next()可能会抛出NoSuchElementException异常。
 				if (gbFieldNo == NO_GROUPING) {
 					if (op == Op.AVG) {
 						tuple.setField(0, new IntField(nextEntry.getValue()/numTuplePerGroup.get(nextEntry.getKey())));
@@ -148,7 +222,7 @@ public class IntegerAggregator implements Aggregator {
 					}
 					return tuple;
 				}
-				tuple.setField(0, nextEntry.getKey()); // ֻһStringField/IntFieldʵΪֻдû⡣
+				tuple.setField(0, nextEntry.getKey()); // 只有一个StringField/IntField的实例对象，因为只读不可写，所以没问题。
 				if (op == Op.AVG) {
 					tuple.setField(1, new IntField(nextEntry.getValue()/numTuplePerGroup.get(nextEntry.getKey())));
 				} else {
@@ -158,14 +232,14 @@ public class IntegerAggregator implements Aggregator {
 			}
 			*/
 			
-			// ظ
+			// 消除重复代码后，
 			@Override
 			public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
 				if (!opened) {
 					throw new DbException("Must open() first OR have close().");
 				}
 				Tuple tuple = new Tuple(tDesc);
-				Entry<Field, Integer> nextEntry = it.next(); // it.next()ܻ׳NoSuchElementException쳣
+				Entry<Field, Integer> nextEntry = it.next(); // it.next()可能会抛出NoSuchElementException异常。
 				int val = op==op.AVG? nextEntry.getValue()/numTuplePerGroup.get(nextEntry.getKey()): nextEntry.getValue();
 				if (gbFieldNo == NO_GROUPING) {
 					tuple.setField(0, new IntField(val));
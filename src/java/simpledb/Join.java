@@ -4,14 +4,22 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Join is a block nested loops join: it buffers a block of tuples of the
+ * outer child and scans the inner child once per block, rather than once
+ * per outer tuple. By default a block holds as many outer tuples as fit in
+ * half of the pages of the BufferPool, see {@link #defaultBlockTuples}.
  */
 public class Join extends Operator {
-	private JoinPredicate joinPredicate;  // JoinPredicateѾҪȽϵTupleֶεıš
+	private JoinPredicate joinPredicate;  // JoinPredicate中已经包含了要比较的两个Tuple的两个字段的编号。
 	private OpIterator childIterator1;
 	private OpIterator childIterator2;
 	private TupleDesc tupleDesc;
-	private Tuple pendingTuple1;
-	private Tuple pendingTuple2;
+	private final int blockTuples;
+	// the current block of outer tuples, the inner tuple being joined with it, and the next outer tuple to try.
+	private transient ArrayList<Tuple> block;
+	private transient Tuple innerTuple;
+	private transient int blockPos;
 
     private static final long serialVersionUID = 1L;
 
@@ -27,13 +35,39 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+    	this(p, child1, child2, 0);
+    }
+
+    /**
+     * Constructor with an explicit block size.
+     * 
+     * @param blockTuples
+     *            the number of outer tuples to buffer per scan of the inner
+     *            relation, or 0 to derive it from the size of the BufferPool
+     *            when the join is opened
+     * @see #Join(JoinPredicate, OpIterator, OpIterator)
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockTuples) {
         // some code goes here
+    	if (blockTuples < 0)
+    		throw new IllegalArgumentException("block size must not be negative");
     	this.joinPredicate = p;
     	this.childIterator1 = child1;
     	this.childIterator2 = child2;
     	this.tupleDesc = TupleDesc.merge(childIterator1.getTupleDesc(), childIterator2.getTupleDesc());
-    	this.pendingTuple1 = null;
-    	this.pendingTuple2 = null;
+    	this.blockTuples = blockTuples;
+    }
+
+    /**
+     * @return the number of outer tuples of the given size that a block
+     *         holds by default: as many as fit in half of the pages of the
+     *         BufferPool, leaving the other half to the inner relation and to
+     *         other operators.
+     */
+    public static int defaultBlockTuples(int tupleSize) {
+    	int pages = Math.max(1, Database.getBufferPool().getNumPages() / 2);
+    	int tuplesPerPage = Math.max(1, BufferPool.getPageSize() * 8 / (tupleSize * 8 + 1));
+    	return pages * tuplesPerPage;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -76,6 +110,13 @@ public class Join extends Operator {
     	super.open();
     	childIterator1.open();
     	childIterator2.open();
+    	resetBlock();
+    }
+
+    private void resetBlock() {
+    	block = new ArrayList<Tuple>();
+    	innerTuple = null;
+    	blockPos = 0;
     }
 
     public void close() {
@@ -83,12 +124,15 @@ public class Join extends Operator {
     	super.close();
     	childIterator1.close();
     	childIterator2.close();
+    	block = null;
+    	innerTuple = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
     	childIterator1.rewind();
     	childIterator2.rewind();
+    	resetBlock();
     }
 
     /**
@@ -111,45 +155,52 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-    	// ע⣬joinĲǵѿǼ򵥵ذкȵ
-    	Tuple tuple = new Tuple(tupleDesc);
-    	Tuple tuple1, tuple2;
-    	while (childIterator1.hasNext() || pendingTuple1!=null) {
-    		if (pendingTuple1 != null) {
-    			tuple1 = pendingTuple1;
-    			pendingTuple1 = null;
-    		} else {
-    			tuple1 = childIterator1.next();	
-    		}
-    		if (pendingTuple2 == null) {
-    			childIterator2.rewind();
-    		}
-    		while (childIterator2.hasNext() || pendingTuple2!=null) {
-    			if (pendingTuple2 != null) {
-    				tuple2 = pendingTuple2;
-    				pendingTuple2 = null;
-    			} else {
-    				tuple2 = childIterator2.next();
+    	// 注意，join做的操作是笛卡尔积，而不是简单地把行号相等的行连接起来。
+    	while (true) {
+    		if (innerTuple != null) {
+    			while (blockPos < block.size()) {
+    				Tuple tuple1 = block.get(blockPos++);
+    				if (joinPredicate.filter(tuple1, innerTuple))
+    					return merge(tuple1, innerTuple);
     			}
-	    		if (joinPredicate.filter(tuple1, tuple2)) {
-	    			int n = 0;
-	    			for (int i = 0; i < tuple1.getTupleDesc().numFields(); i++, n++) {
-						tuple.setField(n, tuple1.getField(i));
-					}
-	    			for (int i = 0; i < tuple2.getTupleDesc().numFields(); i++, n++) {
-						tuple.setField(n, tuple2.getField(i));
-					}
-	    			if (childIterator2.hasNext()) {
-	    				 pendingTuple2 = childIterator2.next();
-	    				 pendingTuple1 = tuple1;
-	    			} else {
-	    				// pendingTuple1pendingTuple2Ϊnull
-	    			}
-	    			return tuple;
-	    		}
+    			innerTuple = null;
+    		}
+    		if (!block.isEmpty() && childIterator2.hasNext()) {
+    			innerTuple = childIterator2.next();
+    			blockPos = 0;
+    		} else if (!loadBlock()) {
+    			return null;
     		}
     	}
-        return null;
+    }
+
+    /**
+     * Replace the block by the next outer tuples and restart the inner
+     * relation.
+     * 
+     * @return false if the outer relation is used up
+     */
+    private boolean loadBlock() throws TransactionAbortedException, DbException {
+    	int size = blockTuples > 0 ? blockTuples : defaultBlockTuples(childIterator1.getTupleDesc().getSize());
+    	block.clear();
+    	while (block.size() < size && childIterator1.hasNext())
+    		block.add(childIterator1.next());
+    	if (block.isEmpty())
+    		return false;
+    	childIterator2.rewind();
+    	return true;
+    }
+
+    private Tuple merge(Tuple tuple1, Tuple tuple2) {
+    	Tuple tuple = new Tuple(tupleDesc);
+    	int n = 0;
+    	for (int i = 0; i < tuple1.getTupleDesc().numFields(); i++, n++) {
+    		tuple.setField(n, tuple1.getField(i));
+    	}
+    	for (int i = 0; i < tuple2.getTupleDesc().numFields(); i++, n++) {
+    		tuple.setField(n, tuple2.getField(i));
+    	}
+    	return tuple;
     }
 
     @Override
@@ -34,6 +34,10 @@ public class JoinOptimizer {
      * inner/outer here -- because OpIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * When both plans already produce their tuples sorted on the join fields
+     * (see {@link #sortedOn}), a {@link SortMergeJoin} is used; otherwise
+     * equality joins use a {@link HashEquiJoin} and all others a {@link Join}.
      * 
      * @param lj
      *            The join being considered
@@ -68,12 +72,64 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (SortMergeJoin.supports(lj.p) && !(lj instanceof LogicalSubplanJoinNode)
+                && lj.f1QuantifiedName.equals(sortedOn(plan1))
+                && lj.f2QuantifiedName.equals(sortedOn(plan2))) {
+            // both sides already come out in join key order: sorting is free.
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * Derive the order in which a plan produces its tuples. Scans of a
+     * BTreeFile return tuples in key order, filters and projections keep
+     * the order of their child, and OrderBy and SortMergeJoin establish one.
+     * 
+     * @param plan
+     *            the plan to inspect
+     * @return the quantified name of the field the output of plan is sorted
+     *         on in ascending order, or null if the order is not known
+     */
+    public static String sortedOn(OpIterator plan) {
+        if (plan instanceof SeqScan || plan instanceof BTreeScan) {
+            String table = plan instanceof SeqScan ? ((SeqScan) plan).getTableName()
+                    : ((BTreeScan) plan).getTableName();
+            DbFile f;
+            try {
+                f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(table));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+            if (f instanceof BTreeFile)
+                return plan.getTupleDesc().getFieldName(((BTreeFile) f).keyField());
+            return null;
+        } else if (plan instanceof Filter) {
+            return sortedOn(((Filter) plan).getChildren()[0]);
+        } else if (plan instanceof Project) {
+            String field = sortedOn(((Project) plan).getChildren()[0]);
+            try {
+                if (field != null)
+                    plan.getTupleDesc().fieldNameToIndex(field);
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+            return field;
+        } else if (plan instanceof OrderBy) {
+            OrderBy ob = (OrderBy) plan;
+            return ob.isASC() ? ob.getOrderFieldName() : null;
+        } else if (plan instanceof SortMergeJoin) {
+            return ((SortMergeJoin) plan).getSortedFieldName();
+        }
+        return null;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -106,13 +162,36 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // HashEquiJoin: both sides are read once and every tuple is hashed
+            // or probed once; a left side that exceeds the memory budget is
+            // partitioned, which writes and reads both sides once more.
+            double cost = cost1 + cost2 + card1 + card2;
+            if (card1 > HashEquiJoin.MAP_SIZE)
+                cost += 2 * (cost1 + cost2);
+            return cost;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // block nested loops Join: one scan of the right side per block
+            // of left tuples, and one predicate evaluation per pair.
+            double blocks = Math.ceil((double) card1 / Join.defaultBlockTuples(leftTupleSize(j)));
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * @return the size of the tuples of the left table of j, or the size of
+     *         an INT field if the table is not known
+     */
+    private int leftTupleSize(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t1Alias);
+        if (tableId != null) {
+            try {
+                return Database.getCatalog().getTupleDesc(tableId).getSize();
+            } catch (NoSuchElementException e) {
+                // fall through
+            }
         }
+        return Type.INT_TYPE.getLen();
     }
 
     /**
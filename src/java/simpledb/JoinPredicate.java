@@ -45,7 +45,7 @@ public class JoinPredicate implements Serializable {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
-        return t1.getField(fieldNo1).compare(op, t2.getField(fieldNo2)); // ȽֵֶFieldӦṩģȷʵдѾṩˣôֻ򵥵ü/ѱȽϵĹίȥɡ
+        return t1.getField(fieldNo1).compare(op, t2.getField(fieldNo2)); // 比较两个字段值，这是Field应该提供的，确实现有代码已经提供了，那么只需简单调用即可/把比较的工作委托下去即可。
     }
     
     public int getField1()
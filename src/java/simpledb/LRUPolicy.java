@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Least recently used replacement. Pages fetched by sequential scans are
+ * kept in a separate FIFO that is always drained before the LRU list, so a
+ * scan only recycles its own frames; a later non-scan access promotes a
+ * scanned page to the LRU list.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+	private final LinkedHashMap<PageId, Boolean> lru; // access order, eldest entry is the LRU page
+	private final LinkedHashSet<PageId> scanned;
+
+	public LRUPolicy(int capacity) {
+		this.lru = new LinkedHashMap<PageId, Boolean>(capacity, 0.75F, true);
+		this.scanned = new LinkedHashSet<PageId>();
+	}
+
+	@Override
+	public void admit(PageId pid, boolean scan) {
+		if (scan)
+			scanned.add(pid);
+		else
+			lru.put(pid, Boolean.TRUE);
+	}
+
+	@Override
+	public void touch(PageId pid, boolean scan) {
+		if (scan)
+			return;
+		if (scanned.remove(pid))
+			lru.put(pid, Boolean.TRUE);
+		else
+			lru.get(pid);
+	}
+
+	@Override
+	public PageId victim() {
+		if (!scanned.isEmpty())
+			return scanned.iterator().next();
+		if (!lru.isEmpty())
+			return lru.keySet().iterator().next();
+		return null;
+	}
+
+	@Override
+	public void evict(PageId pid) {
+		remove(pid);
+	}
+
+	@Override
+	public void remove(PageId pid) {
+		if (!scanned.remove(pid))
+			lru.remove(pid);
+	}
+}
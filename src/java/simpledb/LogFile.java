@@ -3,7 +3,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -15,23 +17,52 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening).  The BufferPool is not: each partition of its
+page table has its own monitor, and the pool appends log records while
+it holds the monitor of the page's partition (when it logs the pages of
+a committing transaction).  The locks are therefore always taken in
+this order: a BufferPool partition monitor first, then the LogFile
+lock.  No LogFile method calls into the BufferPool while it holds the
+lock; operations that need the pool, such as rollback, checkpoints and
+recovery, call it between their synchronized blocks.  The forces that
+commits and page writes wait for are not made under the lock (see
+{@link #forceCommits()} and {@link #flushTo}), so appends go on while
+the disk works.
 
 <p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+Rollbacks and recovery still synchronize on the BufferPool object
+itself.  Nothing in the pool takes that monitor, so it only keeps them
+from running at the same time as each other.
 
-       ..
+<u> LSN note: </u>
+<p>
 
-       }
-    }
-</pre>
+The LSN of a log record is the position just past it in the log, counting
+from the start of the log before any truncation, so LSNs increase with
+every record appended.  Each page carries the LSN of the last record of a
+change to it; the BufferPool writes a dirty page only once the log is on
+disk up to that LSN ({@link #getFlushedLSN()}), so it may write pages of
+transactions that have not committed yet (steal) and needs to write none
+at commit (no-force).
+
+<u> Checkpoint note: </u>
+<p>
+
+Checkpoints are fuzzy: logCheckpoint() writes no pages and holds the
+lock only while it appends the CHECKPOINT record, so transactions keep
+running meanwhile.  The BufferPool's background writer writes out the
+pages that were dirty when the checkpoint began afterwards.  Recovery
+starts its redo at the smallest recLSN of the record's dirty page table,
+and redoes records before the checkpoint only for the pages in it, so
+the time it takes is bounded by the log written since the oldest dirty
+page, not by the length of the log.
+
+<u> Commit note: </u>
+<p>
+
+logCommit() holds the lock only while it appends the commit record, and
+then waits in {@link GroupCommit} for a flusher thread to force the log,
+so that concurrent commits share one force of the log.
 */
 
 /**
@@ -51,21 +82,32 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  A page image is a byte
+tag of the page's class from {@link PageTypeRegistry}, the table id
+and page number, the length of the page data, and the page data.
+
+<li> DELTA records are written in place of UPDATE records when delta
+logging is on.  They consist of the byte ranges of the page that the
+write changed, with their old and new contents; see {@link PageDelta}.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table of the BufferPool.  The format of the record is an
+integer count of the number of transactions, as well as a long integer
+transaction id and a long integer first record offset for each active
+transaction; then the long integer offset of the end of the log when the
+checkpoint began; then an integer count of the number of dirty pages, as
+well as an integer table id, an integer page number and a long integer
+offset at or before the first record of the page that may not be on disk
+(its recLSN) for each dirty page.
 
 </ul>
 
@@ -82,14 +124,23 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // type tag, table id, page number and data length of a page image
+    final static int PAGE_IMAGE_HEADER = 1 + 3 * INT_SIZE;
 
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
+    // the LSN of offset 0 of the log file; it grows by what logTruncate()
+    // cuts off, so that the LSN of a record never changes //protected by this
+    long lsnBase = 0;
+    private boolean closed = false; // protected by this
+    private boolean deltaLogging = false; // protected by this
+    private final GroupCommit groupCommit = new GroupCommit(this);
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
@@ -139,6 +190,23 @@ public class LogFile {
         return totalRecords;
     }
     
+    /** Log page writes as the byte ranges they changed (DELTA records)
+        instead of full before and after images (UPDATE records).
+        Recovery reads both kinds of records whatever the setting.
+    */
+    public synchronized void setDeltaLogging(boolean on) {
+        deltaLogging = on;
+    }
+
+    public synchronized boolean isDeltaLogging() {
+        return deltaLogging;
+    }
+
+    /** Return the batching of commit forces, its settings and statistics */
+    public GroupCommit groupCommit() {
+        return groupCommit;
+    }
+    
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -149,14 +217,13 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
             synchronized(this) {
                 preAppend();
                 //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
 
                 raf.writeInt(ABORT_RECORD);
                 raf.writeLong(tid.getId());
@@ -169,35 +236,52 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log is forced to disk past it.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long start = System.nanoTime();
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            lsn = lsnBase + currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        groupCommit.awaitDurable(lsn, start);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images), or a DELTA
+        record of the bytes that differ between them if delta logging
+        is on.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
+        PageDelta delta = deltaLogging ? PageDelta.diff(before, after) : null;
+        appendUpdate(tid.getId(), before, after, delta);
+
+        Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsnBase + currentOffset;
+    }
+
+    private void appendUpdate(long tid, Page before, Page after,
+                              PageDelta delta) throws IOException {
         preAppend();
         /* update record conists of
 
@@ -206,93 +290,61 @@ public class LogFile {
            before page data (see writePageData)
            after page data
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
+           and a delta record of
+
+           record type
+           transaction id
+           page delta (see PageDelta)
+           start offset
+        */
+        if (delta != null) {
+            raf.writeInt(DELTA_RECORD);
+            raf.writeLong(tid);
+            delta.write(raf);
+        } else {
+            raf.writeInt(UPDATE_RECORD);
+            raf.writeLong(tid);
+            writePageData(raf,before);
+            writePageData(raf,after);
+        }
         raf.writeLong(currentOffset);
         currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+
+        //page image is:
+        // page type tag (see PageTypeRegistry)
+        // table id
+        // page number
+        // page data length
+        // page data
+        ByteBuffer image = ByteBuffer.allocate(PAGE_IMAGE_HEADER + pageData.length);
+        image.put((byte) PageTypeRegistry.tagOf(p));
+        image.putInt(pid.getTableId());
+        image.putInt(pid.getPageNumber());
+        image.putInt(pageData.length);
+        image.put(pageData);
+        raf.write(image.array());
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+        byte[] header = new byte[PAGE_IMAGE_HEADER];
+        raf.readFully(header);
+        ByteBuffer b = ByteBuffer.wrap(header);
+        int tag = b.get();
+        int tableId = b.getInt();
+        int pgNo = b.getInt();
+        int pageSize = b.getInt();
+        if (pageSize < 0)
+            throw new IOException("bad page image length " + pageSize);
+
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
+        return PageTypeRegistry.create(tag, tableId, pgNo, pageData);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -316,47 +368,68 @@ public class LogFile {
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+    /** Checkpoint the log and write a checkpoint record.
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        The checkpoint is fuzzy (see the checkpoint note above): the
+        record holds the active transactions and a copy of the
+        BufferPool's dirty page table, and the BufferPool is then asked
+        to write out in the background the pages that were dirty before
+        the checkpoint began.  If the background writer failed since
+        the previous checkpoint, its failure is thrown instead.
+    */
+    public void logCheckpoint() throws IOException {
+        BufferPool pool = Database.getBufferPool();
+        pool.checkWriter();
+        long beginLSN;
+        synchronized (this) {
+            // before the first append currentOffset is -1; toOffset()
+            // takes that to the start of the log
+            beginLSN = lsnBase + currentOffset;
+        }
+        // the BufferPool enters a page in its table before it appends the
+        // page's first record, so the copy holds every page that a record
+        // before beginLSN may not be on disk for.  It is taken without the
+        // lock, since pages are logged holding their BufferPool partition.
+        Map<PageId,Long> dirtyPages = pool.dirtyPageTable();
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            Checkpoint cp = new Checkpoint();
+            cp.firstRecords.putAll(tidToFirstLogRecord);
+            cp.begin = toOffset(beginLSN);
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                PageId pid = e.getKey();
+                cp.recOffsets.put(Checkpoint.pageKey(pid.getTableId(), pid.getPageNumber()),
+                                  toOffset(e.getValue()));
             }
+
+            long startCpOffset = currentOffset;
+            raf.writeInt(CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+            cp.write(raf, 0);
+            raf.writeLong(startCpOffset);
+            currentOffset = raf.getFilePointer();
+            force();
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(currentOffset);
+            force();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
+        pool.writeDirtyPages(beginLSN);
 
         logTruncate();
     }
 
+    /** @return the offset in the log file of an LSN, or of the start of
+        the log if the LSN is older than the log file */
+    private long toOffset(long lsn) {
+        return Math.max(LONG_SIZE, lsn - lsnBase);
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
     public synchronized void logTruncate() throws IOException {
@@ -367,25 +440,9 @@ public class LogFile {
         long minLogRecord = cpLoc;
 
         if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+            // keep what recovery reads: from the start of its redo and the
+            // first records of the transactions that were active
+            minLogRecord = Math.min(cpLoc, readCheckpoint(cpLoc).scanStart());
         }
 
         // we can truncate everything before minLogRecord
@@ -416,18 +473,17 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case DELTA_RECORD:
+                    PageDelta.read(raf).write(logNew);
+                    break;
                 case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
+                    Checkpoint.read(raf).write(logNew, minLogRecord - LONG_SIZE);
                     break;
                 case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                    // the log kept from the oldest recLSN on also holds
+                    // the BEGIN records of transactions that are done
+                    if (tidToFirstLogRecord.containsKey(record_tid))
+                        tidToFirstLogRecord.put(record_tid,newStart);
                     break;
                 }
 
@@ -449,7 +505,10 @@ public class LogFile {
         raf.seek(raf.length());
         newFile.delete();
 
+        lsnBase += minLogRecord - LONG_SIZE;
         currentOffset = raf.getFilePointer();
+        // the flushed LSN holds for the new file too
+        force();
         //print();
     }
 
@@ -459,15 +518,263 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        The pages the transaction dirtied in the BufferPool lose the
+        changes that were not logged, and its UPDATE and DELTA records
+        are undone on disk in reverse order.  Each undo is logged as a record of the
+        transaction that makes the opposite change, so that recovery
+        can repeat the history of the log, rollbacks included.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
+        HashSet<PageId> undone = new HashSet<PageId>();
         synchronized (Database.getBufferPool()) {
+            // afterwards flushing the pages logs nothing more for tid
+            Database.getBufferPool().restorePages(tid);
+            ArrayList<Long> updates = new ArrayList<Long>();
+            HashSet<PageId> logged = new HashSet<PageId>();
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                try {
+                    raf.seek(first);
+                    while (raf.getFilePointer() < currentOffset) {
+                        LogRecord r = readRecord();
+                        if (r.isUpdate() && r.tid == tid.getId()) {
+                            updates.add(r.offset);
+                            if (r.pageId() != null)
+                                logged.add(r.pageId());
+                        }
+                    }
+                } finally {
+                    raf.seek(currentOffset);
+                }
+            }
+            // so that nobody writes them behind the undo; the cached
+            // copies hold tid's logged changes, which are on disk.
+            for (PageId pid : logged)
+                Database.getBufferPool().discardPage(pid);
+            synchronized(this) {
+                try {
+                    undo(updates, undone);
+                } finally {
+                    raf.seek(currentOffset);
+                }
+            }
+            // cached copies others read before the undo are stale
+            for (PageId pid : undone)
+                Database.getBufferPool().discardPage(pid);
+        }
+    }
+
+    /** Undo the UPDATE and DELTA records at the given offsets, last
+        first, logging a compensating record for each.  The caller
+        must hold the lock and seek to the end of the log afterwards.
+
+        @param undone the ids of the pages written are added here
+    */
+    private void undo(ArrayList<Long> offsets, HashSet<PageId> undone)
+        throws IOException {
+        Collections.sort(offsets, Collections.reverseOrder());
+        for (long offset : offsets) {
+            raf.seek(offset);
+            LogRecord r = readRecord();
+            raf.seek(currentOffset);
+            PageId pid = apply(r, false);
+            if (pid == null)
+                continue;
+            undone.add(pid);
+            appendUpdate(r.tid, r.after, r.before,
+                         r.delta == null ? null : r.delta.inverse());
+        }
+    }
+
+    /** Redo or undo an UPDATE or DELTA record on disk.
+
+        @return the id of the page written, or null if its table is no
+        longer in the Catalog
+    */
+    private PageId apply(LogRecord r, boolean redo) throws IOException {
+        Page page;
+        DbFile file;
+        try {
+            if (r.delta != null) {
+                PageId pid = r.delta.getPageId();
+                file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = r.delta.apply(file.readPage(pid), redo);
+            } else {
+                page = redo ? r.after : r.before;
+                if (page == null)
+                    return null;
+                file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
             }
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        file.writePage(page);
+        return page.getId();
+    }
+
+    /** Read the CHECKPOINT record at the given offset. */
+    private Checkpoint readCheckpoint(long cpLoc) throws IOException {
+        raf.seek(cpLoc);
+        int cpType = raf.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = raf.readLong();
+
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        return Checkpoint.read(raf);
+    }
+
+    /** The contents of a CHECKPOINT record, between the transaction
+        id and the record's start offset.  All positions are offsets in
+        the log file. */
+    private static class Checkpoint {
+        // the first record of each transaction active at the checkpoint
+        final HashMap<Long,Long> firstRecords = new HashMap<Long,Long>();
+        // the end of the log when the checkpoint began
+        long begin;
+        // the recLSN of each page in the dirty page table, by pageKey()
+        final HashMap<Long,Long> recOffsets = new HashMap<Long,Long>();
+
+        static long pageKey(int tableId, int pgNo) {
+            return ((long) tableId << 32) | (pgNo & 0xffffffffL);
+        }
+
+        /** @return where the redo of recovery starts */
+        long redoStart() {
+            long start = begin;
+            for (long offset : recOffsets.values())
+                start = Math.min(start, offset);
+            return start;
+        }
+
+        /** @return where recovery starts to read the log: the redo
+            start, or the first record of an active transaction it may
+            have to undo if that is earlier */
+        long scanStart() {
+            long start = redoStart();
+            for (long offset : firstRecords.values())
+                start = Math.min(start, offset);
+            return start;
+        }
+
+        /** @return whether recovery must redo the update at the given
+            offset of the given page: records logged once the checkpoint
+            began, and records of pages of the dirty page table from
+            their recLSN on.  The pages of the other records were
+            written after them. */
+        boolean mustRedo(long offset, PageId pid) {
+            if (offset >= begin)
+                return true;
+            if (pid == null)
+                return false;
+            Long rec = recOffsets.get(pageKey(pid.getTableId(), pid.getPageNumber()));
+            return rec != null && offset >= rec;
+        }
+
+        static Checkpoint read(RandomAccessFile in) throws IOException {
+            Checkpoint cp = new Checkpoint();
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                long xid = in.readLong();
+                cp.firstRecords.put(xid, in.readLong());
+            }
+            cp.begin = in.readLong();
+            int numPages = in.readInt();
+            while (numPages-- > 0) {
+                long key = pageKey(in.readInt(), in.readInt());
+                cp.recOffsets.put(key, in.readLong());
+            }
+            return cp;
+        }
+
+        /** Write the contents with one write, moving every offset
+            back by shift, but not before the start of the log. */
+        void write(RandomAccessFile out, long shift) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(2 * INT_SIZE + LONG_SIZE
+                                               + 2 * LONG_SIZE * (firstRecords.size() + recOffsets.size()));
+            b.putInt(firstRecords.size());
+            for (Map.Entry<Long,Long> e : firstRecords.entrySet()) {
+                b.putLong(e.getKey());
+                b.putLong(Math.max(LONG_SIZE, e.getValue() - shift));
+            }
+            b.putLong(Math.max(LONG_SIZE, begin - shift));
+            b.putInt(recOffsets.size());
+            for (Map.Entry<Long,Long> e : recOffsets.entrySet()) {
+                b.putInt((int) (e.getKey() >> 32));
+                b.putInt((int) (long) e.getKey());
+                b.putLong(Math.max(LONG_SIZE, e.getValue() - shift));
+            }
+            out.write(b.array());
+        }
+    }
+
+    /** A log record read back by readRecord() */
+    private static class LogRecord {
+        int type;
+        long tid;
+        long offset; // where the record begins
+        Page before, after; // the images of an UPDATE record
+        PageDelta delta; // the change of a DELTA record
+
+        boolean isUpdate() {
+            return type == UPDATE_RECORD || type == DELTA_RECORD;
+        }
+
+        /** the page an update changed, or null if its table is gone */
+        PageId pageId() throws IOException {
+            if (delta != null)
+                return delta.getPageId();
+            return after == null ? null : after.getId();
+        }
+    }
+
+    /** Read the log record at the current position, up to the start of
+        the next.  The page images of UPDATE records are only decoded
+        for tables that are in the Catalog; the contents of CHECKPOINT
+        records are skipped.
+    */
+    private LogRecord readRecord() throws IOException {
+        LogRecord r = new LogRecord();
+        r.offset = raf.getFilePointer();
+        r.type = raf.readInt();
+        r.tid = raf.readLong();
+        switch (r.type) {
+        case UPDATE_RECORD:
+            r.before = readImage();
+            r.after = readImage();
+            break;
+        case DELTA_RECORD:
+            r.delta = PageDelta.read(raf);
+            break;
+        case CHECKPOINT_RECORD:
+            Checkpoint.read(raf);
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new IOException("bad log record type " + r.type + " at " + r.offset);
+        }
+        raf.readLong();
+        return r;
+    }
+
+    /** @return the next page image, or null if its table is no longer
+        in the Catalog */
+    private Page readImage() throws IOException {
+        try {
+            return readPageData(raf);
+        } catch (NoSuchElementException e) {
+            // readPageData() reads the whole image before it makes the page
+            return null;
         }
     }
 
@@ -475,10 +782,15 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // a checkpoint with no dirty pages leaves recovery nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                closed = true;
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,13 +800,79 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        The UPDATE and DELTA records are redone in order from the
+        smallest recLSN of the last checkpoint's dirty page table,
+        which repeats history including the rollbacks of aborted
+        transactions; records before the checkpoint are redone only for
+        the pages in the table.  Then the records of the transactions
+        that began but neither committed nor aborted are undone, last
+        first, as in rollback(), and an ABORT record is written for
+        each.  A record cut short by the crash ends the log.
     */
     public void recover() throws IOException {
+        HashSet<PageId> written = new HashSet<PageId>();
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                }
+
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                Checkpoint cp = cpLoc == NO_CHECKPOINT_ID ? null : readCheckpoint(cpLoc);
+
+                // the update records of each transaction that is still open
+                HashMap<Long,ArrayList<Long>> open = new HashMap<Long,ArrayList<Long>>();
+                long end = cp == null ? LONG_SIZE : cp.scanStart();
+                raf.seek(end);
+                while (true) {
+                    LogRecord r;
+                    try {
+                        r = readRecord();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    end = raf.getFilePointer();
+                    if (r.type == BEGIN_RECORD) {
+                        open.put(r.tid, new ArrayList<Long>());
+                    } else if (r.type == COMMIT_RECORD || r.type == ABORT_RECORD) {
+                        open.remove(r.tid);
+                    } else if (r.isUpdate()) {
+                        if (cp == null || cp.mustRedo(r.offset, r.pageId())) {
+                            PageId pid = apply(r, true);
+                            if (pid != null)
+                                written.add(pid);
+                        }
+                        ArrayList<Long> updates = open.get(r.tid);
+                        if (updates != null)
+                            updates.add(r.offset);
+                    }
+                }
+                raf.setLength(end);
+                currentOffset = end;
+
+                ArrayList<Long> losers = new ArrayList<Long>();
+                for (ArrayList<Long> updates : open.values())
+                    losers.addAll(updates);
+                try {
+                    undo(losers, written);
+                } finally {
+                    raf.seek(currentOffset);
+                }
+                for (long tid : open.keySet()) {
+                    preAppend();
+                    raf.writeInt(ABORT_RECORD);
+                    raf.writeLong(tid);
+                    raf.writeLong(currentOffset);
+                    currentOffset = raf.getFilePointer();
+                }
+                force();
             }
+            for (PageId pid : written)
+                Database.getBufferPool().discardPage(pid);
          }
     }
 
@@ -505,6 +883,58 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        groupCommit.forced(lsnBase + currentOffset);
+    }
+
+    /** Return true once the log has been shut down */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /** Return the LSN of the end of the log, where the next record
+        appended will start */
+    public synchronized long getCurrentLSN() {
+        return lsnBase + currentOffset;
+    }
+
+    /** Return the LSN up to which the log is known to be on disk */
+    public long getFlushedLSN() {
+        return groupCommit.durable();
+    }
+
+    /** Force the log to disk unless it is on disk up to the given LSN
+        already.  Like the forces of group commit, this does not hold
+        the lock while the disk works, so that the BufferPool writing
+        a page does not hold up appends to the log.
+    */
+    public void flushTo(long lsn) throws IOException {
+        if (lsn > getFlushedLSN())
+            groupCommit.forced(forceCommits());
+    }
+
+    /** Force the log to disk for the group commit flusher and
+        flushTo().  The lock is not held while the disk works, so that
+        others can append to the log meanwhile.
+
+        @return the LSN up to which the force covered the log
+    */
+    long forceCommits() throws IOException {
+        while (true) {
+            long covered;
+            FileChannel channel;
+            synchronized (this) {
+                if (closed)
+                    throw new IOException("log is shut down");
+                covered = lsnBase + currentOffset;
+                channel = raf.getChannel();
+            }
+            try {
+                channel.force(true);
+                return covered;
+            } catch (ClosedChannelException e) {
+                // logTruncate() moved the log to a new file; force that one.
+            }
+        }
     }
 
 }
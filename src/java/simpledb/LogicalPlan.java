@@ -20,6 +20,13 @@ import java.util.NoSuchElementException;
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
  * best implementations for joins.
+ * <p>
+ * When {@link TableStats} estimate an input to have at least
+ * {@link #PARALLEL_CARDINALITY} tuples and the plan may use more than one
+ * thread (see {@link #setParallelism}), the physical plan processes it in
+ * parallel: scans of such tables become {@link ParallelSeqScan}s, and joins
+ * and grouped aggregates over them run partition-parallel between
+ * {@link Exchange}s.
  */
 public class LogicalPlan {
     private Vector<LogicalJoinNode> joins;
@@ -33,8 +40,10 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private int limit = -1;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
     private String query;
 //    private Query owner;
 
@@ -203,17 +212,72 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields
+        added later break ties between tuples that are equal on the fields added earlier.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAscs.add(asc);
+    }
+
+    /** Return only the first tuples of the ORDER BY of this plan.
+        @param limit the number of tuples to return
+        @throws ParsingException if the limit is negative
+    */
+    public void setLimit(int limit) throws ParsingException {
+        if (limit < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        this.limit = limit;
+    }
+
+    /** Inputs estimated to have at least this many tuples are processed in parallel. */
+    public static final int PARALLEL_CARDINALITY = 10000;
+
+    /** Set the number of threads the physical plan may use; 1 makes it serial.
+        Defaults to the number of processors.
+    */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    private boolean isLarge(Integer card) {
+        return parallelism > 1 && card != null && card >= PARALLEL_CARDINALITY;
+    }
+
+    /** Build a partition-parallel join of plan1 and plan2: the large inputs are
+        repartitioned on their join field, a small one is broadcast to every
+        partition, and the joins of the partitions are gathered.  The outer input
+        of a nested loops join is never broadcast, since only its inner input can
+        be rewound.
+        @return the join, or null if it should run serially
+    */
+    private OpIterator parallelJoin(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2,
+            Integer card1, Integer card2) throws ParsingException {
+        boolean large1 = isLarge(card1), large2 = isLarge(card2);
+        boolean equi = lj.p == Predicate.Op.EQUALS;
+        if (!(large1 && large2 && equi) && !(large1 && !large2) && !(large2 && !large1 && equi))
+            return null;
+        int f1, f2;
+        try {
+            f1 = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+            f2 = plan2.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in join " + lj.f1QuantifiedName + " " + lj.f2QuantifiedName);
+        }
+        OpIterator[] inputs1 = large1 ? Exchange.repartition(plan1, f1, parallelism)
+                : Exchange.broadcast(plan1, parallelism);
+        OpIterator[] inputs2 = large2 ? Exchange.repartition(plan2, f2, parallelism)
+                : Exchange.broadcast(plan2, parallelism);
+        OpIterator[] joins = new OpIterator[parallelism];
+        for (int i = 0; i < parallelism; i++)
+            joins[i] = JoinOptimizer.instantiateJoin(lj, inputs1[i], inputs2[i]);
+        return Exchange.gather(joins);
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -344,6 +408,20 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        HashMap<String,Integer> cards = new HashMap<String,Integer>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null)
+                continue;
+            cards.put(table.alias, s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+            // an aggregate over a single table scans it in parallel by itself.
+            if (isLarge(cards.get(table.alias)) && !(joins.isEmpty() && hasAgg)) {
+                ParallelSeqScan scan = ParallelSeqScan.parallelize(subplanMap.get(table.alias), parallelism);
+                if (scan != null)
+                    subplanMap.put(table.alias, scan);
+            }
+        }
+        
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -381,9 +459,17 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
-            OpIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            OpIterator j = null;
+            if (!isSubqueryJoin)
+                j = parallelJoin(lj, plan1, plan2, cards.get(t1name), cards.get(t2name));
+            if (j == null)
+                j = jo.instantiateJoin(lj,plan1,plan2);
             subplanMap.put(t1name, j);
+            if (cards.containsKey(t1name) && (isSubqueryJoin || cards.containsKey(t2name)))
+                cards.put(t1name, jo.estimateJoinCardinality(lj, cards.get(t1name),
+                        isSubqueryJoin ? 0 : cards.get(t2name), false, false, statsMap));
+            else
+                cards.remove(t1name);
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -406,7 +492,8 @@ public class LogicalPlan {
             throw new ParsingException("Query does not include join expressions joining all nodes!");
         }
         
-        OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
+        Map.Entry<String,OpIterator> root = subplanMap.entrySet().iterator().next();
+        OpIterator node = root.getValue();
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
@@ -471,11 +558,30 @@ public class LogicalPlan {
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
+            aggNode.setParallelism(parallelism);
             node = aggNode;
+            if (groupByField != null && !joins.isEmpty() && isLarge(cards.get(root.getKey()))) {
+                // every group is aggregated by one partition, within its share of the memory budget.
+                int memoryGroups = Math.max(1, Aggregate.defaultMemoryGroups(aggNode.getTupleDesc()) / parallelism);
+                int gfield = td.fieldNameToIndex(groupByField);
+                OpIterator[] inputs = Exchange.repartition(aggNode.getChildren()[0], gfield, parallelism);
+                OpIterator[] aggs = new OpIterator[parallelism];
+                for (int i = 0; i < parallelism; i++)
+                    aggs[i] = new Aggregate(inputs[i], td.fieldNameToIndex(aggField), gfield, getAggOp(aggOp), memoryGroups);
+                node = Exchange.gather(aggs);
+            }
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                ascs[i] = oByAscs.get(i);
+            }
+            node = new OrderBy(fields, ascs, limit, node);
+        } else if (limit >= 0) {
+            throw new ParsingException("LIMIT is only supported with ORDER BY");
         }
 
         return new Project(outFields, outTypes, node);
@@ -34,6 +34,28 @@ public interface OpIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next batch of tuples from the operator. The default
+   * implementation collects up to {@link TupleBatch#DEFAULT_CAPACITY} tuples
+   * from {@link #next()}, so that every operator can feed a parent that
+   * works a batch at a time; operators that can produce whole batches
+   * without going through single tuples override it. A consumer should not
+   * mix calls to next() and nextBatch() between open() (or rewind()) and
+   * close().
+   *
+   * @return the next non-empty batch, owned by the caller, or null if there
+   *         are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+      if (!hasNext())
+          return null;
+      TupleBatch batch = new TupleBatch(getTupleDesc());
+      while (!batch.isFull() && hasNext())
+          batch.append(next());
+      return batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -1,20 +1,61 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * OrderBy is an external merge sort: the child is read into memory until
+ * the memory budget is used up, and every full buffer is sorted and written
+ * to disk as a run. The runs are merged with a heap, at most
+ * {@link #MERGE_FAN_IN} at a time, so that the memory used does not depend
+ * on the size of the input. By default the budget is a share of the pages
+ * of the BufferPool, see {@link #defaultMemoryTuples}.
+ * <p>
+ * With a limit, only the first tuples of the ordering are returned
+ * (ORDER BY ... LIMIT). If the limit fits in the memory budget they are
+ * selected with a bounded heap and nothing is written to disk.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The maximum number of runs merged at once. */
+    public static final int MERGE_FAN_IN = 16;
+
+    /**
+     * An OrderBy sorts in one in this many of the pages of the BufferPool by
+     * default, leaving the rest to the operators below it, such as joins,
+     * which take half of them, and aggregates, which take a quarter.
+     */
+    public static final int MEMORY_SHARE = 4;
+
+    /**
+     * @return the number of tuples with the given schema that an OrderBy
+     *         sorts in memory by default: as many as fit in one in
+     *         {@link #MEMORY_SHARE} of the pages of the BufferPool
+     */
+    public static int defaultMemoryTuples(TupleDesc td) {
+        int pages = Math.max(1, Database.getBufferPool().getNumPages() / MEMORY_SHARE);
+        return pages * Math.max(1, BufferPool.getPageSize() / td.getSize());
+    }
+
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] ascs;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private final int limit;
+    private final int memoryTuples;
+    private TupleComparator comparator;
+
+    // the sorted tuples if they fit in memory, otherwise the sorted runs on disk.
+    transient private ArrayList<Tuple> childTups;
+    transient private ArrayList<SpillFile> runs;
+    transient private Iterator<Tuple> it;
+    transient private PriorityQueue<RunCursor> heap;
+    transient private int returned;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,21 +68,61 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, -1, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: tuples are
+     * ordered on the first field, ties on the second, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return, or -1 to return all of them.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
+        this(orderbyFields, asc, limit, 0, child);
+    }
+
+    /**
+     * Creates a new OrderBy node with an explicit memory budget.
+     *
+     * @param memoryTuples
+     *            the number of tuples that are sorted in memory before a run
+     *            is written to disk, or 0 for the default.
+     * @see #OrderBy(int[], boolean[], int, OpIterator)
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, int limit, int memoryTuples, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need a sort order for every ORDER BY field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.limit = limit;
+        this.memoryTuples = memoryTuples > 0 ? memoryTuples : defaultMemoryTuples(td);
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
     }
     
+    /**
+     * @return true if the sort order of the first field is ascending.
+     */
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
+    /**
+     * @return the first field the sort is applied to.
+     */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
@@ -49,28 +130,182 @@ public class OrderBy extends Operator {
 	return this.orderByFieldName;
     }
     
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return the number of tuples returned, or -1 if there is no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * @return the number of tuples the sort returns; only valid while the
+     *         operator is open
+     */
+    public int numTuples() {
+        long n = childTups.size();
+        for (SpillFile run : runs)
+            n += run.size();
+        return (int) (limit >= 0 ? Math.min(n, limit) : n);
+    }
+
+    private static DbException spillError(IOException e) {
+        return new DbException("OrderBy could not spill to disk: " + e.getMessage());
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        childTups = new ArrayList<Tuple>();
+        runs = new ArrayList<SpillFile>();
+        try {
+            if (limit >= 0 && limit <= memoryTuples)
+                topN();
+            else
+                sortRuns();
+            startOutput();
+        } catch (IOException e) {
+            throw spillError(e);
+        }
         super.open();
     }
 
+    /**
+     * Keep the first limit tuples of the ordering in a heap whose root is
+     * the last of them, and sort them.
+     */
+    private void topN() throws DbException, TransactionAbortedException {
+        PriorityQueue<Tuple> top = new PriorityQueue<Tuple>(Math.max(1, limit),
+                Collections.reverseOrder(comparator));
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (top.size() < limit) {
+                top.add(t);
+            } else if (limit > 0 && comparator.compare(t, top.peek()) < 0) {
+                top.poll();
+                top.add(t);
+            }
+        }
+        childTups.addAll(top);
+        Collections.sort(childTups, comparator);
+    }
+
+    /**
+     * Read the child, writing a sorted run whenever the memory budget is
+     * used up, and merge the runs until at most MERGE_FAN_IN are left. If the
+     * child fits in memory, no run is written.
+     */
+    private void sortRuns() throws DbException, TransactionAbortedException, IOException {
+        while (child.hasNext()) {
+            childTups.add(child.next());
+            if (childTups.size() >= memoryTuples)
+                writeRun();
+        }
+        if (runs.isEmpty()) {
+            Collections.sort(childTups, comparator);
+            return;
+        }
+        if (!childTups.isEmpty())
+            writeRun();
+        while (runs.size() > MERGE_FAN_IN) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size()));
+                SpillFile out = new SpillFile(td);
+                PriorityQueue<RunCursor> h = openRuns(group);
+                Tuple t;
+                while ((t = nextMerged(h)) != null)
+                    out.write(t);
+                for (SpillFile f : group)
+                    f.delete();
+                merged.add(out);
+            }
+            runs = merged;
+        }
+    }
+
+    private void writeRun() throws IOException {
+        Collections.sort(childTups, comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.write(t);
+        runs.add(run);
+        childTups.clear();
+    }
+
+    private void startOutput() throws IOException {
+        returned = 0;
+        closeRuns();
+        if (runs.isEmpty())
+            it = childTups.iterator();
+        else
+            heap = openRuns(runs);
+    }
+
+    private PriorityQueue<RunCursor> openRuns(List<SpillFile> files) throws IOException {
+        PriorityQueue<RunCursor> h = new PriorityQueue<RunCursor>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            RunCursor c = new RunCursor(files.get(i).reader(), i);
+            if (c.advance())
+                h.add(c);
+            else
+                c.reader.close();
+        }
+        return h;
+    }
+
+    /** @return the smallest head tuple of the runs in h, or null if they are exhausted */
+    private static Tuple nextMerged(PriorityQueue<RunCursor> h) throws IOException {
+        RunCursor c = h.poll();
+        if (c == null)
+            return null;
+        Tuple t = c.head;
+        if (c.advance())
+            h.add(c);
+        else
+            c.reader.close();
+        return t;
+    }
+
+    private void closeRuns() {
+        if (heap == null)
+            return;
+        for (RunCursor c : heap) {
+            try {
+                c.reader.close();
+            } catch (IOException e) {
+                // the runs are deleted on close anyway
+            }
+        }
+        heap = null;
+    }
+
     public void close() {
         super.close();
         it = null;
+        closeRuns();
+        if (runs != null) {
+            for (SpillFile f : runs)
+                f.delete();
+        }
+        runs = null;
+        childTups = null;
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        try {
+            startOutput();
+        } catch (IOException e) {
+            throw spillError(e);
+        }
     }
 
     /**
@@ -82,10 +317,21 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+        if (limit >= 0 && returned >= limit)
             return null;
+        Tuple t = null;
+        if (heap != null) {
+            try {
+                t = nextMerged(heap);
+            } catch (IOException e) {
+                throw spillError(e);
+            }
+        } else if (it != null && it.hasNext()) {
+            t = it.next();
+        }
+        if (t != null)
+            returned++;
+        return t;
     }
 
     @Override
@@ -98,26 +344,58 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
+    /**
+     * The next tuple of a sorted run. Cursors order by their head tuple, and
+     * equal heads by run, which keeps the merge stable.
+     */
+    private class RunCursor implements Comparable<RunCursor> {
+        final SpillFile.Reader reader;
+        final int run;
+        Tuple head;
+
+        RunCursor(SpillFile.Reader reader, int run) {
+            this.reader = reader;
+            this.run = run;
+        }
+
+        boolean advance() throws IOException {
+            head = reader.next();
+            return head != null;
+        }
+
+        @Override
+        public int compareTo(RunCursor o) {
+            int c = comparator.compare(head, o.head);
+            return c != 0 ? c : Integer.compare(run, o.run);
+        }
+    }
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    int[] fields;
+    boolean[] asc;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
         this.asc = asc;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc[i] ? 1 : -1;
+            else
+                return asc[i] ? -1 : 1;
+        }
+        return 0;
     }
     
 }
@@ -7,8 +7,8 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, page classes MUST be registered with
+ * {@link PageTypeRegistry}, which creates pages from their id and bytes.
  */
 public interface Page {
 
@@ -56,4 +56,16 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record of a change to this page, or 0
+     * if none was logged since the page was read.  The log must be on disk
+     * up to this LSN before the page is written.
+     *
+     * @see LogFile#getFlushedLSN()
+     */
+    public long getLSN();
+
+    /** Set the LSN of the last log record of a change to this page. */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PageDelta is the change a write made to one page, as the byte ranges of
+ * the page that differ between its before and after images, with the old and
+ * the new bytes of each range. It is what a DELTA record of the LogFile
+ * holds in place of two full page images.
+ * <p>
+ * Inserting or deleting a tuple changes a bit of the page header and the
+ * bytes of one slot, so the delta of a small update is a few dozen bytes.
+ * Ranges closer together than the bytes it takes to describe a range are
+ * merged. Applying the new bytes redoes the write and applying the old bytes
+ * undoes it; both are idempotent.
+ * <p>
+ * In the log a delta is the page type tag from {@link PageTypeRegistry}, the
+ * table id and page number, the number of bytes of the ranges that follow,
+ * and for each range its offset, its length, the old bytes and the new
+ * bytes.
+ */
+public class PageDelta {
+
+    /** Bytes describing one range, and the longest gap merged into a range. */
+    private static final int RANGE_HEADER = 8;
+
+    /** Bytes in front of the ranges in the log. */
+    static final int HEADER = 1 + 3 * 4;
+
+    private final int tag;
+    private final int tableId;
+    private final int pgNo;
+    private final int[] offsets;
+    private final byte[][] oldBytes;
+    private final byte[][] newBytes;
+
+    private PageDelta(int tag, int tableId, int pgNo, int[] offsets, byte[][] oldBytes, byte[][] newBytes) {
+        this.tag = tag;
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+        this.offsets = offsets;
+        this.oldBytes = oldBytes;
+        this.newBytes = newBytes;
+    }
+
+    /**
+     * @return the change from before to after, or null if the two are not
+     *         images of the same page
+     */
+    public static PageDelta diff(Page before, Page after) {
+        if (before.getClass() != after.getClass() || !before.getId().equals(after.getId()))
+            return null;
+        byte[] a = before.getPageData();
+        byte[] b = after.getPageData();
+        if (a.length != b.length)
+            return null;
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (int j = end; j < a.length && j - end < RANGE_HEADER; j++) {
+                if (a[j] != b[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] oldBytes = new byte[ranges.size()][];
+        byte[][] newBytes = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            oldBytes[r] = Arrays.copyOfRange(a, range[0], range[1]);
+            newBytes[r] = Arrays.copyOfRange(b, range[0], range[1]);
+        }
+        PageId pid = after.getId();
+        return new PageDelta(PageTypeRegistry.tagOf(after), pid.getTableId(), pid.getPageNumber(), offsets,
+                oldBytes, newBytes);
+    }
+
+    /** @return the delta that undoes this one */
+    public PageDelta inverse() {
+        return new PageDelta(tag, tableId, pgNo, offsets, newBytes, oldBytes);
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the id of the changed page */
+    public PageId getPageId() throws IOException {
+        return PageTypeRegistry.createId(tag, tableId, pgNo);
+    }
+
+    /** @return the number of byte ranges that changed */
+    public int numRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes the delta takes in the log */
+    public int size() {
+        return HEADER + rangeBytes();
+    }
+
+    private int rangeBytes() {
+        int bytes = 0;
+        for (byte[] range : newBytes)
+            bytes += RANGE_HEADER + 2 * range.length;
+        return bytes;
+    }
+
+    /**
+     * Redo or undo the change on a page.
+     *
+     * @param page
+     *            the page as it is now; it is not modified
+     * @param redo
+     *            true to apply the new bytes, false to apply the old ones
+     * @return the page after the change
+     */
+    public Page apply(Page page, boolean redo) throws IOException {
+        byte[] data = page.getPageData().clone();
+        byte[][] bytes = redo ? newBytes : oldBytes;
+        for (int r = 0; r < offsets.length; r++) {
+            if (offsets[r] + bytes[r].length > data.length)
+                throw new IOException("delta does not fit page " + page.getId());
+            System.arraycopy(bytes[r], 0, data, offsets[r], bytes[r].length);
+        }
+        return PageTypeRegistry.create(tag, page.getId(), data);
+    }
+
+    /** Append the delta to the log with one write. */
+    void write(RandomAccessFile raf) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(size());
+        b.put((byte) tag);
+        b.putInt(tableId);
+        b.putInt(pgNo);
+        b.putInt(rangeBytes());
+        for (int r = 0; r < offsets.length; r++) {
+            b.putInt(offsets[r]);
+            b.putInt(newBytes[r].length);
+            b.put(oldBytes[r]);
+            b.put(newBytes[r]);
+        }
+        raf.write(b.array());
+    }
+
+    /** Read a delta written by {@link #write}. */
+    static PageDelta read(RandomAccessFile raf) throws IOException {
+        byte[] header = new byte[HEADER];
+        raf.readFully(header);
+        ByteBuffer h = ByteBuffer.wrap(header);
+        int tag = h.get();
+        int tableId = h.getInt();
+        int pgNo = h.getInt();
+        int length = h.getInt();
+        if (length < 0)
+            throw new IOException("bad page delta length " + length);
+        byte[] body = new byte[length];
+        raf.readFully(body);
+        ByteBuffer b = ByteBuffer.wrap(body);
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+        ArrayList<byte[]> oldBytes = new ArrayList<byte[]>();
+        ArrayList<byte[]> newBytes = new ArrayList<byte[]>();
+        while (b.hasRemaining()) {
+            offsets.add(b.getInt());
+            int len = b.getInt();
+            if (len < 0 || 2 * len > b.remaining())
+                throw new IOException("bad page delta range length " + len);
+            byte[] o = new byte[len];
+            byte[] n = new byte[len];
+            b.get(o);
+            b.get(n);
+            oldBytes.add(o);
+            newBytes.add(n);
+        }
+        int[] offs = new int[offsets.size()];
+        for (int r = 0; r < offs.length; r++)
+            offs[r] = offsets.get(r);
+        return new PageDelta(tag, tableId, pgNo, offs, oldBytes.toArray(new byte[0][]),
+                newBytes.toArray(new byte[0][]));
+    }
+}
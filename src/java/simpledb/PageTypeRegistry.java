@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * PageTypeRegistry maps the page classes that can appear in the log to small
+ * integer tags, and creates pages of each class from a table id, a page
+ * number and the page's bytes without reflection.
+ * <p>
+ * The page types of SimpleDb are registered under fixed tags. Tags are
+ * written into the log, so a registered tag must never change meaning.
+ */
+public class PageTypeRegistry {
+
+    /** Creates the page ids of one registered type. */
+    public interface IdFactory {
+        PageId create(int tableId, int pgNo);
+    }
+
+    /** Creates pages of one registered type. */
+    public interface Factory {
+        Page create(PageId id, byte[] data) throws IOException;
+    }
+
+    public static final int HEAP_PAGE = 1;
+    public static final int BTREE_LEAF_PAGE = 2;
+    public static final int BTREE_INTERNAL_PAGE = 3;
+    public static final int BTREE_HEADER_PAGE = 4;
+    public static final int BTREE_ROOT_PTR_PAGE = 5;
+
+    /** Tags must fit in the byte the log stores them in. */
+    public static final int MAX_TAG = 127;
+
+    private static final IdFactory[] idFactories = new IdFactory[MAX_TAG + 1];
+    private static final Factory[] factories = new Factory[MAX_TAG + 1];
+    private static final HashMap<Class<?>, Integer> tags = new HashMap<Class<?>, Integer>();
+
+    static {
+        register(HEAP_PAGE, HeapPage.class, HeapPageId::new,
+                (id, data) -> new HeapPage((HeapPageId) id, data));
+        register(BTREE_LEAF_PAGE, BTreeLeafPage.class,
+                (tableId, pgNo) -> new BTreePageId(tableId, pgNo, BTreePageId.LEAF),
+                (id, data) -> new BTreeLeafPage((BTreePageId) id, data, keyField(id)));
+        register(BTREE_INTERNAL_PAGE, BTreeInternalPage.class,
+                (tableId, pgNo) -> new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL),
+                (id, data) -> new BTreeInternalPage((BTreePageId) id, data, keyField(id)));
+        register(BTREE_HEADER_PAGE, BTreeHeaderPage.class,
+                (tableId, pgNo) -> new BTreePageId(tableId, pgNo, BTreePageId.HEADER),
+                (id, data) -> new BTreeHeaderPage((BTreePageId) id, data));
+        register(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class,
+                (tableId, pgNo) -> new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR),
+                (id, data) -> new BTreeRootPtrPage((BTreePageId) id, data));
+    }
+
+    private static int keyField(PageId id) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+    }
+
+    /**
+     * Register a page class under a tag.
+     *
+     * @throws IllegalArgumentException
+     *             if the tag is out of range or taken by another class
+     */
+    public static synchronized void register(int tag, Class<? extends Page> pageClass, IdFactory ids,
+            Factory pages) {
+        if (tag < 1 || tag > MAX_TAG)
+            throw new IllegalArgumentException("page type tag out of range: " + tag);
+        Integer old = tags.get(pageClass);
+        if (old != null ? old != tag : factories[tag] != null)
+            throw new IllegalArgumentException("page type tag " + tag + " is already in use");
+        idFactories[tag] = ids;
+        factories[tag] = pages;
+        tags.put(pageClass, tag);
+    }
+
+    /**
+     * @return the tag of the class of the page
+     * @throws IllegalArgumentException
+     *             if the class is not registered
+     */
+    public static synchronized int tagOf(Page p) {
+        Integer tag = tags.get(p.getClass());
+        if (tag == null)
+            throw new IllegalArgumentException("page type not registered: " + p.getClass().getName());
+        return tag;
+    }
+
+    /**
+     * Create the id of a page of the type with the given tag.
+     *
+     * @throws IOException
+     *             if no type has the tag, as in a corrupt log
+     */
+    public static synchronized PageId createId(int tag, int tableId, int pgNo) throws IOException {
+        if (tag < 1 || tag > MAX_TAG || idFactories[tag] == null)
+            throw new IOException("unknown page type tag " + tag);
+        return idFactories[tag].create(tableId, pgNo);
+    }
+
+    /**
+     * Create a page of the type with the given tag.
+     *
+     * @throws IOException
+     *             if no type has the tag, as in a corrupt log
+     */
+    public static Page create(int tag, int tableId, int pgNo, byte[] data) throws IOException {
+        return create(tag, createId(tag, tableId, pgNo), data);
+    }
+
+    /**
+     * Create a page of the type with the given tag and id.
+     *
+     * @throws IOException
+     *             if no type has the tag, as in a corrupt log
+     */
+    public static Page create(int tag, PageId id, byte[] data) throws IOException {
+        Factory factory;
+        synchronized (PageTypeRegistry.class) {
+            factory = tag >= 1 && tag <= MAX_TAG ? factories[tag] : null;
+        }
+        if (factory == null)
+            throw new IOException("unknown page type tag " + tag);
+        return factory.create(id, data);
+    }
+}
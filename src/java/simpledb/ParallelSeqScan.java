@@ -0,0 +1,354 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelSeqScan reads a HeapFile on several threads. The pages are cut into
+ * morsels of {@link #MORSEL_PAGES} pages, which the workers claim one at a
+ * time, so that a worker that is done with its morsel early simply takes the
+ * next one. The workers of all scans run on one shared pool, whose threads
+ * are created on demand, so that a scan never waits for the workers of
+ * another one to give up a thread. Each worker decodes its pages
+ * straight into batches and runs the pipeline of the scan on them, the
+ * predicates of the Filters and the fields of the Project above it, before
+ * handing them to the consumer through a bounded queue.
+ * <p>
+ * Like a {@link SeqScan}, it returns the tuples of the table in no
+ * particular order; see {@link #parallelize} to turn a serial pipeline into
+ * a parallel scan.
+ */
+public class ParallelSeqScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of pages a worker claims at a time. */
+    public static final int MORSEL_PAGES = 16;
+    /** The number of batches each worker may have queued for the consumer. */
+    private static final int BATCHES_PER_WORKER = 4;
+    /** How long a worker waits on a full queue before checking that the scan is still open. */
+    private static final long OFFER_WAIT_MS = 10;
+    /** Queued by a worker that is done. */
+    private static final TupleBatch END = new TupleBatch(Utility.getTupleDesc(1), 1);
+
+    private final TransactionId tid;
+    private final int tableId;
+    private final int parallelism;
+    private final TupleDesc scanTd;
+    // the pipeline: predicates applied in order, then the projection if any.
+    private final ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    private int[] projection = null;
+    private TupleDesc td;
+
+    /** Runs the workers of all scans; idle threads exit after a while. */
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "parallel scan");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private transient ArrayList<Worker> workers;
+    private transient CountDownLatch done;
+    private transient BlockingQueue<TupleBatch> queue;
+    private transient int finished;
+    private transient AtomicBoolean closed;
+    private transient AtomicReference<Exception> failure;
+    private transient TupleBatch current;
+    private transient int pos;
+
+    /**
+     * Creates a parallel scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, which must be a HeapFile.
+     * @param tableAlias
+     *            the alias of this table, see {@link SeqScan}.
+     * @param parallelism
+     *            the number of worker threads.
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, int parallelism) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("ParallelSeqScan only reads HeapFiles");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.tid = tid;
+        this.tableId = tableid;
+        this.parallelism = parallelism;
+        this.scanTd = new SeqScan(tid, tableid, tableAlias).getTupleDesc();
+        this.td = scanTd;
+    }
+
+    /**
+     * Turn a pipeline of Filters and at most one Project, the topmost, over a
+     * SeqScan of a HeapFile into the equivalent parallel scan.
+     *
+     * @param plan
+     *            the pipeline to run in parallel
+     * @param parallelism
+     *            the number of worker threads
+     * @return the parallel scan, or null if plan is not such a pipeline
+     */
+    public static ParallelSeqScan parallelize(OpIterator plan, int parallelism) {
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile))
+                return null;
+            return new ParallelSeqScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias(), parallelism);
+        }
+        if (plan instanceof Filter) {
+            ParallelSeqScan scan = parallelize(((Filter) plan).getChildren()[0], parallelism);
+            if (scan == null || scan.projection != null)
+                return null;
+            scan.addFilter(((Filter) plan).getPredicate());
+            return scan;
+        }
+        if (plan instanceof Project) {
+            Project project = (Project) plan;
+            ParallelSeqScan scan = parallelize(project.getChildren()[0], parallelism);
+            if (scan == null || scan.projection != null)
+                return null;
+            scan.project(project.getOutFieldIds(), project.getTupleDesc());
+            return scan;
+        }
+        return null;
+    }
+
+    /**
+     * Keep only the tuples that pass p. Filters must be added before the
+     * projection.
+     */
+    public void addFilter(Predicate p) {
+        if (projection != null)
+            throw new IllegalStateException("filters must be added before the projection");
+        predicates.add(p);
+    }
+
+    /**
+     * Return the given fields of the scanned tuples, in the given order.
+     *
+     * @param td the TupleDesc of the projected tuples
+     */
+    public void project(int[] fieldIds, TupleDesc td) {
+        if (projection != null)
+            throw new IllegalStateException("the scan is already projected");
+        this.projection = fieldIds.clone();
+        this.td = td;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        final HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        final int numPages = file.numPages();
+        // the workers only see the queue, morsels and state of this run, not those of a rewind.
+        final BlockingQueue<TupleBatch> queue = new ArrayBlockingQueue<TupleBatch>(parallelism * BATCHES_PER_WORKER);
+        final AtomicInteger nextMorsel = new AtomicInteger();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch done = new CountDownLatch(parallelism);
+        this.queue = queue;
+        this.closed = closed;
+        this.failure = failure;
+        this.done = done;
+        finished = 0;
+        current = null;
+        workers = new ArrayList<Worker>();
+        for (int w = 0; w < parallelism; w++) {
+            Worker worker = new Worker(done, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scanMorsels(file, numPages, nextMorsel, queue, closed);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        enqueue(END, queue, closed);
+                    }
+                }
+            });
+            worker.future = WORKERS.submit(worker);
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * A worker of one run of the scan. Whichever of the pool and close()
+     * claims it first decides whether it runs, so that close() knows which
+     * workers it has to wait for.
+     */
+    private static class Worker implements Runnable {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done;
+        private final Runnable scan;
+        private Future<?> future;
+
+        Worker(CountDownLatch done, Runnable scan) {
+            this.done = done;
+            this.scan = scan;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true))
+                return;
+            try {
+                scan.run();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /** Cancel the worker if it has not started. */
+        void cancel() {
+            if (claimed.compareAndSet(false, true)) {
+                future.cancel(false);
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Claim morsels until there are none left, queueing the result of the
+     * pipeline on each of their pages.
+     */
+    private void scanMorsels(HeapFile file, int numPages, AtomicInteger nextMorsel,
+            BlockingQueue<TupleBatch> queue, AtomicBoolean closed) throws DbException,
+            TransactionAbortedException {
+        int from;
+        while ((from = nextMorsel.getAndIncrement() * MORSEL_PAGES) < numPages) {
+            for (int p = from; p < Math.min(from + MORSEL_PAGES, numPages); p++) {
+                // a selective filter may queue nothing for many pages, so do not rely on enqueue to notice.
+                if (closed.get())
+                    return;
+                TupleBatch batch = file.readBatch(tid, p, scanTd);
+                for (Predicate pred : predicates)
+                    pred.filter(batch);
+                if (projection != null)
+                    batch = batch.project(projection, td);
+                if (!batch.isEmpty() && !enqueue(batch, queue, closed))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Hand a batch to the consumer, waiting while the queue is full. Workers
+     * are never interrupted, since an interrupt during a read would close the
+     * channel of the file; they poll closed instead.
+     *
+     * @return false if the scan was closed before the batch could be queued
+     */
+    private static boolean enqueue(TupleBatch batch, BlockingQueue<TupleBatch> queue, AtomicBoolean closed) {
+        try {
+            while (!closed.get()) {
+                if (queue.offer(batch, OFFER_WAIT_MS, TimeUnit.MILLISECONDS))
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * @return the next batch queued by a worker, or null once all of them are
+     *         done
+     */
+    private TupleBatch takeBatch() throws DbException, TransactionAbortedException {
+        if (queue == null)
+            throw new IllegalStateException("the scan is not open");
+        while (finished < parallelism) {
+            TupleBatch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for the scan");
+            }
+            if (batch != END)
+                return batch;
+            finished++;
+            Exception e = failure.get();
+            if (e instanceof DbException)
+                throw (DbException) e;
+            if (e instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e;
+            if (e != null)
+                throw new DbException("parallel scan failed: " + e);
+        }
+        return null;
+    }
+
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        // finish the batch next() is in first.
+        if (current != null && pos < current.size())
+            return OpIterator.super.nextBatch();
+        current = null;
+        return takeBatch();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        while (current == null || pos >= current.size()) {
+            current = takeBatch();
+            pos = 0;
+            if (current == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return current.getTuple(pos++);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Cancel the workers that have not started and wait for the others, which
+     * stop at their next page or once their wait for the queue times out.
+     */
+    public void close() {
+        if (workers != null) {
+            closed.set(true);
+            for (Worker worker : workers)
+                worker.cancel();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            queue.clear();
+        }
+        workers = null;
+        done = null;
+        queue = null;
+        closed = null;
+        failure = null;
+        current = null;
+    }
+}
@@ -103,7 +103,29 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
-    	return t.getField(fieldNo).compare(op, operand); // operandΪڶ
+    	return t.compareField(fieldNo, op, operand); // 这里operand是作为第二个操作数。
+    }
+
+    /**
+     * Applies this predicate to every selected row of batch, narrowing the
+     * selection of the batch to the rows that pass. INT fields are compared
+     * straight from their column.
+     *
+     * @param batch
+     *            The batch to filter
+     */
+    public void filter(TupleBatch batch) {
+    	int n = batch.size();
+    	boolean[] keep = new boolean[n];
+    	if (batch.getTupleDesc().getFieldType(fieldNo) == Type.INT_TYPE && operand instanceof IntField) {
+    		int value = ((IntField) operand).getValue();
+    		for (int i = 0; i < n; i++)
+    			keep[i] = IntField.compare(batch.getInt(fieldNo, i), op, value);
+    	} else {
+    		for (int i = 0; i < n; i++)
+    			keep[i] = batch.getField(fieldNo, i).compare(op, operand);
+    	}
+    	batch.select(keep);
     }
 
     /**
@@ -41,6 +41,17 @@ public class Project extends Operator {
         td = new TupleDesc(types, fieldAr);
     }
 
+    /**
+     * @return the ids of the fields of the child's tupleDesc that are
+     *         projected out, in output order
+     */
+    public int[] getOutFieldIds() {
+        int[] fieldIds = new int[outFieldIds.size()];
+        for (int i = 0; i < fieldIds.length; i++)
+            fieldIds[i] = outFieldIds.get(i);
+        return fieldIds;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -80,6 +91,18 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Projects whole batches of the child; the result shares the columns of
+     * the child's batch.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null)
+            return null;
+        return batch.project(getOutFieldIds(), td);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.function.IntFunction;
+
+/**
+ * ReadAhead decides how far ahead of a sequential scan pages are prefetched
+ * into the BufferPool (see {@link BufferPool#prefetch}). The window starts
+ * at {@link #MIN_WINDOW} pages. It doubles every time the scan gets to a
+ * page that is not in the pool yet, which means the reads fell behind the
+ * consumer. It shrinks by one page after {@link #SHRINK_AFTER} pages in a
+ * row that were ready, so that a slow consumer does not fill the pool with
+ * pages it will not get to for a long time. The window never grows beyond a
+ * quarter of the pool.
+ * <p>
+ * A ReadAhead belongs to one scan and is not thread safe.
+ */
+public class ReadAhead {
+
+    /** The smallest number of pages read ahead. */
+    public static final int MIN_WINDOW = 2;
+    /** The number of ready pages in a row after which the window shrinks. */
+    public static final int SHRINK_AFTER = 16;
+
+    private int maxWindow;
+    private int window;
+    private int readyRun;
+    // the last page number prefetched by advance(), so that no page is requested twice.
+    private int prefetched;
+
+    public ReadAhead() {
+        reset();
+    }
+
+    /** Start over, as for a new scan. */
+    public void reset() {
+        maxWindow = Math.max(MIN_WINDOW, Database.getBufferPool().getNumPages() / 4);
+        window = MIN_WINDOW;
+        readyRun = 0;
+        prefetched = -1;
+    }
+
+    /** @return the current number of pages to read ahead */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Adapt the window to whether the page the scan is about to read is
+     * already in the pool.
+     *
+     * @return the new window
+     */
+    public int window(PageId next) {
+        if (Database.getBufferPool().isCached(next)) {
+            if (++readyRun >= SHRINK_AFTER && window > MIN_WINDOW) {
+                window--;
+                readyRun = 0;
+            }
+        } else {
+            window = Math.min(window * 2, maxWindow);
+            readyRun = 0;
+        }
+        return window;
+    }
+
+    /**
+     * For a scan of consecutive page numbers, which is about to read page
+     * pgNo: adapt the window and prefetch the pages that follow pgNo within
+     * it.
+     *
+     * @param numPages
+     *            the number of pages of the file
+     * @param pageId
+     *            maps a page number to its PageId
+     */
+    public void advance(int pgNo, int numPages, IntFunction<PageId> pageId) {
+        int last = Math.min(pgNo + window(pageId.apply(pgNo)), numPages - 1);
+        for (int p = Math.max(pgNo + 1, prefetched + 1); p <= last; p++)
+            Database.getBufferPool().prefetch(pageId.apply(p));
+        prefetched = Math.max(prefetched, last);
+    }
+}
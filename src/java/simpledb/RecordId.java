@@ -55,7 +55,7 @@ public class RecordId implements Serializable {
         if (o == null || !(o instanceof RecordId))
         	return false;
         RecordId recordId = (RecordId)o;
-        // ͱȽһequals()==
+        // 类类型比较内容相等一般调用equals()，而不用==。
 		return recordId.getPageId().equals(pageID) && recordId.getTupleNumber()==tupleNo;
     }
 
@@ -68,7 +68,7 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-    	return pageID.getPageNumber()+tupleNo; // TODOѧϰjavahashCode()ıд
+    	return pageID.getPageNumber()+tupleNo; // TODO，学习java中hashCode()的编写。
     }
 
 }
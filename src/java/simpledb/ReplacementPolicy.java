@@ -0,0 +1,61 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page of a BufferPool partition is evicted
+ * when the partition is full. A policy only tracks PageIds; the BufferPool
+ * owns the pages themselves, flushes the victim if necessary and then tells
+ * the policy that the victim is gone.
+ * <p>
+ * Every access carries a <i>scan</i> hint. Pages fetched by sequential scans
+ * (see {@link HeapFile#iterator} and {@link BTreeFileIterator}) are likely to
+ * be touched once and never again, so scan-resistant policies admit them in
+ * a way that lets them be replaced before the pages of the working set.
+ * <p>
+ * Implementations are not thread safe; every partition has its own policy
+ * instance and only calls it while holding the partition's monitor.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** Creates the policy of one partition, given the number of frames in it. */
+    public interface Factory {
+        public ReplacementPolicy create(int capacity);
+    }
+
+    /**
+     * A page that is not resident was brought into the partition.
+     *
+     * @param pid the id of the new page
+     * @param scan true if the page was fetched by a sequential scan
+     */
+    public void admit(PageId pid, boolean scan);
+
+    /**
+     * A resident page was accessed again.
+     *
+     * @param pid the id of the page
+     * @param scan true if the access comes from a sequential scan
+     */
+    public void touch(PageId pid, boolean scan);
+
+    /**
+     * Choose the next page to replace. This does not remove the page from
+     * the policy; the caller must follow up with {@link #evict}.
+     *
+     * @return the id of a resident page, or null if no page is resident
+     */
+    public PageId victim();
+
+    /**
+     * The page returned by the last call to {@link #victim} was evicted.
+     * Policies that keep history about evicted pages record it here.
+     */
+    public void evict(PageId pid);
+
+    /**
+     * A resident page was dropped for a reason other than replacement (e.g.
+     * {@link BufferPool#discardPage}); no history is kept about it.
+     */
+    public void remove(PageId pid);
+}
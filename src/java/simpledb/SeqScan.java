@@ -14,6 +14,9 @@ public class SeqScan implements OpIterator {
 	private String tableAlias;
 	private DbFile dbFile;
 	private DbFileIterator child;
+	// position of nextBatch() in a HeapFile.
+	private transient int batchPage, batchSlot, batchNumPages;
+	private transient ReadAhead readAhead;
 
     private static final long serialVersionUID = 1L;
 
@@ -55,6 +58,20 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableID);
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return tableID;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tID;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -82,6 +99,16 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
     	child.open();
+    	resetBatch();
+    }
+
+    private void resetBatch() {
+    	batchPage = 0;
+    	batchSlot = 0;
+    	batchNumPages = dbFile instanceof HeapFile ? ((HeapFile) dbFile).numPages() : 0;
+    	if (readAhead == null)
+    		readAhead = new ReadAhead();
+    	readAhead.reset();
     }
 
     /**
@@ -100,7 +127,7 @@ public class SeqScan implements OpIterator {
         String[] fieldAr = new String[tupleDesc.numFields()];
         for (int i = 0; i < tupleDesc.numFields(); i++) {
         	typeAr[i] = tupleDesc.getFieldType(i);
-			fieldAr[i] = tableAlias + "." + tupleDesc.getFieldName(i); // ϱǰ׺
+			fieldAr[i] = tableAlias + "." + tupleDesc.getFieldName(i); // 给属性名加上表名前缀。
 		}
 		return new TupleDesc(typeAr, fieldAr);
     }
@@ -118,6 +145,32 @@ public class SeqScan implements OpIterator {
         return child.next();
     }
 
+    /**
+     * Reads a HeapFile a batch at a time, decoding the tuples straight from
+     * the pages into the columns of the batch. Other files are read through
+     * the tuple iterator.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+    	if (dbFile==null || child==null)
+    		throw new IllegalStateException();
+    	if (!(dbFile instanceof HeapFile))
+    		return OpIterator.super.nextBatch();
+    	TupleBatch batch = new TupleBatch(getTupleDesc());
+    	while (!batch.isFull() && batchPage < batchNumPages) {
+    		if (batchSlot == 0)
+    			((HeapFile) dbFile).readAhead(readAhead, batchPage, batchNumPages);
+    		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tID,
+    				new HeapPageId(tableID, batchPage), Permissions.READ_ONLY, true);
+    		batchSlot = page.readBatch(batchSlot, batch);
+    		if (batchSlot >= page.numSlots) {
+    			batchPage++;
+    			batchSlot = 0;
+    		}
+    	}
+    	return batch.isEmpty() ? null : batch;
+    }
+
     public void close() {
     	child.close();
     }
@@ -125,5 +178,6 @@ public class SeqScan implements OpIterator {
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
     	child.rewind();
+    	resetBatch();
     }
 }
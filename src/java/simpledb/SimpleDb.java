@@ -43,8 +43,9 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+            String tableName=targetDatFile.getName().replaceAll("\\.dat$", "");
+            HeapFileLoader.load(sourceTxtFile,targetDatFile,new TupleDesc(ts),
+                        fieldSeparator,tableName);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
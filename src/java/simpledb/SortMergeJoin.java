@@ -0,0 +1,209 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two children that are both sorted in ascending order
+ * on their join fields, reading each of them only once.
+ * <p>
+ * For an equality predicate the children are merged; the tuples of child2
+ * that share a key are buffered as a run and joined with every tuple of
+ * child1 with that key. For a range predicate the tuples of one child that
+ * match the current tuple of the other form a prefix that only grows as the
+ * other child advances: for &gt; and &gt;= the buffered prefix is of child2
+ * and child1 drives the join, for &lt; and &lt;= it is the other way
+ * around. NOT_EQUALS and LIKE are not supported.
+ * <p>
+ * The result of an equality or &gt;/&gt;= join is sorted on the join field of
+ * child1, the result of a &lt;/&lt;= join on the join field of child2.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    // the tuple the buffer is joined with, and the next buffered tuple to join it with.
+    transient private Tuple current = null;
+    transient private ArrayList<Tuple> buffer = null;
+    transient private int pos = 0;
+    // the run of child2 in buffer (equality joins only), and the next unbuffered tuple of the buffered child.
+    transient private Field runKey = null;
+    transient private Tuple peeked = null;
+
+    /**
+     * Constructor. Accepts two children sorted in ascending order on their
+     * join fields, and the predicate to join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     * @throws IllegalArgumentException
+     *             if the predicate is NOT_EQUALS or LIKE
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("SortMergeJoin does not support " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a SortMergeJoin can evaluate predicates with op
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the name of the field the output is sorted on in ascending order
+     */
+    public String getSortedFieldName() {
+        return leftDriven() ? getJoinField1Name() : getJoinField2Name();
+    }
+
+    /** @return true if child1 drives the join and child2 is buffered */
+    private boolean leftDriven() {
+        Predicate.Op op = pred.getOperator();
+        return op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    private void reset() {
+        current = null;
+        buffer = new ArrayList<Tuple>();
+        pos = 0;
+        runKey = null;
+        peeked = null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        current = null;
+        buffer = null;
+        peeked = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    /** @return the next tuple of the buffered child without consuming it, or null */
+    private Tuple peek() throws DbException, TransactionAbortedException {
+        OpIterator other = leftDriven() ? child2 : child1;
+        if (peeked == null && other.hasNext())
+            peeked = other.next();
+        return peeked;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Like for {@link Join}, the result is the concatenation of
+     * the joining tuples of child1 and child2.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        boolean leftDriven = leftDriven();
+        OpIterator driver = leftDriven ? child1 : child2;
+        while (true) {
+            if (current != null && pos < buffer.size()) {
+                Tuple other = buffer.get(pos++);
+                return leftDriven ? merge(current, other) : merge(other, current);
+            }
+            if (!driver.hasNext())
+                return null;
+            current = driver.next();
+            pos = 0;
+            if (pred.getOperator() == Predicate.Op.EQUALS) {
+                if (!nextRun())
+                    return null;
+            } else {
+                // the prefix of the buffered child matching current only grows.
+                Tuple p;
+                while ((p = peek()) != null
+                        && (leftDriven ? pred.filter(current, p) : pred.filter(p, current))) {
+                    buffer.add(p);
+                    peeked = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Make buffer the run of child2 with the key of current, unless it
+     * already is.
+     *
+     * @return false if no later tuple of child1 can have a match
+     */
+    private boolean nextRun() throws DbException, TransactionAbortedException {
+        Field key = current.getField(pred.getField1());
+        if (runKey != null && key.compare(Predicate.Op.EQUALS, runKey))
+            return true;
+        buffer.clear();
+        Tuple p;
+        while ((p = peek()) != null && p.getField(pred.getField2()).compare(Predicate.Op.LESS_THAN, key))
+            peeked = null;
+        while ((p = peek()) != null && p.getField(pred.getField2()).compare(Predicate.Op.EQUALS, key)) {
+            buffer.add(p);
+            peeked = null;
+        }
+        runKey = key;
+        return !buffer.isEmpty() || peek() != null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
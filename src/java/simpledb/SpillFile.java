@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * SpillFile is a temporary file that an operator writes tuples to when its
+ * input does not fit in memory, and later reads back sequentially. Tuples
+ * are stored one after the other in the format of {@link Field#serialize}.
+ * <p>
+ * Tuples are appended until the first call to {@link #reader()}; after that
+ * the file can be read any number of times. The file is removed by
+ * {@link #delete()}, or when the JVM exits at the latest.
+ */
+public class SpillFile {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int numTuples;
+
+    /**
+     * Create an empty spill file for tuples with the given schema.
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp");
+        file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples written */
+    public int size() {
+        return numTuples;
+    }
+
+    /**
+     * Append a tuple.
+     *
+     * @throws IllegalStateException if the file has already been read
+     */
+    public void write(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file is already being read");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        numTuples++;
+    }
+
+    /**
+     * Finish writing, if that has not happened yet, and open a reader
+     * positioned at the first tuple.
+     */
+    public Reader reader() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        return new Reader();
+    }
+
+    /** Close and remove the file. */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is removed anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * Sequential reader over the tuples of a SpillFile.
+     */
+    public class Reader implements Closeable {
+        private final DataInputStream in;
+        private int remaining;
+
+        private Reader() throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            this.remaining = numTuples;
+        }
+
+        /**
+         * @return the next tuple, or null if all of them have been read
+         */
+        public Tuple next() throws IOException {
+            if (remaining == 0)
+                return null;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new IOException("corrupt spill file " + file, e);
+            }
+            remaining--;
+            return t;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
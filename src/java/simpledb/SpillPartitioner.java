@@ -0,0 +1,46 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * SpillPartitioner splits the tuples of an operator whose input does not fit
+ * in memory into {@link #NUM_PARTITIONS} {@link SpillFile}s by the hash of a
+ * key, so that all tuples with the same key end up in the same partition. A
+ * partition that is still too large is split again with the hash function of
+ * the next level, up to {@link #MAX_DEPTH} levels.
+ */
+public class SpillPartitioner {
+    /** Fan-out of each level of partitioning. */
+    public static final int NUM_PARTITIONS = 16;
+    /** Number of times an oversized partition is repartitioned. */
+    public static final int MAX_DEPTH = 3;
+
+    private SpillPartitioner() {
+    }
+
+    /** @return an empty set of partitions, created as tuples arrive */
+    public static SpillFile[] newPartitions() {
+        return new SpillFile[NUM_PARTITIONS];
+    }
+
+    /**
+     * @return the partition of a key at the given level of partitioning;
+     *         every level uses a different hash function.
+     */
+    public static int partition(Object key, int level) {
+        int h = key.hashCode() ^ (level * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % NUM_PARTITIONS;
+    }
+
+    /** Append a tuple to partition p, creating its file if needed. */
+    public static void spill(SpillFile[] partitions, int p, Tuple t) throws IOException {
+        if (partitions[p] == null)
+            partitions[p] = new SpillFile(t.getTupleDesc());
+        partitions[p].write(t);
+    }
+}
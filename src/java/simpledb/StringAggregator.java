@@ -30,7 +30,7 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-    	// StringAggregatorֻ֧COUNTΪۺϲStringFieldû塣
+    	// StringAggregator只支持COUNT操作，因为其它聚合操作对StringField没有意义。
     	if (what != Op.COUNT) {
     		throw new IllegalArgumentException("Only COUNT");
     	}
@@ -58,6 +58,53 @@ public class StringAggregator implements Aggregator {
     	}
     }
 
+    /**
+     * Merge the rows of a batch; without grouping the whole batch is
+     * counted at once.
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+    	if (batch.isEmpty())
+    		return;
+    	if (gbFieldNo == NO_GROUPING) {
+    		resultOfGroups.merge(_DUMMY_FIELD, batch.size(), Integer::sum);
+    		return;
+    	}
+    	for (int i = 0; i < batch.size(); i++)
+    		resultOfGroups.merge(batch.getField(gbFieldNo, i), 1, Integer::sum);
+    }
+
+    @Override
+    public void mergePartial(Aggregator partial) {
+    	if (!(partial instanceof StringAggregator))
+    		throw new IllegalArgumentException("cannot merge " + partial.getClass().getSimpleName());
+    	for (Entry<Field, Integer> e : ((StringAggregator) partial).resultOfGroups.entrySet())
+    		resultOfGroups.merge(e.getKey(), e.getValue(), Integer::sum);
+    }
+
+    @Override
+    public Aggregator[] splitPartial(int level) {
+    	StringAggregator[] split = new StringAggregator[SpillPartitioner.NUM_PARTITIONS];
+    	Type gbFieldType = gbFieldNo == NO_GROUPING ? null : tDesc.getFieldType(0);
+    	for (Entry<Field, Integer> e : resultOfGroups.entrySet()) {
+    		int p = SpillPartitioner.partition(e.getKey(), level);
+    		if (split[p] == null)
+    			split[p] = new StringAggregator(gbFieldNo, gbFieldType, aFieldNo, Op.COUNT);
+    		split[p].resultOfGroups.put(e.getKey(), e.getValue());
+    	}
+    	return split;
+    }
+
+    @Override
+    public int numGroups() {
+    	return resultOfGroups.size();
+    }
+
+    @Override
+    public boolean hasGroup(Field group) {
+    	return resultOfGroups.containsKey(gbFieldNo==NO_GROUPING? _DUMMY_FIELD: group);
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -11,11 +13,17 @@ import javax.activation.FileDataSource;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may instead be backed by the serialized bytes of
+ * the page; its fields are then only decoded when they are asked for.
  */
 public class Tuple implements Serializable {
 	private TupleDesc tDesc;
-	private ArrayList<Field> fields;
+	private final Field[] fields;
 	private RecordId rid;
+	// the serialized tuple, fields that are still null are decoded from here.
+	private transient ByteBuffer source;
+	private transient int sourceOffset;
 
     private static final long serialVersionUID = 1L;
 
@@ -28,8 +36,27 @@ public class Tuple implements Serializable {
      */
     public Tuple(TupleDesc td) {
         // some code goes here
-    	this.tDesc = td; // XXX tDesctdԼⲿĳЩָͬͬһʵ
-    	this.fields = new ArrayList<Field>(td.numFields());
+    	this.tDesc = td; // XXX tDesc和td以及外部的某些变量同指向同一个实体对象。
+    	this.fields = new Field[td.numFields()];
+    }
+
+    /**
+     * Create a tuple whose fields are decoded lazily from their serialized
+     * form, as written by {@link Field#serialize}, at the given absolute
+     * offset of source. The bytes must not change while the tuple is in use.
+     *
+     * @param td
+     *            the schema of this tuple.
+     * @param source
+     *            the buffer holding the serialized tuple; its position is
+     *            not used or changed.
+     * @param offset
+     *            the offset in source of the first byte of the tuple.
+     */
+    public Tuple(TupleDesc td, ByteBuffer source, int offset) {
+    	this(td);
+    	this.source = source;
+    	this.sourceOffset = offset;
     }
 
     /**
@@ -70,7 +97,7 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-    	fields.add(i, f);
+    	fields[i] = f;
     }
 
     /**
@@ -81,7 +108,32 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields.get(i);
+    	Field f = fields[i];
+    	if (f == null && source != null) {
+    		f = tDesc.getFieldType(i).parse(source, sourceOffset + tDesc.getFieldOffset(i));
+    		fields[i] = f;
+    	}
+        return f;
+    }
+
+    /**
+     * Compare the ith field of this tuple to a value, see {@link Field#compare}.
+     * A field that has not been decoded yet is compared in its serialized
+     * form without being materialized.
+     */
+    public boolean compareField(int i, Predicate.Op op, Field value) {
+    	if (fields[i] == null && source != null)
+    		return tDesc.getFieldType(i).compare(source, sourceOffset + tDesc.getFieldOffset(i), op, value);
+    	return getField(i).compare(op, value);
+    }
+
+    /** Decode every field that has not been decoded yet. */
+    private void decodeAll() {
+    	if (source == null)
+    		return;
+    	for (int i = 0; i < fields.length; i++)
+    		getField(i);
+    	source = null;
     }
 
     /**
@@ -96,11 +148,11 @@ public class Tuple implements Serializable {
         // some code goes here
         // throw new UnsupportedOperationException("Implement this");
     	StringBuilder sBuilder = new StringBuilder();
-    	for (int i = 0; i < fields.size()-1; i++) {
-			sBuilder.append(fields.get(i));
+    	for (int i = 0; i < fields.length-1; i++) {
+			sBuilder.append(getField(i));
 			sBuilder.append("\t");
 		}
-    	sBuilder.append(fields.get(fields.size()-1));
+    	sBuilder.append(getField(fields.length-1));
     	return sBuilder.toString();
     }
 
@@ -111,7 +163,8 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return fields.iterator();
+    	decodeAll();
+        return Arrays.asList(fields).iterator();
     }
 
     /**
@@ -122,4 +175,9 @@ public class Tuple implements Serializable {
         // some code goes here
     	tDesc = td;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+    	decodeAll();
+    	out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * TupleBatch holds up to a fixed number of rows of one schema in column
+ * form, for operators that process their input a batch at a time (see
+ * {@link OpIterator#nextBatch}). INT columns are stored as int arrays, all
+ * other columns as arrays of Fields.
+ * <p>
+ * A selection vector lists the rows of the batch that are still part of the
+ * result, so that operators like Filter can drop rows without copying the
+ * columns. Rows are always addressed by their position in the selection,
+ * from 0 to {@link #size()}.
+ */
+public class TupleBatch {
+
+    /** Number of rows in a batch unless specified otherwise. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] intColumns; // non-null for the INT_TYPE fields
+    private final Field[][] columns; // non-null for all other fields
+    private final PageId[] pageIds;
+    private final int[] slots;
+    private int numRows;
+    private int[] selection; // null while every row is selected
+    private int numSelected;
+
+    /**
+     * Create an empty batch of DEFAULT_CAPACITY rows.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td
+     *            the schema of the rows
+     * @param capacity
+     *            the maximum number of rows
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.intColumns = new int[td.numFields()][];
+        this.columns = new Field[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                intColumns[i] = new int[capacity];
+            else
+                columns[i] = new Field[capacity];
+        }
+        this.pageIds = new PageId[capacity];
+        this.slots = new int[capacity];
+    }
+
+    /**
+     * Create a batch over the columns of another one; used by projection.
+     */
+    private TupleBatch(TupleDesc td, TupleBatch other, int[] fieldIds) {
+        this.td = td;
+        this.capacity = other.capacity;
+        this.intColumns = new int[fieldIds.length][];
+        this.columns = new Field[fieldIds.length][];
+        for (int i = 0; i < fieldIds.length; i++) {
+            intColumns[i] = other.intColumns[fieldIds[i]];
+            columns[i] = other.columns[fieldIds[i]];
+        }
+        this.pageIds = other.pageIds;
+        this.slots = other.slots;
+        this.numRows = other.numRows;
+        this.selection = other.selection;
+        this.numSelected = other.numSelected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return selection == null ? numRows : numSelected;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** @return true if no more rows can be appended */
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /** Map the ith selected row to its position in the columns. */
+    private int row(int i) {
+        if (i < 0 || i >= size())
+            throw new IndexOutOfBoundsException("row " + i + " of " + size());
+        return selection == null ? i : selection[i];
+    }
+
+    /**
+     * @return the value of field f of the ith selected row, which must be
+     *         an INT_TYPE field
+     */
+    public int getInt(int f, int i) {
+        return intColumns[f][row(i)];
+    }
+
+    /** @return the value of field f of the ith selected row */
+    public Field getField(int f, int i) {
+        int r = row(i);
+        if (intColumns[f] != null)
+            return new IntField(intColumns[f][r]);
+        return columns[f][r];
+    }
+
+    /** @return the RecordId of the ith selected row, or null if it has none */
+    public RecordId getRecordId(int i) {
+        int r = row(i);
+        return pageIds[r] == null ? null : new RecordId(pageIds[r], slots[r]);
+    }
+
+    /** @return the ith selected row as a Tuple */
+    public Tuple getTuple(int i) {
+        Tuple t = new Tuple(td);
+        for (int f = 0; f < td.numFields(); f++)
+            t.setField(f, getField(f, i));
+        t.setRecordId(getRecordId(i));
+        return t;
+    }
+
+    /**
+     * Append a row. Rows can only be appended while all of them are selected.
+     *
+     * @return the position of the new row
+     */
+    private int newRow(RecordId rid) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        if (selection != null)
+            throw new IllegalStateException("cannot append to a filtered batch");
+        int r = numRows++;
+        pageIds[r] = rid == null ? null : rid.getPageId();
+        slots[r] = rid == null ? 0 : rid.getTupleNumber();
+        return r;
+    }
+
+    /** Append the fields and RecordId of t as a new row. */
+    public void append(Tuple t) {
+        int r = newRow(t.getRecordId());
+        for (int f = 0; f < td.numFields(); f++)
+            set(f, r, t.getField(f));
+    }
+
+    /**
+     * Append a copy of the ith selected row of other, which must have the
+     * same schema, with its RecordId.
+     */
+    public void append(TupleBatch other, int i) {
+        int o = other.row(i);
+        int r = newRow(null);
+        pageIds[r] = other.pageIds[o];
+        slots[r] = other.slots[o];
+        for (int f = 0; f < td.numFields(); f++) {
+            if (intColumns[f] != null)
+                intColumns[f][r] = other.intColumns[f][o];
+            else
+                columns[f][r] = other.columns[f][o];
+        }
+    }
+
+    /**
+     * Append a row decoded straight from a serialized tuple at the given
+     * absolute offset of buf, without creating a Tuple.
+     */
+    public void append(ByteBuffer buf, int offset, PageId pid, int slot) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        if (selection != null)
+            throw new IllegalStateException("cannot append to a filtered batch");
+        int r = numRows++;
+        pageIds[r] = pid;
+        slots[r] = slot;
+        for (int f = 0; f < td.numFields(); f++) {
+            int off = offset + td.getFieldOffset(f);
+            if (intColumns[f] != null)
+                intColumns[f][r] = buf.getInt(off);
+            else
+                columns[f][r] = td.getFieldType(f).parse(buf, off);
+        }
+    }
+
+    /**
+     * Append a row made of the fields of t followed by the fields of the ith
+     * selected row of other; used by joins.
+     */
+    public void appendJoined(Tuple t, TupleBatch other, int i) {
+        int r = newRow(null);
+        int n1 = t.getTupleDesc().numFields();
+        for (int f = 0; f < n1; f++)
+            set(f, r, t.getField(f));
+        int o = other.row(i);
+        for (int f = 0; f < other.td.numFields(); f++) {
+            if (intColumns[n1 + f] != null && other.intColumns[f] != null)
+                intColumns[n1 + f][r] = other.intColumns[f][o];
+            else
+                set(n1 + f, r, other.getField(f, i));
+        }
+    }
+
+    private void set(int f, int r, Field value) {
+        if (intColumns[f] != null)
+            intColumns[f][r] = ((IntField) value).getValue();
+        else
+            columns[f][r] = value;
+    }
+
+    /**
+     * Keep only the selected rows for which keep[i] is true, where i is the
+     * position of the row in the current selection.
+     */
+    public void select(boolean[] keep) {
+        int n = size();
+        int[] sel = new int[n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i])
+                sel[k++] = selection == null ? i : selection[i];
+        }
+        selection = sel;
+        numSelected = k;
+    }
+
+    /**
+     * @return a batch with the given fields of this one, in the given order,
+     *         sharing the columns and the selection of this batch
+     */
+    public TupleBatch project(int[] fieldIds, TupleDesc td) {
+        return new TupleBatch(td, this, fieldIds);
+    }
+}
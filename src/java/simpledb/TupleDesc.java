@@ -8,6 +8,9 @@ import java.util.*;
  */
 public class TupleDesc implements Serializable {
 	private ArrayList<TDItem> tdItems;
+	// offsets[i] is the byte offset of field i in a serialized tuple, offsets[numFields()] the tuple size.
+	// volatile, as parallel scans share the TupleDesc of a file.
+	private transient volatile int[] offsets;
 
     /**
      * A help class to facilitate organizing the information of each field
@@ -138,7 +141,7 @@ public class TupleDesc implements Serializable {
     public int fieldNameToIndex(String name) throws NoSuchElementException {
         // some code goes here
     	for (int i = 0; i < tdItems.size(); i++) {
-    		// жequals()עжǷΪnullָ쳣
+    		// 判断内容相等用equals()，注意先判断是否为null，避免空指针异常。
 			if (tdItems.get(i).fieldName!=null && tdItems.get(i).fieldName.equals(name))
 				return i;
 		}
@@ -151,11 +154,30 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-    	int size = 0;
-    	for (int i = 0; i < tdItems.size(); i++) {
-			size += tdItems.get(i).fieldType.getLen();
-		}
-        return size;
+    	return offsets()[tdItems.size()];
+    }
+
+    /**
+     * @return the offset (in bytes) of the ith field from the start of a
+     *         serialized tuple corresponding to this TupleDesc.
+     * @param i
+     *            index of the field. It must be a valid index.
+     */
+    public int getFieldOffset(int i) {
+    	if (i < 0 || i >= tdItems.size())
+    		throw new NoSuchElementException();
+    	return offsets()[i];
+    }
+
+    private int[] offsets() {
+    	int[] o = offsets;
+    	if (o == null) {
+    		o = new int[tdItems.size() + 1];
+    		for (int i = 0; i < tdItems.size(); i++)
+    			o[i + 1] = o[i] + tdItems.get(i).fieldType.getLen();
+    		offsets = o;
+    	}
+    	return o;
     }
 
     /**
@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q replacement (Johnson and Shasha). New pages enter the FIFO A1in; a page
+ * evicted from A1in leaves its id in the ghost queue A1out, and only a page
+ * that is fetched again while still remembered in A1out is admitted to the
+ * LRU list Am. Pages touched once, as in a sequential scan, therefore never
+ * reach Am.
+ * <p>
+ * Pages fetched by sequential scans are also kept out of A1out and are
+ * replaced before any other page of A1in.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+	private final int kin;
+	private final int kout;
+	private final LinkedHashSet<PageId> a1in;
+	private final LinkedHashSet<PageId> a1out;
+	private final LinkedHashMap<PageId, Boolean> am; // access order, eldest entry is the LRU page
+	private final LinkedHashSet<PageId> scanOnce; // the scan-fetched subset of a1in
+
+	public TwoQueuePolicy(int capacity) {
+		// the sizes recommended by the paper: A1in 25% and A1out 50% of the frames.
+		this.kin = Math.max(1, capacity / 4);
+		this.kout = Math.max(1, capacity / 2);
+		this.a1in = new LinkedHashSet<PageId>();
+		this.a1out = new LinkedHashSet<PageId>();
+		this.am = new LinkedHashMap<PageId, Boolean>(capacity, 0.75F, true);
+		this.scanOnce = new LinkedHashSet<PageId>();
+	}
+
+	@Override
+	public void admit(PageId pid, boolean scan) {
+		if (!scan && a1out.remove(pid)) {
+			am.put(pid, Boolean.TRUE);
+		} else {
+			a1in.add(pid);
+			if (scan)
+				scanOnce.add(pid);
+		}
+	}
+
+	@Override
+	public void touch(PageId pid, boolean scan) {
+		if (scan)
+			return;
+		// a hit in A1in is deliberately ignored, it may be a correlated reference.
+		if (am.get(pid) == null)
+			scanOnce.remove(pid);
+	}
+
+	@Override
+	public PageId victim() {
+		if (!scanOnce.isEmpty())
+			return scanOnce.iterator().next();
+		if (!a1in.isEmpty() && (a1in.size() > kin || am.isEmpty()))
+			return a1in.iterator().next();
+		if (!am.isEmpty())
+			return am.keySet().iterator().next();
+		return null;
+	}
+
+	@Override
+	public void evict(PageId pid) {
+		if (a1in.remove(pid)) {
+			if (!scanOnce.remove(pid)) {
+				a1out.add(pid);
+				if (a1out.size() > kout) {
+					Iterator<PageId> it = a1out.iterator();
+					it.next();
+					it.remove();
+				}
+			}
+		} else {
+			am.remove(pid);
+		}
+	}
+
+	@Override
+	public void remove(PageId pid) {
+		a1in.remove(pid);
+		scanOnce.remove(pid);
+		am.remove(pid);
+		a1out.remove(pid);
+	}
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -9,10 +10,10 @@ import java.io.*;
  * constructor is private.
  */
 public enum Type implements Serializable {
-    // XXX ͣ洢ʵʵݡͿԸڸ͵/
-	// ͬÿTypeҪԼݵ֯ʽʵparse()ϵͳչµTypeʱŲҪ޸ִ롣
-    // XXX SimpleDBУԲϿֵֶField͵ȻFieldӸ߼ĳοֵֶFieldschema/TupleDescֶ/򣬼Type
-	// أIntFieldINT_TYPEStringFieldSTRING_TYPE
+    // XXX 类型，并不存储实际的数据。但类型可以负责解析属于该类型的数据/对象。
+	// 同样，每个Type要自己根据数据的组织方式实现parse()，这样给系统扩展新的Type时才不需要修改其它部分代码。
+    // XXX 在SimpleDB中，从语言层面上看，字段值Field对象的类型当然是Field，但从更高级的抽象层次看，字段值Field对象的类型是schema/TupleDesc中描述的字段类型/域，即Type。
+	// 具体地，IntField的类型是INT_TYPE，StringField的类型是STRING_TYPE。
     INT_TYPE() {
         @Override
         public int getLen() {
@@ -28,6 +29,16 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field value) {
+            return IntField.compare(buf.getInt(offset), op, ((IntField) value).getValue());
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +57,16 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            byte bs[] = new byte[strLen];
+            ByteBuffer src = buf.duplicate();
+            src.position(offset + 4);
+            src.get(bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +85,21 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified absolute offset of buf. The position of buf
+   *   is not changed.
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
+  /**
+   * Compare the serialized field at the specified absolute offset of buf to
+   * value, with the semantics of {@link Field#compare}. Types that can
+   * compare their serialized form directly override this to avoid creating
+   * a Field.
+   */
+    public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field value) {
+        return parse(buf, offset).compare(op, value);
+    }
+
 }
@@ -98,11 +98,15 @@ public class Utility {
      * A utility method to create a new HeapFile with a single empty page,
      * assuming the path does not already exist. If the path exists, the file
      * will be overwritten. The new table will be added to the Catalog with
-     * the specified number of columns as IntFields.
+     * the specified number of columns as IntFields. Its free space map is
+     * deleted when the VM exits.
      */
     public static HeapFile createEmptyHeapFile(String path, int cols)
         throws IOException {
         File f = new File(path);
+        // the free space map of any table that was stored in f before.
+        FreeSpaceMap.fileFor(f).delete();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
         // touch the file
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
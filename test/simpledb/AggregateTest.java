@@ -3,12 +3,24 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -176,6 +188,122 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /** A HeapFile that counts the pages read as batches. */
+  private static class CountingHeapFile extends HeapFile {
+    final AtomicInteger pagesRead = new AtomicInteger();
+
+    CountingHeapFile(File f, TupleDesc td) {
+      super(f, td);
+    }
+
+    @Override TupleBatch readBatch(TransactionId tid, int pgNo, TupleDesc td)
+        throws DbException, TransactionAbortedException {
+      pagesRead.incrementAndGet();
+      return super.readBatch(tid, pgNo, td);
+    }
+  }
+
+  /**
+   * A parallel aggregation whose partials overflow the memory budget spills
+   * them instead of starting over, so every page is read once and the child
+   * is not scanned a second time.
+   */
+  @Test public void parallelOverflow() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    File f = SystemTestUtil.createRandomHeapFileUnopened(2, 20000, 5000, null, tuples);
+    CountingHeapFile hf = new CountingHeapFile(f, Utility.getTupleDesc(2));
+    Database.getCatalog().addTable(hf);
+    assertTrue(hf.numPages() > 2 * Aggregate.PAGES_PER_TASK);
+
+    HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+    for (ArrayList<Integer> t : tuples)
+      sums.merge(t.get(0), t.get(1), Integer::sum);
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (Map.Entry<Integer, Integer> e : sums.entrySet())
+      expected.add(new ArrayList<Integer>(Arrays.asList(e.getKey(), e.getValue())));
+
+    TransactionId tid = new TransactionId();
+    AtomicInteger opens = new AtomicInteger();
+    SeqScan scan = new SeqScan(tid, hf.getId(), "") {
+      @Override public void open() throws DbException, TransactionAbortedException {
+        opens.incrementAndGet();
+        super.open();
+      }
+    };
+    Aggregate op = new Aggregate(scan, 1, 0, Aggregator.Op.SUM, 100);
+    op.setParallelism(4);
+    SystemTestUtil.matchTuples(op, expected);
+    assertEquals(hf.numPages(), hf.pagesRead.get());
+    assertTrue(opens.get() <= 1);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The spilled partials of a parallel aggregation whose partitions still
+   * have far more groups than the budget are split again level by level,
+   * and their averages come out right.
+   */
+  @Test public void parallelRepartition() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples);
+    assertTrue(hf.numPages() > 2 * Aggregate.PAGES_PER_TASK);
+
+    HashMap<Integer, int[]> sums = new HashMap<Integer, int[]>();
+    for (ArrayList<Integer> t : tuples) {
+      int[] sum = sums.computeIfAbsent(t.get(0), k -> new int[2]);
+      sum[0] += t.get(1);
+      sum[1]++;
+    }
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (Map.Entry<Integer, int[]> e : sums.entrySet())
+      expected.add(new ArrayList<Integer>(Arrays.asList(e.getKey(), e.getValue()[0] / e.getValue()[1])));
+
+    TransactionId tid = new TransactionId();
+    Aggregate op = new Aggregate(new SeqScan(tid, hf.getId(), ""), 1, 0, Aggregator.Op.AVG, 4);
+    op.setParallelism(4);
+    SystemTestUtil.matchTuples(op, expected);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A parallel aggregation runs on a pool of its own with no more threads
+   * than its parallelism.
+   */
+  @Test public void parallelismBound() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 100, null, tuples);
+    assertTrue(hf.numPages() > 2 * Aggregate.PAGES_PER_TASK);
+
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    Predicate all = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(Integer.MIN_VALUE)) {
+      @Override public void filter(TupleBatch batch) {
+        threads.add(Thread.currentThread());
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.filter(batch);
+      }
+    };
+    TransactionId tid = new TransactionId();
+    Aggregate op = new Aggregate(new Filter(all, new SeqScan(tid, hf.getId(), "")),
+        1, 0, Aggregator.Op.COUNT, 100);
+    op.setParallelism(2);
+    HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (ArrayList<Integer> t : tuples)
+      counts.merge(t.get(0), 1, Integer::sum);
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (Map.Entry<Integer, Integer> e : counts.entrySet())
+      expected.add(new ArrayList<Integer>(Arrays.asList(e.getKey(), e.getValue())));
+    SystemTestUtil.matchTuples(op, expected);
+    assertTrue(threads.toString(), threads.size() <= 2);
+    for (Thread t : threads)
+      assertTrue(t.getName(), t instanceof ForkJoinWorkerThread
+          && ((ForkJoinWorkerThread) t).getPool() != ForkJoinPool.commonPool());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.util.Random;
+
+/**
+ * Compares the boxed {@link IntegerAggregator} with the primitive
+ * {@link IntGroupAggregator} on a GROUP BY over int columns. Run with
+ * <pre>
+ * java -cp bin/src:bin/test simpledb.AggregatorBenchmark [rows] [groups]
+ * </pre>
+ */
+public class AggregatorBenchmark {
+
+    private static final int ROUNDS = 10;
+
+    private static long time(TupleBatch[] batches, boolean primitive) {
+        long start = System.nanoTime();
+        Aggregator agg = primitive ? new IntGroupAggregator(0, 1, Aggregator.Op.AVG)
+                : new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+        for (TupleBatch batch : batches)
+            agg.mergeBatchIntoGroup(batch);
+        if (agg.numGroups() == 0)
+            throw new IllegalStateException("no groups");
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        TupleDesc td = Utility.getTupleDesc(2);
+        Random rand = new Random(0);
+        TupleBatch[] batches = new TupleBatch[(rows + TupleBatch.DEFAULT_CAPACITY - 1) / TupleBatch.DEFAULT_CAPACITY];
+        for (int b = 0; b < batches.length; b++) {
+            batches[b] = new TupleBatch(td);
+            for (int i = 0; i < TupleBatch.DEFAULT_CAPACITY && b * TupleBatch.DEFAULT_CAPACITY + i < rows; i++) {
+                Tuple t = new Tuple(td);
+                t.setField(0, new IntField(rand.nextInt(groups)));
+                t.setField(1, new IntField(rand.nextInt(1000)));
+                batches[b].append(t);
+            }
+        }
+
+        long boxed = Long.MAX_VALUE, primitive = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            boxed = Math.min(boxed, time(batches, false));
+            primitive = Math.min(primitive, time(batches, true));
+        }
+        System.out.printf("%d rows, %d groups: IntegerAggregator %.1f ms, IntGroupAggregator %.1f ms (%.1fx)%n",
+                rows, groups, boxed / 1e6, primitive / 1e6, (double) boxed / primitive);
+    }
+}
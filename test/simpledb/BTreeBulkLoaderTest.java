@@ -0,0 +1,111 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // small pages, so that the trees get several levels.
+        BufferPool.setPageSize(512);
+        Database.reset();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        BufferPool.resetPageSize();
+    }
+
+    private BTreeFile build(int rows, double fillFactor, ArrayList<ArrayList<Integer>> tuples)
+            throws Exception {
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, tuples);
+        File bFile = File.createTempFile("bulk", ".dat");
+        bFile.deleteOnExit();
+        BTreeFile bf = BTreeBulkLoader.build(tid, source, bFile, 0, fillFactor, 500);
+        return bf;
+    }
+
+    /** @return the leaves of the tree, left to right along their sibling pointers */
+    private static ArrayList<BTreeLeafPage> leaves(BTreeFile bf) throws Exception {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        BTreePageId pid = rootPtr.getRootId();
+        while (pid.pgcateg() == BTreePageId.INTERNAL)
+            pid = ((BTreeInternalPage) bf.readPage(pid)).iterator().next().getLeftChild();
+        ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+        while (pid != null) {
+            BTreeLeafPage leaf = (BTreeLeafPage) bf.readPage(pid);
+            leaves.add(leaf);
+            pid = leaf.getRightSiblingId();
+        }
+        return leaves;
+    }
+
+    /**
+     * A table much larger than the sort's memory is built into a valid tree
+     * of several levels that holds every tuple in key order.
+     */
+    @Test public void build() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = build(20000, 0.75, tuples);
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        BTreeInternalPage root = (BTreeInternalPage) bf.readPage(rootPtr.getRootId());
+        assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+
+        ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+        for (BTreeLeafPage leaf : leaves(bf)) {
+            assertTrue(leaf.getNumTuples() <= (int) (leaf.getMaxTuples() * 0.75));
+            Iterator<Tuple> it = leaf.iterator();
+            while (it.hasNext())
+                found.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        for (int i = 1; i < found.size(); i++)
+            assertTrue(found.get(i - 1).get(0) <= found.get(i).get(0));
+
+        java.util.Comparator<ArrayList<Integer>> rowOrder = (x, y) -> x.get(0).equals(y.get(0))
+                ? x.get(1).compareTo(y.get(1)) : x.get(0).compareTo(y.get(0));
+        Collections.sort(tuples, rowOrder);
+        Collections.sort(found, rowOrder);
+        assertEquals(tuples, found);
+    }
+
+    @Test public void fullPages() throws Exception {
+        BTreeFile bf = build(3000, 1.0, null);
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        ArrayList<BTreeLeafPage> leaves = leaves(bf);
+        int max = leaves.get(0).getMaxTuples();
+        assertEquals((3000 + max - 1) / max, leaves.size());
+    }
+
+    @Test public void emptyTable() throws Exception {
+        BTreeFile bf = build(0, BTreeBulkLoader.DEFAULT_FILL_FACTOR, null);
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        ArrayList<BTreeLeafPage> leaves = leaves(bf);
+        assertEquals(1, leaves.size());
+        assertEquals(0, leaves.get(0).getNumTuples());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+    }
+}
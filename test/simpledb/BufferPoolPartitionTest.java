@@ -0,0 +1,199 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPartitionTest extends SimpleDbTestBase {
+
+    /** A HeapFile whose reads and writes of one page block until they are
+        released, and whose writes can be made to fail. */
+    private static class BlockingHeapFile extends HeapFile {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile int blockedPage = -1;
+        volatile boolean blockWrites = false;
+        volatile boolean failWrites = false;
+
+        BlockingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override public Page readPage(PageId pid) {
+            if (pid.getPageNumber() == blockedPage) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+
+        @Override public void writePage(Page page) throws IOException {
+            if (failWrites)
+                throw new IOException("write of " + page.getId() + " failed");
+            if (blockWrites && page.getId().getPageNumber() == blockedPage) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            super.writePage(page);
+        }
+    }
+
+    /**
+     * A miss reads its page without holding the partition's monitor, so a
+     * hit on the same partition completes while the read is blocked.
+     */
+    @Test public void hitDuringMiss() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_PAGES, 1);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, null);
+        BlockingHeapFile hf = new BlockingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf);
+        assertTrue(hf.numPages() >= 2);
+        TransactionId tid = new TransactionId();
+
+        HeapPageId hot = new HeapPageId(hf.getId(), 0);
+        Page cached = pool.getPage(tid, hot, Permissions.READ_ONLY);
+
+        hf.blockedPage = 1;
+        Thread miss = new Thread(() -> {
+            try {
+                pool.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        miss.start();
+        assertTrue(hf.entered.await(10, TimeUnit.SECONDS));
+
+        Page[] hit = new Page[1];
+        Thread reader = new Thread(() -> {
+            try {
+                hit[0] = pool.getPage(tid, hot, Permissions.READ_ONLY);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        reader.join(10000);
+        boolean blocked = reader.isAlive();
+        hf.release.countDown();
+        miss.join(10000);
+        assertFalse(blocked);
+        assertSame(cached, hit[0]);
+        assertFalse(miss.isAlive());
+        assertTrue(pool.isCached(new HeapPageId(hf.getId(), 1)));
+    }
+
+    /**
+     * A flush writes its pages without holding the partition's monitor, so
+     * a hit on the same partition completes while the write is blocked, and
+     * the flushed page is cached again, clean, once it is on disk.
+     */
+    @Test public void hitDuringFlush() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_PAGES, 1);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, null);
+        BlockingHeapFile hf = new BlockingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf);
+        assertTrue(hf.numPages() >= 2);
+        TransactionId tid = new TransactionId();
+
+        HeapPageId hot = new HeapPageId(hf.getId(), 0);
+        HeapPageId dirty = new HeapPageId(hf.getId(), 1);
+        Page cached = pool.getPage(tid, hot, Permissions.READ_ONLY);
+        Page page = pool.getPage(tid, dirty, Permissions.READ_WRITE);
+        page.markDirty(true, tid);
+
+        hf.blockedPage = 1;
+        hf.blockWrites = true;
+        Thread flush = new Thread(() -> {
+            try {
+                pool.flushPages(tid);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        flush.start();
+        assertTrue(hf.entered.await(10, TimeUnit.SECONDS));
+
+        Page[] hit = new Page[1];
+        Thread reader = new Thread(() -> {
+            try {
+                hit[0] = pool.getPage(tid, hot, Permissions.READ_ONLY);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        reader.join(10000);
+        boolean blocked = reader.isAlive();
+        hf.release.countDown();
+        flush.join(10000);
+        assertFalse(blocked);
+        assertSame(cached, hit[0]);
+        assertFalse(flush.isAlive());
+        assertTrue(pool.isCached(dirty));
+        assertSame(page, pool.getPage(tid, dirty, Permissions.READ_ONLY));
+        assertNull(page.isDirty());
+    }
+
+    /**
+     * An evicted page whose write back fails is put back into its partition
+     * although the partition is full again; the replacement policy must
+     * take it, and evict it later once it can be written.
+     */
+    @Test public void failedWriteBackIntoFullPartition() throws Exception {
+        BufferPool pool = new BufferPool(2, 1, ClockPolicy::new);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 5000, 1000, null, null);
+        BlockingHeapFile hf = new BlockingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf);
+        assertTrue(hf.numPages() >= 6);
+        TransactionId tid = new TransactionId();
+
+        for (int i = 0; i < 2; i++)
+            pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE).markDirty(true, tid);
+
+        hf.failWrites = true;
+        try {
+            pool.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("the write back of the evicted page should have failed");
+        } catch (DbException e) {
+            // expected
+        }
+        assertTrue(pool.isCached(new HeapPageId(hf.getId(), 0)));
+        assertTrue(pool.isCached(new HeapPageId(hf.getId(), 1)));
+
+        hf.failWrites = false;
+        for (int i = 3; i < 6; i++)
+            pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertFalse(pool.isCached(new HeapPageId(hf.getId(), 0)));
+        assertFalse(pool.isCached(new HeapPageId(hf.getId(), 1)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPartitionTest.class);
+    }
+}
@@ -41,8 +41,8 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
                 bw.write(emptyData);
                 bw.close();
                 */
-    			// ΪUtility.createEmptyHeapFile()һһPageHeapFileִУôTuple tͻڶPageУ
-    			// ӶⲿhandleManyDirtyPages()ļʧܡ
+    			// 因为Utility.createEmptyHeapFile()创建的是一个带有一个空Page的HeapFile，所以如果上面的语句先执行，那么下面的Tuple t就会插入第二个Page中，
+    			// 从而导致外部handleManyDirtyPages()后面的检查失败。
     			// TODO
     			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1), 
     					HeapPage.createEmptyPageData());
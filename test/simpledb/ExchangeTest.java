@@ -0,0 +1,196 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int ROWS_A = 6000;
+    private static final int ROWS_B = 3000;
+
+    private HeapFile a, b;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        a = SystemTestUtil.createRandomHeapFile(3, ROWS_A, 500, null, null, "a");
+        b = SystemTestUtil.createRandomHeapFile(2, ROWS_B, 500, null, null, "b");
+        Database.getCatalog().addTable(a, "ta");
+        Database.getCatalog().addTable(b, "tb");
+        tid = new TransactionId();
+    }
+
+    private static final Comparator<ArrayList<Integer>> ROW_ORDER = new Comparator<ArrayList<Integer>>() {
+        @Override
+        public int compare(ArrayList<Integer> x, ArrayList<Integer> y) {
+            for (int i = 0; i < x.size(); i++) {
+                int c = x.get(i).compareTo(y.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    };
+
+    private static ArrayList<ArrayList<Integer>> drain(OpIterator op) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while (op.hasNext())
+            rows.add(SystemTestUtil.tupleToList(op.next()));
+        Collections.sort(rows, ROW_ORDER);
+        return rows;
+    }
+
+    private static ArrayList<ArrayList<Integer>> run(OpIterator op) throws Exception {
+        op.open();
+        ArrayList<ArrayList<Integer>> rows = drain(op);
+        op.close();
+        return rows;
+    }
+
+    private SeqScan scan(HeapFile f) {
+        return new SeqScan(tid, f.getId());
+    }
+
+    @Test public void gather() throws Exception {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 3; i++)
+            expected.addAll(run(scan(a)));
+        Collections.sort(expected, ROW_ORDER);
+
+        Exchange gather = Exchange.gather(scan(a), scan(a), scan(a));
+        gather.open();
+        assertEquals(expected, drain(gather));
+        gather.rewind();
+        assertEquals(expected, drain(gather));
+        gather.close();
+    }
+
+    /**
+     * Repartitioning sends all the tuples of a group to the same consumer,
+     * so aggregating the partitions separately gives the serial result.
+     */
+    @Test public void repartitionedAggregate() throws Exception {
+        ArrayList<ArrayList<Integer>> expected = run(new Aggregate(scan(a), 1, 0, Aggregator.Op.COUNT));
+
+        Exchange[] partitions = Exchange.repartition(scan(a), 0, 4);
+        OpIterator[] aggs = new OpIterator[partitions.length];
+        for (int i = 0; i < partitions.length; i++)
+            aggs[i] = new Aggregate(partitions[i], 1, 0, Aggregator.Op.COUNT);
+        assertEquals(expected, run(Exchange.gather(aggs)));
+    }
+
+    @Test public void repartitionedHashJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ArrayList<ArrayList<Integer>> expected = run(new HashEquiJoin(p, scan(a), scan(b)));
+        assertTrue(expected.size() > ROWS_A);
+
+        Exchange[] left = Exchange.repartition(scan(a), 0, 3);
+        Exchange[] right = Exchange.repartition(scan(b), 0, 3);
+        OpIterator[] joins = new OpIterator[3];
+        for (int i = 0; i < 3; i++)
+            joins[i] = new HashEquiJoin(p, left[i], right[i]);
+        assertEquals(expected, run(Exchange.gather(joins)));
+    }
+
+    /**
+     * A nested loops join rewinds its inner input once per block of the
+     * outer one, which a broadcast consumer replays from memory.
+     */
+    @Test public void broadcastInner() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        Predicate small = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(5));
+        ArrayList<ArrayList<Integer>> expected = run(new Join(p, scan(a), new Filter(small, scan(b))));
+        assertTrue(expected.size() > 0);
+
+        Exchange[] outer = Exchange.repartition(scan(a), 1, 2);
+        Exchange[] inner = Exchange.broadcast(new Filter(small, scan(b)), 2);
+        OpIterator[] joins = new OpIterator[2];
+        for (int i = 0; i < 2; i++)
+            joins[i] = new Join(p, outer[i], inner[i], 100);
+        assertEquals(expected, run(Exchange.gather(joins)));
+    }
+
+    /**
+     * Closing an exchange that has not been drained stops its producers and
+     * those of the exchanges below it, and it can be opened again.
+     */
+    @Test(timeout = 60000) public void closeEarly() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        Exchange[] left = Exchange.repartition(scan(a), 0, 2);
+        Exchange[] right = Exchange.repartition(scan(b), 0, 2);
+        Exchange gather = Exchange.gather(new HashEquiJoin(p, left[0], right[0]),
+                new HashEquiJoin(p, left[1], right[1]));
+        for (int i = 0; i < 3; i++) {
+            gather.open();
+            for (int j = 0; j < 10; j++)
+                gather.next();
+            gather.close();
+        }
+        assertEquals(run(new HashEquiJoin(p, scan(a), scan(b))), run(gather));
+    }
+
+    /** Statistics that make every table look large enough to parallelize. */
+    private static class LargeTableStats extends TableStats {
+        LargeTableStats(int tableid) {
+            super(tableid, 1);
+        }
+
+        @Override
+        public int estimateTableCardinality(double selectivityFactor) {
+            return LogicalPlan.PARALLEL_CARDINALITY;
+        }
+    }
+
+    private static boolean hasExchange(OpIterator plan) {
+        if (plan instanceof Exchange)
+            return true;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (hasExchange(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The planner runs joins of large tables partition-parallel, with the
+     * same result as the serial plan.
+     */
+    @Test public void physicalPlan() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ta", new LargeTableStats(a.getId()));
+        stats.put("tb", new LargeTableStats(b.getId()));
+        String sql = "SELECT * FROM ta, tb WHERE ta.a0 = tb.b0 AND ta.a1 < 250;";
+
+        LogicalPlan serial = new Parser().generateLogicalPlan(tid, sql);
+        serial.setParallelism(1);
+        OpIterator serialPlan = serial.physicalPlan(tid, stats, false);
+        assertTrue(!hasExchange(serialPlan));
+
+        LogicalPlan parallel = new Parser().generateLogicalPlan(tid, sql);
+        parallel.setParallelism(4);
+        OpIterator parallelPlan = parallel.physicalPlan(tid, stats, false);
+        assertTrue(hasExchange(parallelPlan));
+
+        assertEquals(run(serialPlan), run(parallelPlan));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    private static final int FULL_PAGES = 3;
+
+    private HeapFile table;
+    private int slots;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        slots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        table = SystemTestUtil.createRandomHeapFile(2, FULL_PAGES * slots, null, null);
+        assertEquals(FULL_PAGES, table.numPages());
+        tid = new TransactionId();
+    }
+
+    private Tuple newTuple() {
+        return Utility.getHeapTuple(new int[] { 1, 2 });
+    }
+
+    private Tuple tupleOnPage(int pgNo) throws Exception {
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (t.getRecordId().getPageId().getPageNumber() == pgNo)
+                    return t;
+            }
+        } finally {
+            it.close();
+        }
+        throw new AssertionError("no tuple on page " + pgNo);
+    }
+
+    /**
+     * An insert goes to the page a delete freed a slot on, and to a new page
+     * once all pages are full again.
+     */
+    @Test public void insertFillsFreedSlot() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        assertEquals(-1, table.freeSpace().firstFree());
+
+        pool.deleteTuple(tid, tupleOnPage(1));
+        assertEquals(1, table.freeSpace().firstFree());
+        Tuple t = newTuple();
+        pool.insertTuple(tid, table.getId(), t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(-1, table.freeSpace().firstFree());
+
+        t = newTuple();
+        pool.insertTuple(tid, table.getId(), t);
+        assertEquals(FULL_PAGES, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(FULL_PAGES + 1, table.numPages());
+        assertEquals(FULL_PAGES, table.freeSpace().firstFree());
+    }
+
+    /** A page the map wrongly reports free is skipped and corrected. */
+    @Test public void staleHint() throws Exception {
+        table.freeSpace().set(0, true);
+        Tuple t = newTuple();
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        assertEquals(FULL_PAGES, t.getRecordId().getPageId().getPageNumber());
+        assertFalse(table.freeSpace().hasFree(0));
+    }
+
+    /**
+     * The map file follows the pages written to disk, and a map that does
+     * not match the heap file is rebuilt from its pages.
+     */
+    @Test public void persistent() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        pool.deleteTuple(tid, tupleOnPage(2));
+        pool.insertTuple(tid, table.getId(), newTuple());
+        pool.insertTuple(tid, table.getId(), newTuple());
+        pool.flushAllPages();
+
+        FreeSpaceMap reopened = FreeSpaceMap.open(table.getFile(), table.filePages(), table.numPages(), pgNo -> {
+            throw new AssertionError("map rebuilt");
+        });
+        assertEquals(FULL_PAGES + 1, reopened.numPages());
+        assertEquals(FULL_PAGES, reopened.firstFree());
+        reopened.close();
+
+        assertTrue(FreeSpaceMap.fileFor(table.getFile()).delete());
+        FreeSpaceMap rebuilt = FreeSpaceMap.open(table.getFile(), table.filePages(), table.numPages(),
+                pgNo -> pgNo == FULL_PAGES);
+        assertEquals(FULL_PAGES, rebuilt.firstFree());
+        rebuilt.close();
+    }
+
+    /**
+     * A map file is rebuilt when the heap file it was written for was
+     * replaced by another one, or was changed without it, even if the
+     * number of pages is the same.
+     */
+    @Test public void staleMapFile() throws Exception {
+        table.freeSpace();
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, FULL_PAGES * slots, null, null);
+        assertEquals(table.getFile().length(), other.getFile().length());
+        Files.copy(FreeSpaceMap.fileFor(table.getFile()).toPath(),
+                FreeSpaceMap.fileFor(other.getFile()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        AtomicBoolean rebuilt = new AtomicBoolean();
+        FreeSpaceMap map = FreeSpaceMap.open(other.getFile(), other.filePages(), other.numPages(), pgNo -> {
+            rebuilt.set(true);
+            return false;
+        });
+        map.close();
+        assertTrue(rebuilt.get());
+
+        try (FileOutputStream out = new FileOutputStream(table.getFile(), true)) {
+            out.write(new byte[] { 0 });
+        }
+        rebuilt.set(false);
+        map = FreeSpaceMap.open(table.getFile(), table.filePages(), table.numPages(), pgNo -> {
+            rebuilt.set(true);
+            return false;
+        });
+        map.close();
+        assertTrue(rebuilt.get());
+    }
+
+    /**
+     * Without a valid map file, the high water mark of a file grown in
+     * chunks is found by scanning back over the pages allocated ahead of
+     * use, not taken to be the end of the file.
+     */
+    @Test public void highWaterWithoutMap() throws Exception {
+        Database.getBufferPool().insertTuple(tid, table.getId(), newTuple());
+        Database.getBufferPool().flushAllPages();
+        assertEquals(FULL_PAGES + 1, table.numPages());
+        assertTrue(table.filePages() > FULL_PAGES + 1);
+
+        assertTrue(FreeSpaceMap.fileFor(table.getFile()).delete());
+        HeapFile reopened = Utility.openHeapFile(2, table.getFile());
+        assertEquals(FULL_PAGES + 1, reopened.numPages());
+        assertEquals(FULL_PAGES + 1, reopened.freeSpace().numPages());
+        assertEquals(FULL_PAGES, reopened.freeSpace().firstFree());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,192 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("checkpoint", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    private static Tuple tuple(int v) {
+        return Utility.getHeapTuple(new int[] { v, v });
+    }
+
+    private void commitInsert(int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(v));
+        t.commit();
+    }
+
+    /** @return the number of tuples of hf */
+    private int count() throws Exception {
+        int n = 0;
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A checkpoint neither waits for the BufferPool nor writes pages itself;
+     * the background writer writes the pages that were dirty before it.
+     */
+    @Test public void backgroundWriter() throws Exception {
+        commitInsert(1);
+        assertTrue(Database.getBufferPool().dirtyPageTable().containsKey(pid));
+
+        Thread checkpoint = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        synchronized (Database.getBufferPool()) {
+            checkpoint.start();
+            checkpoint.join(10000);
+            assertFalse(checkpoint.isAlive());
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!Database.getBufferPool().dirtyPageTable().isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(Database.getBufferPool().dirtyPageTable().isEmpty());
+        int slots = (BufferPool.getPageSize() * 8) / (hf.getTupleDesc().getSize() * 8 + 1);
+        assertEquals(slots - 1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /** Recovery redoes the changes of the pages that were dirty at the checkpoint. */
+    @Test public void redoDirtyPages() throws Exception {
+        commitInsert(1);
+        Database.getLogFile().logCheckpoint();
+        commitInsert(2);
+
+        // crash
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(2, count());
+    }
+
+    /**
+     * Records before the checkpoint of pages that were on disk by then are
+     * not redone: clearing the page behind the log's back shows it.
+     */
+    @Test public void redoStartsAtRecLSN() throws Exception {
+        commitInsert(1);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getBufferPool().dirtyPageTable().isEmpty());
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+
+        // crash
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(0, count());
+    }
+
+    /**
+     * Once every transaction has committed and its pages are on disk, a
+     * checkpoint cuts the log down to the checkpoint record, although the
+     * truncation before it had to keep the BEGIN records of transactions
+     * that were done.
+     */
+    @Test public void truncateToCheckpoint() throws Exception {
+        for (int i = 0; i < 5; i++)
+            commitInsert(i);
+        Database.getLogFile().logCheckpoint();
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+
+        RandomAccessFile log = new RandomAccessFile(Database.getLogFile().logFile, "r");
+        try {
+            // the checkpoint is the first record
+            assertEquals(8, log.readLong());
+        } finally {
+            log.close();
+        }
+    }
+
+    /** A HeapFile whose page writes fail while fail is set. */
+    private static class FailingHeapFile extends HeapFile {
+        volatile boolean fail;
+
+        FailingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override public void writePage(Page page) throws IOException {
+            if (fail)
+                throw new IOException("write failed");
+            super.writePage(page);
+        }
+    }
+
+    /**
+     * A page the background writer fails to write stays in the dirty page
+     * table with its recLSN, and the failure is thrown by the next
+     * checkpoint.
+     */
+    @Test public void writerFailure() throws Exception {
+        FailingHeapFile failing = new FailingHeapFile(file, hf.getTupleDesc());
+        Database.getCatalog().addTable(failing);
+        hf = failing;
+        commitInsert(1);
+        Long recLSN = Database.getBufferPool().dirtyPageTable().get(pid);
+        assertNotNull(recLSN);
+
+        failing.fail = true;
+        IOException failure = null;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (failure == null && System.currentTimeMillis() < deadline) {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (IOException e) {
+                failure = e;
+            }
+            Thread.sleep(10);
+        }
+        assertNotNull(failure);
+        assertEquals(recLSN, Database.getBufferPool().dirtyPageTable().get(pid));
+
+        failing.fail = false;
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getBufferPool().dirtyPageTable().isEmpty());
+        assertEquals(1, count());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    /** Commit a transaction from each of n threads at about the same time. */
+    private void commitConcurrently(int n) throws Exception {
+        CountDownLatch go = new CountDownLatch(1);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        for (int i = 0; i < n; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    go.await();
+                    log.logCommit(tid);
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        go.countDown();
+        for (Thread t : threads)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test public void singleCommit() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        GroupCommit gc = log.groupCommit();
+        assertEquals(1, gc.getCommits());
+        assertEquals(1, gc.getFlushes());
+        assertEquals(2, log.getTotalRecords());
+        assertTrue(gc.getMaxLatencyMicros() > 0);
+    }
+
+    /**
+     * With a commit delay, the commits that arrive within it are made
+     * durable by a single force.
+     */
+    @Test public void commitsShareForce() throws Exception {
+        GroupCommit gc = log.groupCommit();
+        gc.setCommitDelay(5000000, 8);
+        commitConcurrently(8);
+        assertEquals(8, gc.getCommits());
+        assertEquals(1, gc.getFlushes());
+        assertEquals(8, gc.getLargestBatch());
+        assertEquals(8.0, gc.getMeanBatch(), 0);
+        assertEquals(16, log.getTotalRecords());
+    }
+
+    /** Without a delay every commit still finishes, in no more forces than commits. */
+    @Test public void noDelay() throws Exception {
+        GroupCommit gc = log.groupCommit();
+        for (int round = 0; round < 5; round++)
+            commitConcurrently(10);
+        assertEquals(50, gc.getCommits());
+        assertTrue(gc.getFlushes() >= 1 && gc.getFlushes() <= 50);
+    }
+
+    /** A force of the whole log covers the commits waiting for the flusher. */
+    @Test public void forceCoversCommits() throws Exception {
+        GroupCommit gc = log.groupCommit();
+        gc.setCommitDelay(60000000, 100);
+        Thread committer = new Thread(() -> {
+            try {
+                TransactionId tid = new TransactionId();
+                log.logXactionBegin(tid);
+                log.logCommit(tid);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        committer.start();
+        while (log.getTotalRecords() < 2)
+            Thread.sleep(1);
+        log.force();
+        committer.join(10000);
+        assertTrue(!committer.isAlive());
+        assertEquals(1, gc.getCommits());
+    }
+
+    /** A LogFile whose forces for group commit always fail, and that counts them. */
+    private static class FailingLogFile extends LogFile {
+        final AtomicInteger forces = new AtomicInteger();
+
+        FailingLogFile(File f) throws IOException {
+            super(f);
+        }
+
+        @Override long forceCommits() throws IOException {
+            forces.incrementAndGet();
+            throw new IOException("disk failure");
+        }
+    }
+
+    /**
+     * A commit whose force fails throws, and the flusher does not force
+     * again until another commit comes.
+     */
+    @Test public void failedForce() throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        FailingLogFile failing = new FailingLogFile(f);
+        for (int round = 1; round <= 2; round++) {
+            TransactionId tid = new TransactionId();
+            failing.logXactionBegin(tid);
+            try {
+                failing.logCommit(tid);
+                fail("the commit should have failed");
+            } catch (IOException e) {
+                // expected
+            }
+            Thread.sleep(100);
+            assertEquals(round, failing.forces.get());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    private static ArrayList<String> run(HashEquiJoin join) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        join.open();
+        while (join.hasNext())
+            rows.add(join.next().toString());
+        join.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static ArrayList<String> expected(ArrayList<ArrayList<Integer>> left,
+            ArrayList<ArrayList<Integer>> right) {
+        ArrayList<String> rows = new ArrayList<String>();
+        for (ArrayList<Integer> l : left) {
+            for (ArrayList<Integer> r : right) {
+                if (l.get(0).equals(r.get(0))) {
+                    StringBuilder sb = new StringBuilder();
+                    for (Integer v : l)
+                        sb.append(v).append('\t');
+                    for (int i = 0; i < r.size(); i++)
+                        sb.append(r.get(i)).append(i == r.size() - 1 ? "" : "\t");
+                    rows.add(sb.toString());
+                }
+            }
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * The result must not depend on the memory budget, whether child1 fits,
+     * spills with a resident partition, or spills entirely.
+     */
+    @Test public void spillingJoin() throws Exception {
+        ArrayList<ArrayList<Integer>> leftRows = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> rightRows = new ArrayList<ArrayList<Integer>>();
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, leftRows);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 1000, 500, null, rightRows);
+        ArrayList<String> expected = expected(leftRows, rightRows);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (int budget : new int[] { 1, 7, 100, 1500, HashEquiJoin.MAP_SIZE }) {
+            HashEquiJoin join = new HashEquiJoin(p, new SeqScan(tid, left.getId()),
+                    new SeqScan(tid, right.getId()), budget);
+            assertEquals("budget " + budget, expected, run(join));
+            // a second run over the same operator must start from scratch.
+            assertEquals("budget " + budget, expected, run(join));
+        }
+    }
+
+    /**
+     * A key that alone exceeds the memory budget cannot be split by
+     * repartitioning and has to be joined a budget at a time.
+     */
+    @Test public void skewedKey() throws Exception {
+        HashMap<Integer, Integer> sameKey = new HashMap<Integer, Integer>();
+        sameKey.put(0, 42);
+        ArrayList<ArrayList<Integer>> leftRows = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> rightRows = new ArrayList<ArrayList<Integer>>();
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 300, sameKey, leftRows);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 20, sameKey, rightRows);
+
+        TransactionId tid = new TransactionId();
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()), 16);
+        ArrayList<String> rows = run(join);
+        assertEquals(300 * 20, rows.size());
+        assertEquals(expected(leftRows, rightRows), rows);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HeapFileLoaderTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("loader", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static File textFile(String contents) throws IOException {
+        File f = tempFile(".txt");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(f));
+        bw.write(contents);
+        bw.close();
+        return f;
+    }
+
+    /**
+     * An input of several ranges is parsed in parallel, and every line ends
+     * up in the table once, in input order, including the lines that cross
+     * the end of a range.
+     */
+    @Test public void parallelRanges() throws Exception {
+        int rows = 0;
+        File in = tempFile(".txt");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+        while (rows < 3 * HeapFileLoader.RANGE_BYTES / 14) {
+            bw.write(rows + "," + (rows * 7 % 1000) + "\n");
+            rows++;
+        }
+        bw.close();
+        assertTrue(in.length() > 2 * HeapFileLoader.RANGE_BYTES);
+
+        File out = tempFile(".dat");
+        int pages = HeapFileLoader.write(in, out, BufferPool.getPageSize(),
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ',', 3);
+        assertEquals(pages * (long) BufferPool.getPageSize(), out.length());
+
+        HeapFile table = Utility.openHeapFile(2, out);
+        DbFileIterator it = table.iterator(new TransactionId());
+        it.open();
+        int i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(i, ((IntField) t.getField(0)).getValue());
+            assertEquals(i * 7 % 1000, ((IntField) t.getField(1)).getValue());
+            i++;
+        }
+        it.close();
+        assertEquals(rows, i);
+    }
+
+    /**
+     * load() registers the table; empty lines and carriage returns are
+     * skipped, fields trimmed and the last line needs no newline.
+     */
+    @Test public void load() throws Exception {
+        File in = textFile("1, abc\r\n\n-7,de \r\n2147483647,f");
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "n", "s" });
+        HeapFile table = HeapFileLoader.load(in, tempFile(".dat"), td, ',', "loaded");
+        assertEquals(table.getId(), Database.getCatalog().getTableId("loaded"));
+        assertEquals(1, table.numPages());
+
+        DbFileIterator it = table.iterator(new TransactionId());
+        it.open();
+        String[] expected = { "1\tabc", "-7\tde", "2147483647\tf" };
+        for (String row : expected) {
+            assertTrue(it.hasNext());
+            Tuple t = it.next();
+            assertEquals(row, t.getField(0) + "\t" + t.getField(1));
+        }
+        assertTrue(!it.hasNext());
+        it.close();
+    }
+
+    @Test public void emptyInput() throws Exception {
+        File out = tempFile(".dat");
+        assertEquals(1, HeapFileLoader.write(textFile(""), out, BufferPool.getPageSize(),
+                new Type[] { Type.INT_TYPE }, ',', 2));
+        assertEquals(BufferPool.getPageSize(), out.length());
+    }
+
+    @Test public void malformedLine() throws Exception {
+        for (String bad : new String[] { "1,2\n3\n", "1,2\n3,4,5\n", "1,x\n", "1,2147483648\n" }) {
+            try {
+                HeapFileLoader.write(textFile(bad), tempFile(".dat"), BufferPool.getPageSize(),
+                        new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ',', 1);
+                fail("expected IOException for " + bad);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileLoaderTest.class);
+    }
+}
@@ -5,6 +5,7 @@ import simpledb.systemtest.SystemTestUtil;
 
 import java.util.*;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -77,6 +78,60 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory mapped mode, including
+     * pages appended after the file was first mapped.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        assertArrayEquals(expected, hf.readPage(pid).getPageData());
+
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(new int[] {7, 8}));
+        hf.writePage(page);
+        assertEquals(2, hf.numPages());
+        assertArrayEquals(page.getPageData(), hf.readPage(page.getId()).getPageData());
+        hf.setMemoryMapped(false);
+    }
+
+    /**
+     * Reading a HeapFile whose file does not exist fails, and does not
+     * create the file.
+     */
+    @Test
+    public void readPageMissingFile() throws Exception {
+        java.io.File f = java.io.File.createTempFile("missing", ".dat");
+        f.delete();
+        HeapFile missing = new HeapFile(f, td);
+        try {
+            missing.readPage(new HeapPageId(missing.getId(), 0));
+            fail("expected the read to fail");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertFalse(f.exists());
+    }
+
+    /**
+     * A read-only heap file can be read. The file system does not stop root
+     * from writing to it, so the test is skipped there.
+     */
+    @Test
+    public void readPageReadOnlyFile() throws Exception {
+        assertTrue(hf.getFile().setWritable(false));
+        try {
+            Assume.assumeTrue(!hf.getFile().canWrite());
+            HeapFile readOnly = new HeapFile(hf.getFile(), td);
+            readOnly.readPage(new HeapPageId(readOnly.getId(), 0));
+        } finally {
+            hf.getFile().setWritable(true);
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -43,6 +43,33 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * The file grows a chunk at a time while numPages() counts the pages in
+     * use, also once the table is opened again.
+     */
+    @Test public void growsInChunks() throws Exception {
+        int chunk = 16;
+        empty.setGrowthBytes(chunk * BufferPool.getPageSize());
+        BufferPool pool = Database.getBufferPool();
+        for (int i = 0; i < 504 * 2 + 1; ++i)
+            pool.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(3, empty.numPages());
+        assertEquals(1 + chunk, empty.filePages());
+        pool.flushAllPages();
+
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(3, reopened.numPages());
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(504 * 2 + 1, n);
+    }
+
     /**
      * JUnit suite target
      */
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,33 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples are decoded lazily from the bytes of the page; a tuple that was
+     * read before its slot is reused, and the before image, must not see
+     * the new contents, and the bytes the page was created from must not be
+     * modified.
+     */
+    @Test public void readTuplesSurviveWrites() throws Exception {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        Tuple first = page.iterator().next();
+        int slot = first.getRecordId().getTupleNumber();
+
+        page.deleteTuple(first);
+        Tuple addition = Utility.getHeapTuple(new int[] { -7, -8 });
+        page.insertTuple(addition);
+        assertEquals(slot, addition.getRecordId().getTupleNumber());
+
+        assertEquals(new IntField(HeapPageReadTest.EXAMPLE_VALUES[0][0]), first.getField(0));
+        assertEquals(new IntField(HeapPageReadTest.EXAMPLE_VALUES[0][1]), first.getField(1));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, data));
+        assertTrue(TestUtil.compareTuples(first, page.getBeforeImage().iterator().next()));
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = reread.iterator();
+        assertTrue(TestUtil.compareTuples(addition, it.next()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntGroupAggregatorTest extends SimpleDbTestBase {
+
+    private TupleBatch batch;
+
+    /**
+     * Rows of (group, value) with negative keys and enough groups to make the
+     * table grow a few times.
+     */
+    @Before public void createBatch() {
+        Random rand = new Random(12);
+        batch = new TupleBatch(Utility.getTupleDesc(2), 5000);
+        for (int i = 0; i < 5000; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setField(0, new IntField(rand.nextInt(1000) - 500));
+            t.setField(1, new IntField(rand.nextInt(2000) - 1000));
+            batch.append(t);
+        }
+    }
+
+    private static ArrayList<String> results(Aggregator agg) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        OpIterator it = agg.iterator();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Every operator gives the same groups and values as the boxed
+     * IntegerAggregator, whether tuples are merged one at a time or a batch
+     * at a time.
+     */
+    @Test public void sameAsIntegerAggregator() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+            IntegerAggregator boxed = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+            IntGroupAggregator tuples = new IntGroupAggregator(0, 1, op);
+            IntGroupAggregator batches = new IntGroupAggregator(0, 1, op);
+            for (int i = 0; i < batch.size(); i++) {
+                boxed.mergeTupleIntoGroup(batch.getTuple(i));
+                tuples.mergeTupleIntoGroup(batch.getTuple(i));
+            }
+            batches.mergeBatchIntoGroup(batch);
+
+            assertEquals(boxed.numGroups(), tuples.numGroups());
+            assertEquals(op.toString(), results(boxed), results(tuples));
+            assertEquals(op.toString(), results(boxed), results(batches));
+        }
+    }
+
+    /**
+     * Merging the partial aggregates of two halves of the rows gives the
+     * aggregate of all of them.
+     */
+    @Test public void mergePartial() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+            IntGroupAggregator whole = new IntGroupAggregator(0, 1, op);
+            IntGroupAggregator first = new IntGroupAggregator(0, 1, op);
+            IntGroupAggregator second = new IntGroupAggregator(0, 1, op);
+            for (int i = 0; i < batch.size(); i++) {
+                whole.mergeTupleIntoGroup(batch.getTuple(i));
+                (i < batch.size() / 2 ? first : second).mergeTupleIntoGroup(batch.getTuple(i));
+            }
+            first.mergePartial(second);
+            assertEquals(op.toString(), results(whole), results(first));
+        }
+    }
+
+    /**
+     * Splitting a partial aggregate puts each group in the part of its
+     * partition, and merging the parts again gives the whole.
+     */
+    @Test public void splitPartial() throws Exception {
+        IntGroupAggregator whole = new IntGroupAggregator(0, 1, Aggregator.Op.AVG);
+        IntGroupAggregator split = new IntGroupAggregator(0, 1, Aggregator.Op.AVG);
+        whole.mergeBatchIntoGroup(batch);
+        split.mergeBatchIntoGroup(batch);
+        Aggregator[] parts = split.splitPartial(1);
+        assertEquals(SpillPartitioner.NUM_PARTITIONS, parts.length);
+        IntGroupAggregator merged = new IntGroupAggregator(0, 1, Aggregator.Op.AVG);
+        for (int p = 0; p < parts.length; p++) {
+            if (parts[p] == null)
+                continue;
+            OpIterator it = parts[p].iterator();
+            it.open();
+            while (it.hasNext())
+                assertEquals(p, SpillPartitioner.partition(it.next().getField(0), 1));
+            it.close();
+            merged.mergePartial(parts[p]);
+        }
+        assertEquals(results(whole), results(merged));
+    }
+
+    @Test public void hasGroup() {
+        IntGroupAggregator agg = new IntGroupAggregator(0, 1, Aggregator.Op.SUM);
+        agg.mergeBatchIntoGroup(batch);
+        assertTrue(agg.hasGroup(batch.getField(0, 0)));
+        assertFalse(agg.hasGroup(new IntField(100000)));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void unsupportedOp() {
+        new IntGroupAggregator(0, 1, Aggregator.Op.SC_AVG);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntGroupAggregatorTest.class);
+    }
+}
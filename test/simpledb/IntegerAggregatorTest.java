@@ -126,6 +126,26 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator.mergePartial() over an avg: partial averages of a
+   * group that is split between the partials must not be averaged.
+   */
+  @Test public void mergePartialAvg() throws Exception {
+    scan1.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator partial = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    for (int i = 0; i < 4; i++)
+      agg.mergeTupleIntoGroup(scan1.next());
+    while (scan1.hasNext())
+      partial.mergeTupleIntoGroup(scan1.next());
+
+    agg.mergePartial(partial);
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
@@ -105,6 +105,33 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() with blocks smaller than, and as large as,
+   * the outer relation
+   */
+  @Test public void blockSizes() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    int expected = 0;
+    gtJoin.open();
+    while (gtJoin.hasNext()) {
+      gtJoin.next();
+      expected++;
+    }
+    for (int blockTuples : new int[] { 1, 2, 3, 100 }) {
+      Join op = new Join(pred, scan1, scan2, blockTuples);
+      op.open();
+      int count = 0;
+      while (op.hasNext()) {
+        op.next();
+        count++;
+      }
+      assertEquals(expected, count);
+      gtJoin.rewind();
+      TestUtil.matchAllTuples(gtJoin, op);
+      op.close();
+    }
+  }
+
   /**
    * JUnit suite target
    */
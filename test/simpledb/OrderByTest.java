@@ -0,0 +1,151 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> rows;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        rows = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 50, null, rows, "c");
+        tid = new TransactionId();
+    }
+
+    /** Sort rows on column 0 descending, then column 1 ascending. */
+    private static final Comparator<ArrayList<Integer>> ORDER = new Comparator<ArrayList<Integer>>() {
+        @Override
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            int c = b.get(0).compareTo(a.get(0));
+            return c != 0 ? c : a.get(1).compareTo(b.get(1));
+        }
+    };
+
+    private static ArrayList<ArrayList<Integer>> drain(OpIterator op) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        while (op.hasNext())
+            result.add(SystemTestUtil.tupleToList(op.next()));
+        return result;
+    }
+
+    /** @return the sort keys (columns 0 and 1) of rows */
+    private static ArrayList<ArrayList<Integer>> keys(ArrayList<ArrayList<Integer>> rows) {
+        ArrayList<ArrayList<Integer>> keys = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> row : rows)
+            keys.add(new ArrayList<Integer>(row.subList(0, 2)));
+        return keys;
+    }
+
+    private OrderBy orderBy(int limit, int memoryTuples) {
+        return new OrderBy(new int[] { 0, 1 }, new boolean[] { false, true }, limit,
+                memoryTuples, new SeqScan(tid, table.getId()));
+    }
+
+    /**
+     * The result must not depend on whether the input is sorted in memory,
+     * in a few runs, or in so many runs that they need several merge passes.
+     */
+    @Test public void externalSort() throws Exception {
+        Collections.sort(rows, ORDER);
+        ArrayList<ArrayList<Integer>> expected = keys(rows);
+        for (int budget : new int[] { ROWS, 500, 7 }) {
+            OrderBy op = orderBy(-1, budget);
+            op.open();
+            ArrayList<ArrayList<Integer>> result = drain(op);
+            assertEquals("budget " + budget, ROWS, result.size());
+            assertEquals("budget " + budget, expected, keys(result));
+
+            op.rewind();
+            assertEquals("budget " + budget, result, drain(op));
+            op.close();
+        }
+    }
+
+    /**
+     * A limit returns a prefix of the full ordering, whether it fits in
+     * memory or not.
+     */
+    @Test public void topN() throws Exception {
+        Collections.sort(rows, ORDER);
+        for (int limit : new int[] { 0, 1, 25, 300, ROWS + 10 }) {
+            ArrayList<ArrayList<Integer>> expected = keys(
+                    new ArrayList<ArrayList<Integer>>(rows.subList(0, Math.min(limit, ROWS))));
+            for (int budget : new int[] { 100, ROWS }) {
+                OrderBy op = orderBy(limit, budget);
+                op.open();
+                assertEquals("limit " + limit + " budget " + budget, expected, keys(drain(op)));
+                op.rewind();
+                assertEquals("limit " + limit + " budget " + budget, expected, keys(drain(op)));
+                op.close();
+            }
+        }
+    }
+
+    /**
+     * The parser passes every ORDER BY field and a trailing LIMIT on to the
+     * OrderBy of the plan.
+     */
+    @Test public void parseLimit() throws Exception {
+        Database.getCatalog().addTable(table, "t");
+        TableStats.setTableStats("t", new TableStats(table.getId(), 1000));
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM t ORDER BY t.c0 DESC, t.c1 LIMIT 25;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        OrderBy op = (OrderBy) ((Operator) plan).getChildren()[0];
+        assertEquals(25, op.getLimit());
+        assertEquals(2, op.getOrderByFields().length);
+
+        Collections.sort(rows, ORDER);
+        plan.open();
+        assertEquals(keys(new ArrayList<ArrayList<Integer>>(rows.subList(0, 25))), keys(drain(plan)));
+        plan.close();
+    }
+
+    /** A LIMIT in a query file (parser -f) is stripped and applied too. */
+    @Test public void queryFileLimit() throws Exception {
+        Database.getCatalog().addTable(table, "t");
+        TableStats.setTableStats("t", new TableStats(table.getId(), 1000));
+        File query = File.createTempFile("query", ".sql");
+        query.deleteOnExit();
+        FileWriter w = new FileWriter(query);
+        w.write("SELECT * FROM t ORDER BY t.c0 DESC, t.c1 LIMIT 25;\n");
+        w.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            new Parser().processQueryFile(query);
+        } finally {
+            System.setOut(stdout);
+        }
+        assertTrue(out.toString(), out.toString().contains("\n 25 rows."));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
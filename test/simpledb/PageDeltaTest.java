@@ -0,0 +1,134 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("delta", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private static Tuple tuple(int v) {
+        return Utility.getHeapTuple(new int[] { v, v });
+    }
+
+    /** @return the number of tuples of hf with the value v in their first field */
+    private int count(TransactionId tid, int v) throws Exception {
+        int n = 0;
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            if (((IntField) it.next().getField(0)).getValue() == v)
+                n++;
+        it.close();
+        return n;
+    }
+
+    /** An insert into a page changes a few bytes, which redo and undo restore. */
+    @Test public void smallChange() throws Exception {
+        HeapPage before = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        before.insertTuple(tuple(1));
+        before.setBeforeImage();
+        HeapPage after = (HeapPage) before.getBeforeImage();
+        after.insertTuple(tuple(2));
+
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(2, delta.numRanges()); // a header bit and a slot
+        assertTrue(delta.size() * 10 < BufferPool.getPageSize());
+        assertArrayEquals(after.getPageData(), delta.apply(before, true).getPageData());
+        assertArrayEquals(before.getPageData(), delta.apply(after, false).getPageData());
+        assertArrayEquals(before.getPageData(), delta.inverse().apply(after, true).getPageData());
+
+        File f = File.createTempFile("delta", ".log");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        delta.write(raf);
+        assertEquals(delta.size(), raf.length());
+        raf.seek(0);
+        PageDelta read = PageDelta.read(raf);
+        raf.close();
+        assertEquals(before.getId(), read.getPageId());
+        assertArrayEquals(after.getPageData(), read.apply(before, true).getPageData());
+    }
+
+    /** A DELTA record of a small update is a fraction of an UPDATE record. */
+    @Test public void logVolume() throws Exception {
+        File f = File.createTempFile("delta", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        HeapPage before = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        HeapPage after = (HeapPage) before.getBeforeImage();
+        after.insertTuple(tuple(1));
+        TransactionId tid = new TransactionId();
+
+        log.logWrite(tid, before, after);
+        long full = f.length();
+        log.setDeltaLogging(true);
+        log.logWrite(tid, before, after);
+        long delta = f.length() - full;
+        assertTrue(delta * 10 < full);
+    }
+
+    /**
+     * With delta logging, an abort undoes the pages the transaction wrote,
+     * and recovery keeps committed inserts and undoes those of a transaction
+     * that was open at the crash.
+     */
+    @Test public void rollbackAndRecover() throws Exception {
+        Database.getLogFile().setDeltaLogging(true);
+        BufferPool pool = Database.getBufferPool();
+
+        Transaction committed = new Transaction();
+        committed.start();
+        pool.insertTuple(committed.getId(), hf.getId(), tuple(1));
+        committed.commit();
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        pool.insertTuple(aborted.getId(), hf.getId(), tuple(2));
+        pool.flushAllPages();
+        pool.insertTuple(aborted.getId(), hf.getId(), tuple(3));
+        aborted.abort();
+
+        Transaction open = new Transaction();
+        open.start();
+        pool.insertTuple(open.getId(), hf.getId(), tuple(4));
+        pool.flushAllPages();
+        pool.insertTuple(open.getId(), hf.getId(), tuple(5));
+        pool.flushAllPages();
+
+        // crash
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        TransactionId tid = new TransactionId();
+        assertEquals(1, count(tid, 1));
+        for (int v = 2; v <= 5; v++)
+            assertEquals(0, count(tid, v));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
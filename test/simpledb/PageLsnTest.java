@@ -0,0 +1,177 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageLsnTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+    private int slots;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("lsn", ".dat");
+        file.deleteOnExit();
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        slots = (BufferPool.getPageSize() * 8) / (hf.getTupleDesc().getSize() * 8 + 1);
+    }
+
+    private static Tuple tuple(int v) {
+        return Utility.getHeapTuple(new int[] { v, v });
+    }
+
+    /** @return the number of tuples of hf */
+    private int count() throws Exception {
+        int n = 0;
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A commit logs the changes to the pages and forces the log, but does
+     * not write the pages; recovery redoes them after a crash.
+     */
+    @Test public void noForce() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(1));
+        t.commit();
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page cached = Database.getBufferPool().getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertTrue(cached.isDirty() != null);
+        assertTrue(cached.getLSN() > 0);
+        assertTrue(cached.getLSN() <= Database.getLogFile().getFlushedLSN());
+        assertEquals(slots, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+
+        // crash
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(1, count());
+    }
+
+    /**
+     * A transaction larger than the BufferPool steals its pages to disk,
+     * each after the log records of its changes, and an abort undoes them.
+     */
+    @Test public void steal() throws Exception {
+        Database.resetBufferPool(2);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 5 * slots; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(i));
+        assertEquals(5, hf.numPages());
+        assertEquals(5 * slots, count());
+        assertTrue(Database.getLogFile().getFlushedLSN() > 0);
+
+        t.abort();
+        assertEquals(0, count());
+    }
+
+    /** A HeapPage whose before image is held up while it is armed. */
+    private static class SlowLoggingHeapPage extends HeapPage {
+        static final CountDownLatch entered = new CountDownLatch(1);
+        static final CountDownLatch release = new CountDownLatch(1);
+        static volatile boolean armed = false;
+
+        SlowLoggingHeapPage(HeapPageId id, byte[] data) throws IOException {
+            super(id, data);
+        }
+
+        @Override public HeapPage getBeforeImage() {
+            if (armed) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.getBeforeImage();
+        }
+    }
+
+    /**
+     * The commit of a transaction whose page is being written by someone
+     * else waits until the write has logged the page's changes.
+     */
+    @Test public void commitWaitsForPageInFlight() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 100, null, null);
+        HeapFile slow = new HeapFile(f, Utility.getTupleDesc(2)) {
+            @Override public Page readPage(PageId pid) {
+                try {
+                    return new SlowLoggingHeapPage((HeapPageId) pid, ((HeapPage) super.readPage(pid)).getPageData());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        Database.getCatalog().addTable(slow);
+        // its records are read back as plain HeapPages.
+        PageTypeRegistry.register(100, SlowLoggingHeapPage.class, HeapPageId::new,
+                (id, data) -> new HeapPage((HeapPageId) id, data));
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(slow.getId(), 0), Permissions.READ_WRITE);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, t.getId());
+
+        SlowLoggingHeapPage.armed = true;
+        Thread flusher = new Thread(() -> {
+            try {
+                Database.getBufferPool().flushAllPages();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        flusher.start();
+        assertTrue(SlowLoggingHeapPage.entered.await(10, TimeUnit.SECONDS));
+        long before = Database.getLogFile().getCurrentLSN();
+        Thread committer = new Thread(() -> {
+            try {
+                Database.getBufferPool().logPages(t.getId());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        committer.start();
+        committer.join(200);
+        boolean waited = committer.isAlive();
+        SlowLoggingHeapPage.armed = false;
+        SlowLoggingHeapPage.release.countDown();
+        committer.join(10000);
+        flusher.join(10000);
+        assertTrue(waited);
+        assertFalse(committer.isAlive());
+        assertTrue(Database.getLogFile().getCurrentLSN() > before);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageLsnTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageTypeRegistryTest extends SimpleDbTestBase {
+    private LogFile log;
+    private RandomAccessFile raf;
+    private int heapId;
+    private int btreeId;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("pagetypes", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+        raf = new RandomAccessFile(f, "rw");
+
+        File heap = File.createTempFile("pagetypes", ".dat");
+        heap.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(heap.getAbsolutePath(), 2);
+        heapId = hf.getId();
+        File btree = File.createTempFile("pagetypes", ".dat");
+        btree.deleteOnExit();
+        BTreeFile bf = new BTreeFile(btree, 1, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(bf);
+        btreeId = bf.getId();
+    }
+
+    @After public void tearDown() throws Exception {
+        raf.close();
+    }
+
+    /** Write a page image to the log and read it back. */
+    private Page roundTrip(Page p) throws IOException {
+        raf.setLength(0);
+        log.writePageData(raf, p);
+        assertEquals(LogFile.PAGE_IMAGE_HEADER + p.getPageData().length, raf.length());
+        raf.seek(0);
+        Page read = log.readPageData(raf);
+        assertEquals(p.getClass(), read.getClass());
+        assertEquals(p.getId(), read.getId());
+        assertArrayEquals(p.getPageData(), read.getPageData());
+        return read;
+    }
+
+    @Test public void allPageTypes() throws Exception {
+        HeapPage heap = new HeapPage(new HeapPageId(heapId, 3), HeapPage.createEmptyPageData());
+        heap.insertTuple(Utility.getHeapTuple(new int[] { 4, 5 }));
+        roundTrip(heap);
+
+        BTreeLeafPage leaf = new BTreeLeafPage(new BTreePageId(btreeId, 2, BTreePageId.LEAF),
+                BTreeLeafPage.createEmptyPageData(), 1);
+        leaf.insertTuple(Utility.getHeapTuple(new int[] { 6, 7 }));
+        assertEquals(1, ((BTreeLeafPage) roundTrip(leaf)).keyField);
+
+        roundTrip(new BTreeInternalPage(new BTreePageId(btreeId, 5, BTreePageId.INTERNAL),
+                BTreeInternalPage.createEmptyPageData(), 1));
+        roundTrip(new BTreeHeaderPage(new BTreePageId(btreeId, 7, BTreePageId.HEADER),
+                BTreeHeaderPage.createEmptyPageData()));
+        roundTrip(new BTreeRootPtrPage(BTreeRootPtrPage.getId(btreeId),
+                BTreeRootPtrPage.createEmptyPageData()));
+    }
+
+    @Test public void unknownTag() throws Exception {
+        try {
+            PageTypeRegistry.create(PageTypeRegistry.MAX_TAG, heapId, 0, HeapPage.createEmptyPageData());
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            PageTypeRegistry.register(PageTypeRegistry.HEAP_PAGE, BTreeHeaderPage.class,
+                    HeapPageId::new, (id, data) -> null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTypeRegistryTest.class);
+    }
+}
@@ -0,0 +1,186 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 30000;
+
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000, null, null);
+        tid = new TransactionId();
+        assertTrue(table.numPages() > 4 * ParallelSeqScan.MORSEL_PAGES);
+    }
+
+    private static final Comparator<ArrayList<Integer>> ROW_ORDER = new Comparator<ArrayList<Integer>>() {
+        @Override
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int c = a.get(i).compareTo(b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    };
+
+    private static ArrayList<ArrayList<Integer>> drain(OpIterator op) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while (op.hasNext())
+            rows.add(SystemTestUtil.tupleToList(op.next()));
+        Collections.sort(rows, ROW_ORDER);
+        return rows;
+    }
+
+    private OpIterator pipeline() {
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(0);
+        return new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(300)),
+                        new SeqScan(tid, table.getId(), "t")));
+    }
+
+    /**
+     * The workers run the Filter and Project of the pipeline, and together
+     * return the same tuples as the serial pipeline.
+     */
+    @Test public void sameAsSerial() throws Exception {
+        OpIterator serial = pipeline();
+        serial.open();
+        ArrayList<ArrayList<Integer>> expected = drain(serial);
+        serial.close();
+        assertTrue(expected.size() > 0 && expected.size() < ROWS);
+
+        ParallelSeqScan scan = ParallelSeqScan.parallelize(pipeline(), 4);
+        assertEquals(serial.getTupleDesc(), scan.getTupleDesc());
+        scan.open();
+        assertEquals(expected, drain(scan));
+        scan.rewind();
+        assertEquals(expected, drain(scan));
+
+        // batches carry the same rows.
+        scan.rewind();
+        int rows = 0;
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null)
+            rows += batch.size();
+        assertEquals(expected.size(), rows);
+        assertNull(scan.nextBatch());
+        scan.close();
+    }
+
+    /**
+     * Closing a scan that has not been drained stops its workers, and it can
+     * be opened again.
+     */
+    @Test public void closeEarly() throws Exception {
+        ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "t", 3);
+        for (int i = 0; i < 3; i++) {
+            scan.open();
+            for (int j = 0; j < 10; j++)
+                scan.next();
+            scan.close();
+        }
+        scan.open();
+        assertEquals(ROWS, drain(scan).size());
+        scan.close();
+    }
+
+    /** A HeapFile whose batch reads are slow, and that counts them. */
+    private static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reading = new AtomicInteger();
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override TupleBatch readBatch(TransactionId tid, int pgNo, TupleDesc td)
+                throws DbException, TransactionAbortedException {
+            reading.incrementAndGet();
+            try {
+                Thread.sleep(2);
+                return super.readBatch(tid, pgNo, td);
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted");
+            } finally {
+                reads.incrementAndGet();
+                reading.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * close() returns only once every worker of the scan has stopped, and
+     * none of them reads a page afterwards.
+     */
+    @Test public void closeMidScan() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(3, ROWS, 1000, null, null);
+        SlowHeapFile slow = new SlowHeapFile(f, Utility.getTupleDesc(3));
+        Database.getCatalog().addTable(slow);
+        ParallelSeqScan scan = new ParallelSeqScan(tid, slow.getId(), "t", 4);
+        scan.open();
+        for (int j = 0; j < 10; j++)
+            scan.next();
+        scan.close();
+        assertEquals(0, slow.reading.get());
+        int reads = slow.reads.get();
+        assertTrue(reads < slow.numPages());
+        Thread.sleep(100);
+        assertEquals(reads, slow.reads.get());
+    }
+
+    /**
+     * Workers whose filter rejects every tuple queue nothing, and still stop
+     * at their next page once the scan is closed.
+     */
+    @Test public void closeSelectiveScan() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(3, ROWS, 1000, null, null);
+        SlowHeapFile slow = new SlowHeapFile(f, Utility.getTupleDesc(3));
+        Database.getCatalog().addTable(slow);
+        ParallelSeqScan scan = new ParallelSeqScan(tid, slow.getId(), "t", 4);
+        scan.addFilter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(-1)));
+        scan.open();
+        // let the workers start, so that close() has to stop them rather than cancel them.
+        while (slow.reads.get() == 0)
+            Thread.sleep(1);
+        scan.close();
+        assertEquals(0, slow.reading.get());
+        assertTrue(slow.reads.get() < slow.numPages());
+    }
+
+    /**
+     * Only pipelines over a scan of a HeapFile can be parallelized.
+     */
+    @Test public void parallelize() throws Exception {
+        assertNull(ParallelSeqScan.parallelize(new OrderBy(0, true, new SeqScan(tid, table.getId())), 2));
+        assertNull(ParallelSeqScan.parallelize(new Filter(new Predicate(0, Predicate.Op.EQUALS,
+                new IntField(1)), pipeline()), 2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelSeqScanTest.class);
+    }
+}
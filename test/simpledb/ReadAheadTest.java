@@ -0,0 +1,83 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 64;
+
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(POOL_PAGES);
+        table = SystemTestUtil.createRandomHeapFile(4, 40000, null, rows);
+        assertTrue(table.numPages() > 2 * POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    /**
+     * The window doubles while the scan outruns the prefetches, up to a
+     * quarter of the pool, and shrinks slowly while pages are ready.
+     */
+    @Test public void windowAdapts() throws Exception {
+        ReadAhead ra = new ReadAhead();
+        assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+        HeapPageId missing = new HeapPageId(table.getId(), 0);
+        assertEquals(2 * ReadAhead.MIN_WINDOW, ra.window(missing));
+        for (int i = 0; i < 10; i++)
+            ra.window(missing);
+        assertEquals(POOL_PAGES / 4, ra.getWindow());
+
+        Database.getBufferPool().getPage(tid, missing, Permissions.READ_ONLY);
+        for (int i = 0; i < ReadAhead.SHRINK_AFTER - 1; i++)
+            assertEquals(POOL_PAGES / 4, ra.window(missing));
+        assertEquals(POOL_PAGES / 4 - 1, ra.window(missing));
+    }
+
+    @Test(timeout = 10000) public void prefetch() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(table.getId(), 3);
+        pool.prefetch(pid);
+        while (!pool.isCached(pid))
+            Thread.sleep(1);
+        HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(pid, page.getId());
+        assertEquals(rows.get(3 * page.numSlots), SystemTestUtil.tupleToList(page.iterator().next()));
+    }
+
+    /**
+     * Scans of a table larger than the pool read every tuple once, a tuple
+     * or a batch at a time, while their pages are read ahead.
+     */
+    @Test public void scans() throws Exception {
+        SeqScan scan = new SeqScan(tid, table.getId());
+        SystemTestUtil.matchTuples(scan, rows);
+
+        scan.open();
+        int n = 0;
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null)
+            n += batch.size();
+        scan.close();
+        assertEquals(rows.size(), n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
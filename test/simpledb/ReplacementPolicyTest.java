@@ -0,0 +1,140 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+    private static final int CAPACITY = 16;
+    private static final int HOT_PAGES = 4;
+
+    private static final ReplacementPolicy.Factory[] POLICIES = {
+        LRUPolicy::new, ClockPolicy::new, TwoQueuePolicy::new, ClockProPolicy::new
+    };
+
+    /**
+     * Drive a policy the way a BufferPool partition does: evict a victim when
+     * the resident set is full, then admit the new page.
+     */
+    private static void access(ReplacementPolicy policy, HashSet<PageId> resident,
+            PageId pid, boolean scan) {
+        if (resident.contains(pid)) {
+            policy.touch(pid, scan);
+            return;
+        }
+        if (resident.size() == CAPACITY) {
+            PageId victim = policy.victim();
+            assertNotNull(victim);
+            assertTrue(resident.remove(victim));
+            policy.evict(victim);
+        }
+        policy.admit(pid, scan);
+        resident.add(pid);
+    }
+
+    /**
+     * Every policy must only ever pick resident pages as victims, and must
+     * return null once everything has been removed.
+     */
+    @Test public void victimsAreResident() {
+        for (ReplacementPolicy.Factory factory : POLICIES) {
+            ReplacementPolicy policy = factory.create(CAPACITY);
+            HashSet<PageId> resident = new HashSet<PageId>();
+            for (int i = 0; i < 10 * CAPACITY; i++)
+                access(policy, resident, new HeapPageId(1, (i * 7) % (3 * CAPACITY)), i % 3 == 0);
+            assertEquals(CAPACITY, resident.size());
+            for (PageId pid : resident)
+                policy.remove(pid);
+            assertNull(policy.victim());
+        }
+    }
+
+    /**
+     * The BufferPool puts back an evicted page whose write back failed even
+     * if its partition is full again; every policy must then admit it and
+     * be able to evict it later.
+     */
+    @Test public void admitOverCapacity() {
+        for (ReplacementPolicy.Factory factory : POLICIES) {
+            ReplacementPolicy policy = factory.create(CAPACITY);
+            HashSet<PageId> resident = new HashSet<PageId>();
+            for (int i = 0; i < CAPACITY; i++)
+                access(policy, resident, new HeapPageId(1, i), false);
+            PageId extra = new HeapPageId(2, 0);
+            policy.admit(extra, false);
+            resident.add(extra);
+            HashSet<PageId> evicted = new HashSet<PageId>();
+            while (!resident.isEmpty()) {
+                PageId victim = policy.victim();
+                assertNotNull(victim);
+                assertTrue(resident.remove(victim));
+                policy.evict(victim);
+                evicted.add(victim);
+            }
+            assertTrue(policy.getClass().getSimpleName() + " never evicted the extra page",
+                    evicted.contains(extra));
+            assertNull(policy.victim());
+        }
+    }
+
+    /**
+     * A working set of hot pages that is used between the pages of a long
+     * sequential scan must survive the scan.
+     */
+    @Test public void scanResistance() {
+        for (ReplacementPolicy.Factory factory : POLICIES) {
+            ReplacementPolicy policy = factory.create(CAPACITY);
+            HashSet<PageId> resident = new HashSet<PageId>();
+            // warm the hot pages up so that they are known to be reused.
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < HOT_PAGES; i++)
+                    access(policy, resident, new HeapPageId(1, i), false);
+            }
+            for (int i = 0; i < 20 * CAPACITY; i++) {
+                access(policy, resident, new HeapPageId(2, i), true);
+                if (i % CAPACITY == 0) {
+                    for (int j = 0; j < HOT_PAGES; j++)
+                        access(policy, resident, new HeapPageId(1, j), false);
+                }
+            }
+            for (int i = 0; i < HOT_PAGES; i++) {
+                assertTrue(policy.getClass().getSimpleName() + " evicted hot page " + i,
+                        resident.contains(new HeapPageId(1, i)));
+            }
+        }
+    }
+
+    /**
+     * The BufferPool must work with every policy and respect its capacity.
+     */
+    @Test public void bufferPoolWithEveryPolicy() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        for (ReplacementPolicy.Factory factory : POLICIES) {
+            BufferPool bp = new BufferPool(4, 2, factory);
+            TransactionId tid = new TransactionId();
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < hf.numPages(); i++) {
+                    Page p = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY, round == 0);
+                    assertEquals(i, p.getId().getPageNumber());
+                }
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private int[] left;
+    private int[] right;
+
+    /**
+     * Two relations of (key, id) sorted on key, with runs of duplicate keys.
+     */
+    @Before public void createTupleLists() {
+        Random rand = new Random(4);
+        left = sortedPairs(rand, 60);
+        right = sortedPairs(rand, 40);
+    }
+
+    private static int[] sortedPairs(Random rand, int rows) {
+        int[] keys = new int[rows];
+        for (int i = 0; i < rows; i++)
+            keys[i] = rand.nextInt(20);
+        Arrays.sort(keys);
+        int[] data = new int[2 * rows];
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = keys[i];
+            data[2 * i + 1] = i;
+        }
+        return data;
+    }
+
+    /** @return an open iterator over pairs with fields named name0 and name1 */
+    private static TupleIterator list(int[] data, String name) {
+        TupleDesc td = Utility.getTupleDesc(2, name);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < data.length; i += 2) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(data[i]));
+            t.setField(1, new IntField(data[i + 1]));
+            tuples.add(t);
+        }
+        TupleIterator it = new TupleIterator(td, tuples);
+        it.open();
+        return it;
+    }
+
+    private static ArrayList<String> run(OpIterator op) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        op.open();
+        while (op.hasNext())
+            rows.add(op.next().toString());
+        op.close();
+        return rows;
+    }
+
+    /**
+     * SortMergeJoin must produce the same tuples as a nested loops Join, in
+     * the order of the join field it reports.
+     */
+    @Test public void everyOperator() throws Exception {
+        Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ };
+        for (Predicate.Op op : ops) {
+            JoinPredicate pred = new JoinPredicate(0, op, 0);
+            ArrayList<String> expected = run(new Join(pred, list(left, "l"), list(right, "r")));
+            SortMergeJoin smj = new SortMergeJoin(pred, list(left, "l"), list(right, "r"));
+            ArrayList<String> actual = run(smj);
+
+            // the output is sorted on the reported field.
+            int sortedField = smj.getTupleDesc().fieldNameToIndex(smj.getSortedFieldName());
+            int prev = Integer.MIN_VALUE;
+            for (String row : actual) {
+                int key = Integer.parseInt(row.split("\t")[sortedField]);
+                assertTrue(op + " output is not sorted", key >= prev);
+                prev = key;
+            }
+
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertTrue(expected.size() > 0);
+            assertEquals(op.toString(), expected, actual);
+
+            // rewind restarts the join.
+            smj.open();
+            while (smj.hasNext())
+                smj.next();
+            smj.rewind();
+            int count = 0;
+            while (smj.hasNext()) {
+                smj.next();
+                count++;
+            }
+            assertEquals(expected.size(), count);
+            smj.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void notEquals() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), list(left, "l"), list(right, "r"));
+    }
+
+    /**
+     * The optimizer picks a SortMergeJoin only when both inputs are already
+     * sorted on their join fields.
+     */
+    @Test public void instantiateJoin() throws Exception {
+        OpIterator sorted1 = new OrderBy(0, true, list(left, "l"));
+        OpIterator sorted2 = new OrderBy(0, true, list(right, "r"));
+        String f1 = sorted1.getTupleDesc().getFieldName(0);
+        String f2 = sorted2.getTupleDesc().getFieldName(0);
+        assertEquals(f1, JoinOptimizer.sortedOn(sorted1));
+        assertNull(JoinOptimizer.sortedOn(new OrderBy(0, false, list(left, "l"))));
+
+        LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", f1, f2, Predicate.Op.GREATER_THAN);
+        lj.f1QuantifiedName = f1;
+        lj.f2QuantifiedName = f2;
+        assertTrue(JoinOptimizer.instantiateJoin(lj, sorted1, sorted2) instanceof SortMergeJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, sorted1, list(right, "r")) instanceof Join);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
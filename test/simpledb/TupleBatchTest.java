@@ -0,0 +1,135 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private HeapFile left;
+    private HeapFile right;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        left = SystemTestUtil.createRandomHeapFile(3, ROWS, 200, null, null);
+        right = SystemTestUtil.createRandomHeapFile(2, 500, 200, null, null);
+        tid = new TransactionId();
+    }
+
+    private static final Comparator<ArrayList<Integer>> ROW_ORDER = new Comparator<ArrayList<Integer>>() {
+        @Override
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int c = a.get(i).compareTo(b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Drain op either a tuple or a batch at a time, returning its rows sorted.
+     */
+    private static ArrayList<ArrayList<Integer>> drain(OpIterator op, boolean batches) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        op.open();
+        if (batches) {
+            TupleBatch batch;
+            while ((batch = op.nextBatch()) != null) {
+                assertTrue(batch.size() > 0);
+                assertTrue(batch.size() <= TupleBatch.DEFAULT_CAPACITY);
+                for (int i = 0; i < batch.size(); i++)
+                    rows.add(SystemTestUtil.tupleToList(batch.getTuple(i)));
+            }
+            assertNull(op.nextBatch());
+        } else {
+            while (op.hasNext())
+                rows.add(SystemTestUtil.tupleToList(op.next()));
+        }
+        op.close();
+        Collections.sort(rows, ROW_ORDER);
+        return rows;
+    }
+
+    /**
+     * SeqScan decodes pages straight into batches, with RecordIds.
+     */
+    @Test public void seqScan() throws Exception {
+        SeqScan scan = new SeqScan(tid, left.getId(), "t");
+        assertEquals(ROWS, drain(scan, true).size());
+        assertEquals(drain(scan, false), drain(scan, true));
+
+        scan.open();
+        TupleBatch batch = scan.nextBatch();
+        assertEquals(TupleBatch.DEFAULT_CAPACITY, batch.size());
+        RecordId rid = batch.getRecordId(0);
+        assertEquals(left.getId(), rid.getPageId().getTableId());
+        scan.close();
+    }
+
+    /**
+     * Filter and Project work on the columns of the batch of their child.
+     */
+    @Test public void filterAndProject() throws Exception {
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50));
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(1);
+        Project project = new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new Filter(p, new SeqScan(tid, left.getId(), "t")));
+        ArrayList<ArrayList<Integer>> expected = drain(project, false);
+        assertTrue(expected.size() > 0 && expected.size() < ROWS);
+        assertEquals(expected, drain(project, true));
+    }
+
+    /**
+     * HashEquiJoin produces the same rows from batches of its inner child.
+     */
+    @Test public void hashEquiJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        HashEquiJoin join = new HashEquiJoin(p, new SeqScan(tid, left.getId(), "l"),
+                new SeqScan(tid, right.getId(), "r"));
+        ArrayList<ArrayList<Integer>> expected = drain(join, false);
+        assertTrue(expected.size() > TupleBatch.DEFAULT_CAPACITY);
+        assertEquals(expected, drain(join, true));
+    }
+
+    /**
+     * Aggregate consumes batches; operators without a native implementation
+     * are adapted.
+     */
+    @Test public void aggregate() throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, left.getId(), "t"), 2, 0, Aggregator.Op.SUM);
+        ArrayList<ArrayList<Integer>> sums = drain(agg, true);
+        ArrayList<ArrayList<Integer>> rows = drain(new SeqScan(tid, left.getId(), "t"), false);
+        int total = 0;
+        for (ArrayList<Integer> row : sums)
+            total += row.get(1);
+        int expected = 0;
+        for (ArrayList<Integer> row : rows)
+            expected += row.get(2);
+        assertEquals(expected, total);
+        assertEquals(drain(agg, false), sums);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
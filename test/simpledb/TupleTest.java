@@ -1,6 +1,10 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
@@ -57,6 +61,34 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for a Tuple decoded lazily from its serialized fields
+     */
+    @Test public void lazyFields() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        assertEquals(0, td.getFieldOffset(0));
+        assertEquals(Type.INT_TYPE.getLen(), td.getFieldOffset(1));
+        assertEquals(Type.INT_TYPE.getLen() + Type.STRING_TYPE.getLen(), td.getFieldOffset(2));
+
+        ByteBuffer buf = ByteBuffer.allocate(8 + td.getSize());
+        buf.putInt(4, 42);
+        buf.putInt(8, 3);
+        buf.position(12);
+        buf.put("abc".getBytes());
+        buf.putInt(4 + td.getFieldOffset(2), -5);
+
+        Tuple tup = new Tuple(td, buf, 4);
+        assertTrue(tup.compareField(0, Predicate.Op.EQUALS, new IntField(42)));
+        assertFalse(tup.compareField(2, Predicate.Op.GREATER_THAN, new IntField(0)));
+        assertTrue(tup.compareField(1, Predicate.Op.EQUALS, new StringField("abc", Type.STRING_LEN)));
+        assertEquals(new IntField(-5), tup.getField(2));
+        assertEquals(new StringField("abc", Type.STRING_LEN), tup.getField(1));
+
+        tup.setField(0, new IntField(7));
+        assertEquals(new IntField(7), tup.getField(0));
+        assertEquals("7\tabc\t-5", tup.toString());
+    }
+
     /**
      * JUnit suite target
      */
@@ -12,9 +12,15 @@ import org.junit.Test;
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult)
             throws DbException, TransactionAbortedException, IOException {
+        validateAggregate(table, operation, aggregateColumn, groupColumn, 0, expectedResult);
+    }
+
+    public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn,
+            int memoryGroups, ArrayList<ArrayList<Integer>> expectedResult)
+            throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, table.getId(), "");
-        Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation);
+        Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation, memoryGroups);
 
         SystemTestUtil.matchTuples(ag, expectedResult);
         Database.getBufferPool().transactionComplete(tid);
@@ -113,6 +119,51 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /**
+     * Groups that do not fit in the memory budget are spilled and
+     * aggregated a partition at a time, without changing the result.
+     */
+    @Test public void testSpilledGroups()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                2, 20000, 5000, null, createdTuples);
+        for (Aggregator.Op operation : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG }) {
+            ArrayList<ArrayList<Integer>> expected =
+                    aggregate(createdTuples, operation, 1, 0);
+            for (int memoryGroups : new int[] { 1, 50, 3000 })
+                validateAggregate(table, operation, 1, 0, memoryGroups, expected);
+        }
+    }
+
+    /**
+     * Aggregating the pages of a scan in parallel, below a Filter, gives the
+     * same result as a single thread.
+     */
+    @Test public void testParallel()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 40000, 500, null, createdTuples);
+        ArrayList<ArrayList<Integer>> filtered = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : createdTuples) {
+            if (t.get(2) < 250)
+                filtered.add(t);
+        }
+        for (Aggregator.Op operation : new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.MIN }) {
+            ArrayList<ArrayList<Integer>> expected = aggregate(filtered, operation, 1, 0);
+            for (int parallelism : new int[] { 4, 1 }) {
+                TransactionId tid = new TransactionId();
+                Filter f = new Filter(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(250)),
+                        new SeqScan(tid, table.getId(), ""));
+                Aggregate ag = new Aggregate(f, 1, 0, operation);
+                ag.setParallelism(parallelism);
+                SystemTestUtil.matchTuples(ag, expected);
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);